@@ -0,0 +1,45 @@
+package com.fs.benchmarks;
+
+import com.fs.ldisk.LDisk;
+import com.fs.ldisk.MappedLDisk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Disk backends the benchmarks run with: "heap" - {@link LDisk} in memory, "mapped" -
+ * {@link MappedLDisk} backed by a temporary image file
+ */
+final class Disks {
+    static final String HEAP = "heap";
+    static final String MAPPED = "mapped";
+
+    private Disks() {
+    }
+
+    static LDisk create(String backend, int blocksAmount, int blockLength) throws IOException {
+        switch (backend) {
+            case HEAP:
+                return new LDisk(blocksAmount, blockLength);
+            case MAPPED:
+                Path image = Files.createTempFile("fs-benchmark", ".img");
+                Files.delete(image);
+                return new MappedLDisk(image.toString(), blocksAmount, blockLength);
+            default:
+                throw new IllegalArgumentException("Unknown disk backend " + backend);
+        }
+    }
+
+    /**
+     * Closes mapped disk and deletes its image
+     */
+    static void delete(LDisk disk) throws IOException {
+        if (disk instanceof MappedLDisk) {
+            MappedLDisk mappedDisk = (MappedLDisk) disk;
+            mappedDisk.close();
+            Files.deleteIfExists(Paths.get(mappedDisk.getImagePath()));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.fs.benchmarks;
+
+import com.fs.filesystem.FileSystem;
+import com.fs.iosystem.IOSystem;
+import com.fs.ldisk.LDisk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential read and write of one big file in pieces of transferSize bytes and seeks to
+ * random positions of it. When the end of file is reached, the next transfer starts from
+ * the beginning again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FileSystemBenchmark {
+    private static final int BLOCKS_AMOUNT = 16384;
+    private static final int BLOCK_LENGTH = 512;
+    private static final int FILE_LENGTH = 4 * 1024 * 1024;
+    private static final int NUMBER_OF_SEEKS = 1024;
+
+    @Param({Disks.HEAP, Disks.MAPPED})
+    public String backend;
+
+    @Param({"64", "4096", "65536"})
+    public int transferSize;
+
+    private LDisk disk;
+    private FileSystem fileSystem;
+    private int handle;
+    private byte[] data;
+    private ByteBuffer readBuffer;
+    private int position;
+    private int[] seekPositions;
+    private int nextSeek;
+
+    @Setup
+    public void setUp() throws IOException {
+        disk = Disks.create(backend, BLOCKS_AMOUNT, BLOCK_LENGTH);
+        fileSystem = new FileSystem(new IOSystem(disk), 8);
+        fileSystem.create("F");
+        handle = fileSystem.open("F");
+        byte[] content = new byte[FILE_LENGTH];
+        new Random(42).nextBytes(content);
+        fileSystem.write(handle, content, content.length);
+        fileSystem.seek(handle, 0);
+
+        data = new byte[transferSize];
+        new Random(7).nextBytes(data);
+        readBuffer = ByteBuffer.allocate(transferSize);
+        Random random = new Random(13);
+        seekPositions = new int[NUMBER_OF_SEEKS];
+        for (int i = 0; i < seekPositions.length; i++) {
+            seekPositions[i] = random.nextInt(FILE_LENGTH);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fileSystem.closeAllFiles();
+        Disks.delete(disk);
+    }
+
+    @Benchmark
+    public int write() {
+        rewindIfAtEnd();
+        position += transferSize;
+        return fileSystem.write(handle, data, transferSize);
+    }
+
+    @Benchmark
+    public ByteBuffer read() {
+        rewindIfAtEnd();
+        position += transferSize;
+        fileSystem.read(handle, readBuffer, transferSize);
+        return readBuffer;
+    }
+
+    @Benchmark
+    public int seek() {
+        nextSeek = (nextSeek + 1) % seekPositions.length;
+        position = seekPositions[nextSeek];
+        return fileSystem.seek(handle, position);
+    }
+
+    private void rewindIfAtEnd() {
+        if (position + transferSize > FILE_LENGTH) {
+            fileSystem.seek(handle, 0);
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.fs.benchmarks;
+
+import com.fs.iosystem.IOSystem;
+import com.fs.ldisk.LDisk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of moving transferBlocks blocks through IOSystem: one call per block or one call for
+ * the whole run. Runs start at a different place every time and wrap around the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IOSystemBenchmark {
+    private static final int BLOCKS_AMOUNT = 16384;
+    private static final int BLOCK_LENGTH = 512;
+
+    @Param({Disks.HEAP, Disks.MAPPED})
+    public String backend;
+
+    @Param({"1", "16", "128"})
+    public int transferBlocks;
+
+    /**
+     * Number of blocks in the block cache, 0 - no cache
+     */
+    @Param({"0", "256"})
+    public int cacheSize;
+
+    private LDisk disk;
+    private IOSystem ioSystem;
+    private ByteBuffer block;
+    private byte[] run;
+    private int nextBlock;
+
+    @Setup
+    public void setUp() throws IOException {
+        disk = Disks.create(backend, BLOCKS_AMOUNT, BLOCK_LENGTH);
+        ioSystem = new IOSystem(disk, cacheSize);
+        block = ByteBuffer.allocate(BLOCK_LENGTH);
+        run = new byte[transferBlocks * BLOCK_LENGTH];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Disks.delete(disk);
+    }
+
+    @Benchmark
+    public ByteBuffer readBlock() {
+        int first = nextRun();
+        for (int i = 0; i < transferBlocks; i++) {
+            ioSystem.readBlock(first + i, block);
+        }
+        return block;
+    }
+
+    @Benchmark
+    public void writeBlock() {
+        int first = nextRun();
+        for (int i = 0; i < transferBlocks; i++) {
+            ioSystem.writeBlock(first + i, block.array());
+        }
+    }
+
+    @Benchmark
+    public byte[] readBlocks() {
+        ioSystem.readBlocks(nextRun(), transferBlocks, run, 0);
+        return run;
+    }
+
+    @Benchmark
+    public void writeBlocks() {
+        ioSystem.writeBlocks(nextRun(), transferBlocks, run, 0);
+    }
+
+    /**
+     * @return first block of the next run, runs are spread over the whole disk
+     */
+    private int nextRun() {
+        int first = nextBlock;
+        nextBlock = (nextBlock + 7919) % (BLOCKS_AMOUNT - transferBlocks);
+        return first;
+    }
+}
@@ -0,0 +1,81 @@
+package com.fs.benchmarks;
+
+import com.fs.filesystem.FileSystem;
+import com.fs.iosystem.IOSystem;
+import com.fs.ldisk.LDisk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Create/destroy churn and mount time of a disk with fileCount files, every file has a few
+ * blocks of data
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MetadataBenchmark {
+    private static final int BLOCKS_AMOUNT = 16384;
+    private static final int BLOCK_LENGTH = 512;
+    private static final int BLOCKS_PER_FILE = 4;
+
+    @Param({Disks.HEAP, Disks.MAPPED})
+    public String backend;
+
+    @Param({"16", "256"})
+    public int fileCount;
+
+    private LDisk disk;
+    private FileSystem fileSystem;
+
+    @Setup
+    public void setUp() throws IOException {
+        disk = Disks.create(backend, BLOCKS_AMOUNT, BLOCK_LENGTH);
+        // one more descriptor for the file of churn benchmark
+        fileSystem = new FileSystem(new IOSystem(disk), fileCount + 2);
+        byte[] content = new byte[BLOCKS_PER_FILE * BLOCK_LENGTH];
+        for (int i = 0; i < fileCount; i++) {
+            String fileName = fileName(i);
+            fileSystem.create(fileName);
+            int handle = fileSystem.open(fileName);
+            fileSystem.write(handle, content, content.length);
+            fileSystem.close(handle);
+        }
+        fileSystem.sync();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Disks.delete(disk);
+    }
+
+    @Benchmark
+    public int createDestroy() {
+        fileSystem.create("TMP");
+        return fileSystem.destroy("TMP");
+    }
+
+    @Benchmark
+    public FileSystem mount() {
+        return new FileSystem(disk);
+    }
+
+    private static String fileName(int index) {
+        return "F" + index;
+    }
+}
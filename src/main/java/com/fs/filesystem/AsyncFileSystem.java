@@ -0,0 +1,126 @@
+package com.fs.filesystem;
+
+import com.fs.iosystem.IOScheduler;
+import com.fs.utils.FileSystemConfig;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous facade of {@link FileSystem}. It offloads operations to a pool of threads and
+ * returns futures, so the calling thread doesn't wait for them. The operations themselves are
+ * synchronous: a pool thread waits for every disk transfer of its operation, so at most
+ * numberOfThreads operations do I/O at a time. Operations on the same open file table entry
+ * run in the order they were called, operations on different entries run in parallel. Runs
+ * of whole blocks go through an {@link IOScheduler}, which merges transfers of adjacent blocks
+ * requested by operations running at the same time. Single blocks go through the block cache.
+ *
+ * File system is switched to concurrent mode, so the facade must be created before the file
+ * system is shared between threads. Buffers passed to an operation must not be used until
+ * its future completes.
+ */
+public class AsyncFileSystem {
+    private final FileSystem fileSystem;
+    private final IOScheduler ioScheduler;
+    private final ExecutorService executor;
+    /**
+     * Last operation of every entry, the next operation of the entry starts after it
+     */
+    private final Map<Integer, CompletableFuture<?>> lastOperations;
+
+    public AsyncFileSystem(FileSystem fileSystem) {
+        this(fileSystem, FileSystemConfig.NUMBER_OF_IO_THREADS);
+    }
+
+    /**
+     * @param numberOfThreads number of threads which run operations and of threads which
+     * transfer blocks
+     */
+    public AsyncFileSystem(FileSystem fileSystem, int numberOfThreads) {
+        this.fileSystem = fileSystem;
+        this.ioScheduler = new IOScheduler(fileSystem.ioSystem, numberOfThreads, FileSystemConfig.IO_QUEUE_CAPACITY);
+        this.executor = Executors.newFixedThreadPool(numberOfThreads, runnable -> {
+            Thread thread = new Thread(runnable, "file-system-async");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lastOperations = new HashMap<>();
+        fileSystem.setConcurrent(true);
+        fileSystem.setIOScheduler(ioScheduler);
+        ioScheduler.start();
+    }
+
+    public FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    public IOScheduler getIOScheduler() {
+        return ioScheduler;
+    }
+
+    /**
+     * @return future with index of the open file table entry or -1, see {@link FileSystem#open}
+     */
+    public CompletableFuture<Integer> openAsync(String fileName) {
+        return CompletableFuture.supplyAsync(() -> fileSystem.open(fileName), executor);
+    }
+
+    /**
+     * @return future with 1 or -1, see {@link FileSystem#close}
+     */
+    public CompletableFuture<Integer> closeAsync(int OFTEntryIndex) {
+        return submit(OFTEntryIndex, () -> fileSystem.close(OFTEntryIndex));
+    }
+
+    /**
+     * @return future with number of read bytes, see {@link FileSystem#read}
+     */
+    public CompletableFuture<Integer> readAsync(int OFTEntryIndex, ByteBuffer memArea, int count) {
+        return submit(OFTEntryIndex, () -> fileSystem.read(OFTEntryIndex, memArea, count));
+    }
+
+    /**
+     * @return future with number of written bytes, see {@link FileSystem#write}
+     */
+    public CompletableFuture<Integer> writeAsync(int OFTEntryIndex, byte[] memArea, int count) {
+        return submit(OFTEntryIndex, () -> fileSystem.write(OFTEntryIndex, memArea, count));
+    }
+
+    /**
+     * @return future with 1 or -1, see {@link FileSystem#seek}
+     */
+    public CompletableFuture<Integer> seekAsync(int OFTEntryIndex, int pos) {
+        return submit(OFTEntryIndex, () -> fileSystem.seek(OFTEntryIndex, pos));
+    }
+
+    /**
+     * Stops threads after the submitted operations are done
+     */
+    public void shutdown() {
+        executor.shutdown();
+        ioScheduler.shutdown();
+    }
+
+    /**
+     * Runs operation of the entry after its previous operation, even if that one failed
+     */
+    private CompletableFuture<Integer> submit(int OFTEntryIndex, Supplier<Integer> operation) {
+        synchronized (lastOperations) {
+            CompletableFuture<?> previous = lastOperations.getOrDefault(OFTEntryIndex, CompletableFuture.completedFuture(null));
+            CompletableFuture<Integer> future = previous.handle((result, error) -> null)
+                    .thenApplyAsync(ignored -> operation.get(), executor);
+            lastOperations.put(OFTEntryIndex, future);
+            future.whenComplete((result, error) -> {
+                synchronized (lastOperations) {
+                    lastOperations.remove(OFTEntryIndex, future);
+                }
+            });
+            return future;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.fs.filesystem;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Allocates data blocks for files and metadata. The bitmap has one bit per block (set - used).
+ * Over it there is a summary: level 0 has one bit per group of 64 blocks which is set when the
+ * group has a free block, every next level has one bit per 64-bit word of the level below.
+ * Free block is found by going up the summary until a set bit is found and then down to the
+ * group, so it takes O(log n) even on a nearly full disk with millions of blocks.
+ *
+ * Search starts from the next-fit cursor which follows the last allocation, so the blocks
+ * which were just allocated aren't looked at again by the next search.
+ *
+ * On disks with dedup a block can be shared by several files. Reference count of a block is
+ * the number of its references besides the first one, freeing a shared block only decrements it.
+ *
+ * Free blocks can be reserved for blocks which will be allocated later, allocations don't take
+ * reserved blocks, so the reservation must be released right before they are allocated.
+ */
+public class BlockAllocator {
+    private static final int GROUP_SHIFT = 6;
+    private static final int GROUP_SIZE = 1 << GROUP_SHIFT;
+    /**
+     * How many free runs are checked when contiguous blocks are preferred, before falling
+     * back to whatever is free
+     */
+    private static final int MAXIMUM_RUN_PROBES = 32;
+
+    private final BitSet bitmap;
+    private final int firstBlock;
+    private final int blocksAmount;
+    private final long[][] summary;
+    /**
+     * Unsigned count of references besides the first one for every block, null without dedup
+     */
+    private final byte[] referenceCounts;
+    private int freeBlocks;
+    /**
+     * Number of runs of free blocks, updated by every allocation and free
+     */
+    private int freeRuns;
+    private int reservedBlocks;
+    private int cursor;
+
+    /**
+     * @param bitmap bitmap of the disk, allocator changes it in place
+     * @param firstBlock first block which can be allocated, blocks before it are never given out
+     * @param blocksAmount number of blocks on disk
+     */
+    public BlockAllocator(BitSet bitmap, int firstBlock, int blocksAmount) {
+        this(bitmap, firstBlock, blocksAmount, null);
+    }
+
+    /**
+     * @param referenceCounts reference counts of the disk, allocator changes them in place, null without dedup
+     */
+    public BlockAllocator(BitSet bitmap, int firstBlock, int blocksAmount, byte[] referenceCounts) {
+        this.bitmap = bitmap;
+        this.referenceCounts = referenceCounts;
+        this.firstBlock = firstBlock;
+        this.blocksAmount = blocksAmount;
+        this.cursor = firstBlock;
+
+        List<long[]> levels = new ArrayList<>();
+        int bits = (blocksAmount + GROUP_SIZE - 1) >>> GROUP_SHIFT;
+        do {
+            int words = (bits + 63) >>> 6;
+            levels.add(new long[words]);
+            bits = words;
+        } while (bits > 1);
+        summary = levels.toArray(new long[0][]);
+
+        for (int group = firstBlock >>> GROUP_SHIFT; group << GROUP_SHIFT < blocksAmount; group++) {
+            updateGroup(group);
+        }
+        for (int block = bitmap.nextClearBit(firstBlock); block < blocksAmount; block = bitmap.nextClearBit(block + 1)) {
+            freeBlocks++;
+        }
+        freeRuns = countFreeRuns(firstBlock, blocksAmount);
+    }
+
+    public int getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    /**
+     * @return number of free blocks which are not reserved
+     */
+    public int getAvailableBlocks() {
+        return freeBlocks - reservedBlocks;
+    }
+
+    public int getReservedBlocks() {
+        return reservedBlocks;
+    }
+
+    /**
+     * Reserves n free blocks, they can't be allocated until they are released
+     *
+     * @return false if there are less than n available blocks, nothing is reserved then
+     */
+    public boolean reserve(int n) {
+        if (n > getAvailableBlocks()) {
+            return false;
+        }
+        reservedBlocks += n;
+        return true;
+    }
+
+    public void release(int n) {
+        reservedBlocks -= n;
+    }
+
+    /**
+     * @return number of runs of free blocks
+     */
+    public int getFreeRuns() {
+        return freeRuns;
+    }
+
+    public boolean isFree(int block) {
+        return block >= firstBlock && block < blocksAmount && !bitmap.get(block);
+    }
+
+    /**
+     * @return the first free block starting from the given one or -1 if there is none
+     */
+    public int findFreeBlock(int from) {
+        from = Math.max(from, firstBlock);
+        if (from >= blocksAmount) {
+            return -1;
+        }
+        int block = nextFreeInGroup(from);
+        if (block != -1) {
+            return block;
+        }
+        int group = nextSet(0, (from >>> GROUP_SHIFT) + 1);
+        return group == -1 ? -1 : nextFreeInGroup(Math.max(group << GROUP_SHIFT, firstBlock));
+    }
+
+    /**
+     * Allocates one block at the next-fit cursor
+     *
+     * @return index of allocated block or -1 if disk is full
+     */
+    public int allocateBlock() {
+        if (getAvailableBlocks() == 0) {
+            return -1;
+        }
+        int block = findNextFit();
+        if (block != -1) {
+            markUsed(block, 1);
+        }
+        return block;
+    }
+
+    /**
+     * Allocates n blocks at the next-fit cursor, see {@link #allocate(int, int, boolean)}
+     */
+    public List<Extent> allocate(int n, boolean contiguousPreferred) {
+        return allocate(-1, n, contiguousPreferred);
+    }
+
+    /**
+     * Allocates n blocks. Blocks starting with goal are taken first as long as they are free,
+     * the rest is a single run if contiguousPreferred and such run is found quickly, otherwise
+     * free blocks from the next-fit cursor are taken.
+     *
+     * @param goal preferred first block, e.g. the block after the end of file, -1 if none
+     * @return allocated extents in the order they should be used or null if there are less
+     * than n available blocks, in that case nothing is allocated
+     */
+    public List<Extent> allocate(int goal, int n, boolean contiguousPreferred) {
+        if (n > getAvailableBlocks()) {
+            return null;
+        }
+        List<Extent> extents = new ArrayList<>();
+        int remaining = n;
+        if (isFree(goal)) {
+            remaining -= take(goal, remaining, extents);
+        }
+        if (remaining > 1 && contiguousPreferred) {
+            int start = findRun(remaining);
+            if (start != -1) {
+                remaining -= take(start, remaining, extents);
+            }
+        }
+        while (remaining > 0) {
+            remaining -= take(findNextFit(), remaining, extents);
+        }
+        return extents;
+    }
+
+    /**
+     * Adds a reference to a used block, so it is shared by one more file
+     *
+     * @return false if disk has no reference counts or the count can't grow anymore
+     */
+    public boolean addReference(int block) {
+        if (referenceCounts == null || (referenceCounts[block] & 0xFF) == 0xFF) {
+            return false;
+        }
+        referenceCounts[block]++;
+        return true;
+    }
+
+    /**
+     * @return whether block is referenced by more than one file
+     */
+    public boolean isShared(int block) {
+        return referenceCounts != null && referenceCounts[block] != 0;
+    }
+
+    /**
+     * @return reference counts of all blocks or null without dedup
+     */
+    public byte[] getReferenceCounts() {
+        return referenceCounts;
+    }
+
+    /**
+     * Returns blocks from start to start + length - 1 to free blocks, shared blocks lose
+     * one reference instead
+     */
+    public void free(int start, int length) {
+        int runsBefore = countFreeRuns(start - 1, start + length + 1);
+        for (int block = start; block < start + length; block++) {
+            if (isShared(block)) {
+                referenceCounts[block]--;
+            } else if (block >= firstBlock && bitmap.get(block)) {
+                bitmap.clear(block);
+                freeBlocks++;
+            }
+        }
+        freeRuns += countFreeRuns(start - 1, start + length + 1) - runsBefore;
+        updateGroups(start, length);
+    }
+
+    public void free(Extent extent) {
+        free(extent.startBlock, extent.length);
+    }
+
+    private int findNextFit() {
+        int block = findFreeBlock(cursor);
+        return block != -1 ? block : findFreeBlock(firstBlock);
+    }
+
+    /**
+     * Looks for n free blocks in a row among the first free runs after the cursor
+     *
+     * @return first block of the run or -1 if it wasn't found
+     */
+    private int findRun(int n) {
+        int from = cursor;
+        boolean wrapped = false;
+        for (int probe = 0; probe < MAXIMUM_RUN_PROBES; probe++) {
+            int start = findFreeBlock(from);
+            if (start == -1) {
+                if (wrapped) {
+                    return -1;
+                }
+                wrapped = true;
+                from = firstBlock;
+                continue;
+            }
+            int length = runLength(start, n);
+            if (length == n) {
+                return start;
+            }
+            from = start + length + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of free blocks starting with start, but not more than maximum
+     */
+    private int runLength(int start, int maximum) {
+        int end = Math.min(start + maximum, blocksAmount);
+        int used = bitmap.get(start, end).nextSetBit(0);
+        return used == -1 ? end - start : used;
+    }
+
+    /**
+     * Allocates free blocks starting with start, not more than maximum
+     *
+     * @return number of allocated blocks
+     */
+    private int take(int start, int maximum, List<Extent> extents) {
+        int length = runLength(start, maximum);
+        markUsed(start, length);
+        Extent last = extents.isEmpty() ? null : extents.get(extents.size() - 1);
+        if (last != null && last.getEndBlock() == start) {
+            last.length += length;
+        } else {
+            extents.add(new Extent(start, length));
+        }
+        return length;
+    }
+
+    private void markUsed(int start, int length) {
+        int runsBefore = countFreeRuns(start - 1, start + length + 1);
+        bitmap.set(start, start + length);
+        freeBlocks -= length;
+        freeRuns += countFreeRuns(start - 1, start + length + 1) - runsBefore;
+        cursor = start + length < blocksAmount ? start + length : firstBlock;
+        updateGroups(start, length);
+    }
+
+    /**
+     * Counts runs of free blocks within from to to - 1. When only the blocks between the first
+     * and the last one change, the difference of the counts is the change of all free runs.
+     */
+    private int countFreeRuns(int from, int to) {
+        to = Math.min(to, blocksAmount);
+        int runs = 0;
+        int start = bitmap.nextClearBit(Math.max(from, firstBlock));
+        while (start < to) {
+            runs++;
+            int end = bitmap.nextSetBit(start);
+            start = end == -1 || end >= to ? to : bitmap.nextClearBit(end);
+        }
+        return runs;
+    }
+
+    private void updateGroups(int start, int length) {
+        for (int group = start >>> GROUP_SHIFT; group <= (start + length - 1) >>> GROUP_SHIFT; group++) {
+            updateGroup(group);
+        }
+    }
+
+    /**
+     * @return first free block from the given one to the end of its group or -1
+     */
+    private int nextFreeInGroup(int from) {
+        int end = Math.min(((from >>> GROUP_SHIFT) + 1) << GROUP_SHIFT, blocksAmount);
+        int offset = bitmap.get(from, end).nextClearBit(0);
+        return from + offset < end ? from + offset : -1;
+    }
+
+    private boolean groupHasFree(int group) {
+        int from = Math.max(group << GROUP_SHIFT, firstBlock);
+        return from < blocksAmount && nextFreeInGroup(from) != -1;
+    }
+
+    /**
+     * Sets or clears summary bit of the group and propagates the change to upper levels
+     */
+    private void updateGroup(int group) {
+        boolean hasFree = groupHasFree(group);
+        int index = group;
+        for (long[] words : summary) {
+            int word = index >>> 6;
+            boolean wasEmpty = words[word] == 0;
+            if (hasFree) {
+                words[word] |= 1L << index;
+            } else {
+                words[word] &= ~(1L << index);
+            }
+            if (wasEmpty == (words[word] == 0)) {
+                return;
+            }
+            hasFree = words[word] != 0;
+            index = word;
+        }
+    }
+
+    /**
+     * @return first set bit of the summary level starting with index or -1
+     */
+    private int nextSet(int level, int index) {
+        long[] words = summary[level];
+        int word = index >>> 6;
+        if (word >= words.length) {
+            return -1;
+        }
+        long bits = words[word] & (-1L << index);
+        if (bits != 0) {
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+        if (level + 1 == summary.length) {
+            return -1;
+        }
+        int nextWord = nextSet(level + 1, word + 1);
+        return nextWord == -1 ? -1 : (nextWord << 6) + Long.numberOfTrailingZeros(words[nextWord]);
+    }
+}
@@ -0,0 +1,305 @@
+package com.fs.filesystem;
+
+import com.fs.iosystem.IOSystem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Blocks of a compressed file. Every file block is compressed on its own and appended as a
+ * record to a log which is packed into the blocks of the file, so several compressed blocks
+ * share one disk block and a record can continue in the next disk block. Record is
+ * [file block + 1][stored length] followed by the stored bytes. Block which doesn't get
+ * shorter is stored raw with stored length equal to block length.
+ *
+ * Rewritten block gets a new record, the last record of a block is the live one. When the
+ * log gets twice as long as its live records, it is compacted into new disk blocks, the old
+ * ones stay untouched until the file is switched to the new ones. Log ends with a zero header
+ * or with the last disk block of the file, it is scanned when blocks are used for the first
+ * time after mount to find the live records.
+ */
+public class CompressedBlocks {
+    private static final int HEADER_SIZE = 8;
+
+    private final IOSystem ioSystem;
+    private final FileDescriptor fileDescriptor;
+    private final int blockLength;
+    /**
+     * Allocates the next disk block of the file, returns -1 if there is no free block
+     */
+    private final IntSupplier appendBlock;
+    /**
+     * Frees the last disk block of the file
+     */
+    private final Runnable removeLastBlock;
+    /**
+     * Allocates disk blocks which don't belong to the file yet, returns null if there is no room
+     */
+    private final IntFunction<List<Extent>> allocateBlocks;
+    /**
+     * Makes the given blocks the blocks of the file, the old ones are freed
+     */
+    private final Consumer<List<Extent>> replaceBlocks;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    /**
+     * Offset of the live record of every file block in the log, -1 if block has no record
+     */
+    private int[] recordOffsets;
+    private int[] recordLengths;
+    private int logLength;
+    private int liveLength;
+    private boolean loaded;
+    /**
+     * Last disk block which was read, so records in one block don't read it again
+     */
+    private final byte[] lastBlock;
+    private int lastBlockIndex;
+
+    public CompressedBlocks(IOSystem ioSystem, FileDescriptor fileDescriptor, int blockLength,
+                            IntSupplier appendBlock, Runnable removeLastBlock,
+                            IntFunction<List<Extent>> allocateBlocks, Consumer<List<Extent>> replaceBlocks) {
+        this.ioSystem = ioSystem;
+        this.fileDescriptor = fileDescriptor;
+        this.blockLength = blockLength;
+        this.appendBlock = appendBlock;
+        this.removeLastBlock = removeLastBlock;
+        this.allocateBlocks = allocateBlocks;
+        this.replaceBlocks = replaceBlocks;
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.inflater = new Inflater();
+        this.recordOffsets = new int[0];
+        this.recordLengths = new int[0];
+        this.lastBlock = new byte[blockLength];
+        this.lastBlockIndex = -1;
+    }
+
+    /**
+     * Copies file block into buffer at its position, position is not moved. Block without
+     * record is read as zeros.
+     */
+    public synchronized void readBlock(int fileBlock, ByteBuffer buffer) {
+        load();
+        byte[] block = new byte[blockLength];
+        if (fileBlock < recordOffsets.length && recordOffsets[fileBlock] != -1) {
+            int storedLength = recordLengths[fileBlock];
+            byte[] stored = new byte[storedLength];
+            readLog(recordOffsets[fileBlock] + HEADER_SIZE, stored, storedLength);
+            if (storedLength == blockLength) {
+                block = stored;
+            } else {
+                inflate(stored, block);
+            }
+        }
+        buffer.duplicate().put(block);
+    }
+
+    /**
+     * Compresses file block and appends it to the log
+     *
+     * @return false if there is no free space on disk for the record
+     */
+    public synchronized boolean writeBlock(int fileBlock, byte[] block) {
+        load();
+        byte[] compressed = new byte[blockLength];
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int storedLength = deflater.deflate(compressed);
+        if (!deflater.finished() || storedLength >= blockLength) {
+            // block doesn't shrink, it is stored as it is
+            compressed = block;
+            storedLength = blockLength;
+        }
+        byte[] record = ByteBuffer.allocate(HEADER_SIZE + storedLength)
+                .putInt(fileBlock + 1).putInt(storedLength).put(compressed, 0, storedLength).array();
+        if (!appendToLog(record)) {
+            return false;
+        }
+        setRecord(fileBlock, logLength - record.length, storedLength);
+        if (logLength - liveLength > liveLength + blockLength) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * @return length of the log in bytes, including records which were rewritten
+     */
+    public synchronized int getLogLength() {
+        load();
+        return logLength;
+    }
+
+    /**
+     * Writes live records to new disk blocks and switches the file to them, so a crash during
+     * compaction leaves the old log. Nothing is done if no block was rewritten or there is no
+     * room for the new blocks.
+     */
+    public synchronized void compact() {
+        load();
+        if (logLength == liveLength) {
+            return;
+        }
+        // empty log ends with a zero header in the first block
+        int neededBlocks = Math.max(1, (liveLength + blockLength - 1) / blockLength);
+        List<Extent> extents = allocateBlocks.apply(neededBlocks);
+        if (extents == null) {
+            return;
+        }
+        List<Integer> fileBlocks = new ArrayList<>();
+        for (int i = 0; i < recordOffsets.length; i++) {
+            if (recordOffsets[i] != -1) {
+                fileBlocks.add(i);
+            }
+        }
+        // records keep their order, so every record moves towards the beginning of the log
+        fileBlocks.sort((a, b) -> Integer.compare(recordOffsets[a], recordOffsets[b]));
+        // rest of the last block is zeroed, so the log ends there
+        byte[] log = new byte[neededBlocks * blockLength];
+        int position = 0;
+        for (int fileBlock : fileBlocks) {
+            int recordLength = HEADER_SIZE + recordLengths[fileBlock];
+            readLog(recordOffsets[fileBlock], log, position, recordLength);
+            recordOffsets[fileBlock] = position;
+            position += recordLength;
+        }
+        int block = 0;
+        for (Extent extent : extents) {
+            ioSystem.writeBlocks(extent.startBlock, extent.length, log, block * blockLength);
+            block += extent.length;
+        }
+        replaceBlocks.accept(extents);
+        logLength = liveLength;
+        lastBlockIndex = -1;
+    }
+
+    /**
+     * Finds live records by scanning the log, runs once before the first use
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        int capacity = fileDescriptor.getNumberOfBlocks() * blockLength;
+        byte[] header = new byte[HEADER_SIZE];
+        while (logLength + HEADER_SIZE <= capacity) {
+            readLog(logLength, header, HEADER_SIZE);
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            int fileBlock = headerBuffer.getInt() - 1;
+            int storedLength = headerBuffer.getInt();
+            if (fileBlock < 0 || storedLength <= 0 || storedLength > blockLength
+                    || logLength + HEADER_SIZE + storedLength > capacity) {
+                break;
+            }
+            setRecord(fileBlock, logLength, storedLength);
+            logLength += HEADER_SIZE + storedLength;
+        }
+    }
+
+    /**
+     * Makes record at the given offset the live record of the file block
+     */
+    private void setRecord(int fileBlock, int offset, int storedLength) {
+        if (fileBlock >= recordOffsets.length) {
+            int length = Math.max(fileBlock + 1, 2 * recordOffsets.length);
+            int oldLength = recordOffsets.length;
+            recordOffsets = Arrays.copyOf(recordOffsets, length);
+            recordLengths = Arrays.copyOf(recordLengths, length);
+            Arrays.fill(recordOffsets, oldLength, length, -1);
+        }
+        if (recordOffsets[fileBlock] != -1) {
+            liveLength -= HEADER_SIZE + recordLengths[fileBlock];
+        }
+        recordOffsets[fileBlock] = offset;
+        recordLengths[fileBlock] = storedLength;
+        liveLength += HEADER_SIZE + storedLength;
+    }
+
+    /**
+     * Writes bytes at the end of the log, disk blocks are allocated when the log grows over
+     * the last one. Rest of the last written block is zeroed, so the log ends there.
+     *
+     * @return false if there is no free space on disk, log is not changed then
+     */
+    private boolean appendToLog(byte[] bytes) {
+        int end = logLength + bytes.length;
+        int blocksBefore = fileDescriptor.getNumberOfBlocks();
+        while (fileDescriptor.getNumberOfBlocks() * blockLength < end) {
+            if (appendBlock.getAsInt() == -1) {
+                while (fileDescriptor.getNumberOfBlocks() > blocksBefore) {
+                    removeLastBlock.run();
+                }
+                return false;
+            }
+        }
+        int written = 0;
+        while (written < bytes.length) {
+            int offset = logLength + written;
+            int block = offset / blockLength;
+            int offsetInBlock = offset % blockLength;
+            byte[] data = new byte[blockLength];
+            if (offsetInBlock > 0) {
+                // beginning of the block belongs to earlier records
+                readLogBlock(block);
+                System.arraycopy(lastBlock, 0, data, 0, offsetInBlock);
+            }
+            int chunk = Math.min(blockLength - offsetInBlock, bytes.length - written);
+            System.arraycopy(bytes, written, data, offsetInBlock, chunk);
+            ioSystem.writeBlock(fileDescriptor.getDiskBlock(block), data);
+            System.arraycopy(data, 0, lastBlock, 0, blockLength);
+            lastBlockIndex = block;
+            written += chunk;
+        }
+        logLength = end;
+        return true;
+    }
+
+    private void readLog(int offset, byte[] bytes, int length) {
+        readLog(offset, bytes, 0, length);
+    }
+
+    /**
+     * Copies length bytes of the log starting at offset into bytes starting at position
+     */
+    private void readLog(int offset, byte[] bytes, int position, int length) {
+        int read = 0;
+        while (read < length) {
+            int block = (offset + read) / blockLength;
+            int offsetInBlock = (offset + read) % blockLength;
+            readLogBlock(block);
+            int chunk = Math.min(blockLength - offsetInBlock, length - read);
+            System.arraycopy(lastBlock, offsetInBlock, bytes, position + read, chunk);
+            read += chunk;
+        }
+    }
+
+    /**
+     * @param block index of block among blocks of the file
+     */
+    private void readLogBlock(int block) {
+        if (block != lastBlockIndex) {
+            ioSystem.readBlock(fileDescriptor.getDiskBlock(block), ByteBuffer.wrap(lastBlock));
+            lastBlockIndex = block;
+        }
+    }
+
+    private void inflate(byte[] stored, byte[] block) {
+        inflater.reset();
+        inflater.setInput(stored);
+        try {
+            inflater.inflate(block);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed block is damaged", e);
+        }
+    }
+}
@@ -1,17 +1,229 @@
 package com.fs.filesystem;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
 
 /**
  * @author Medynskyi Mykola
+ *
+ * Entries are indexed by file name, so lookups don't scan the list. Each entry has a slot
+ * in the directory file on disk. In the linear layout slot is the index in listOfEntries,
+ * removed entry is replaced with the last one. In the hashed layout slot is found by
+ * linear probing from the hash of the file name, removed entry leaves a tombstone.
+ *
+ * Hashed directory can be read from disk lazily, a block of slots is read when probing reaches
+ * it for the first time. Until {@link #readAllSlots} is called listOfEntries holds only entries
+ * of blocks which were read. Methods are synchronized, because lookups under a shared lock
+ * can read blocks.
  */
 public class Directory {
+    /**
+     * Marks slot of removed entry in the hashed layout, probing continues past it
+     */
+    public static final DirectoryEntry TOMBSTONE = new DirectoryEntry("", -1);
+
     public List<DirectoryEntry> listOfEntries;
+    /**
+     * Index in listOfEntries by file name
+     */
+    private final Map<String, Integer> entryIndexByName;
+    /**
+     * Entries by slot in the hashed layout, null in the linear layout
+     */
+    private final DirectoryEntry[] slots;
+    /**
+     * Reads slots of one block from disk into the directory, null if all slots are in memory
+     */
+    private IntConsumer blockReader;
+    private final int slotsPerBlock;
+    private final BitSet readBlocks;
+
     public Directory() {
         listOfEntries = new ArrayList<>();
+        entryIndexByName = new HashMap<>();
+        slots = null;
+        slotsPerBlock = 0;
+        readBlocks = null;
+    }
+
+    /**
+     * Creates directory with hashed layout
+     *
+     * @param numberOfSlots number of entries which fit into directory file
+     */
+    public Directory(int numberOfSlots) {
+        this(numberOfSlots, numberOfSlots, null);
+    }
+
+    /**
+     * Creates directory with hashed layout whose slots are read on first access
+     *
+     * @param numberOfSlots number of entries which fit into directory file
+     * @param slotsPerBlock number of slots in one block of directory file
+     * @param blockReader called with index of a block of directory file, it adds entries
+     *                    and tombstones of the block with {@link #addEntryAtSlot} and {@link #addTombstoneAtSlot}
+     */
+    public Directory(int numberOfSlots, int slotsPerBlock, IntConsumer blockReader) {
+        listOfEntries = new ArrayList<>();
+        entryIndexByName = new HashMap<>();
+        slots = new DirectoryEntry[numberOfSlots];
+        this.slotsPerBlock = slotsPerBlock;
+        this.blockReader = blockReader;
+        this.readBlocks = new BitSet();
+    }
+
+    /**
+     * @return slot of the added entry or -1 if hashed directory is full
+     */
+    public synchronized int addEntryToDirectory(String fileName, int fileDescriptorIndex) {
+        int slot = listOfEntries.size();
+        if (isHashed()) {
+            slot = findFreeSlot(fileName);
+            if (slot == -1) {
+                return -1;
+            }
+        }
+        return putEntry(fileName, fileDescriptorIndex, slot);
+    }
+
+    /**
+     * Adds entry which was read from the given slot on disk
+     */
+    public synchronized void addEntryAtSlot(String fileName, int fileDescriptorIndex, int slot) {
+        putEntry(fileName, fileDescriptorIndex, slot);
+    }
+
+    /**
+     * Marks slot of the hashed directory as a tombstone which was read from disk
+     */
+    public synchronized void addTombstoneAtSlot(int slot) {
+        slots[slot] = TOMBSTONE;
     }
-    public void addEntryToDirectory(String fileName, int fileDescriptorIndex) {
-        DirectoryEntry entry = new DirectoryEntry(fileName,fileDescriptorIndex);
+
+    private int putEntry(String fileName, int fileDescriptorIndex, int slot) {
+        DirectoryEntry entry = new DirectoryEntry(fileName, fileDescriptorIndex);
+        entry.slot = slot;
+        entryIndexByName.put(fileName, listOfEntries.size());
         listOfEntries.add(entry);
+        if (isHashed()) {
+            slots[slot] = entry;
+        }
+        return slot;
+    }
+
+    /**
+     * Removes entry of the file. In the linear layout the last entry is moved to its slot.
+     *
+     * @return removed entry or null if there is no such file
+     */
+    public synchronized DirectoryEntry removeEntryFromDirectory(String fileName) {
+        if (findEntry(fileName) == null) {
+            return null;
+        }
+        Integer index = entryIndexByName.remove(fileName);
+        DirectoryEntry removed = listOfEntries.get(index);
+        DirectoryEntry last = listOfEntries.remove(listOfEntries.size() - 1);
+        if (last != removed) {
+            listOfEntries.set(index, last);
+            entryIndexByName.put(last.fileName, index);
+            if (!isHashed()) {
+                last.slot = index;
+            }
+        }
+        if (isHashed()) {
+            slots[removed.slot] = TOMBSTONE;
+        }
+        return removed;
+    }
+
+    /**
+     * @return entry of the file or null if there is no such file
+     */
+    public synchronized DirectoryEntry findEntry(String fileName) {
+        Integer index = entryIndexByName.get(fileName);
+        if (index != null || blockReader == null) {
+            return index == null ? null : listOfEntries.get(index);
+        }
+        // entry can be in a block which wasn't read, probing stops at an empty slot
+        int home = getHomeSlot(fileName);
+        for (int i = 0; i < slots.length; i++) {
+            int slot = (home + i) % slots.length;
+            readSlot(slot);
+            if (slots[slot] == null) {
+                return null;
+            }
+            if (slots[slot] != TOMBSTONE && slots[slot].fileName.equals(fileName)) {
+                return slots[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads all blocks of a lazily read directory, so listOfEntries holds all entries
+     */
+    public synchronized void readAllSlots() {
+        for (int slot = 0; blockReader != null && slot < slots.length; slot += slotsPerBlock) {
+            readSlot(slot);
+        }
+    }
+
+    /**
+     * @return entry stored in the slot, {@link #TOMBSTONE} or null if slot is empty
+     */
+    public synchronized DirectoryEntry getEntryAtSlot(int slot) {
+        if (isHashed()) {
+            readSlot(slot);
+            return slots[slot];
+        }
+        return slot < listOfEntries.size() ? listOfEntries.get(slot) : null;
+    }
+
+    /**
+     * @return true if there is no free slot in the hashed directory, linear directory grows instead
+     */
+    public synchronized boolean isFull() {
+        return isHashed() && listOfEntries.size() == slots.length;
+    }
+
+    public boolean isHashed() {
+        return slots != null;
+    }
+
+    private int findFreeSlot(String fileName) {
+        int home = getHomeSlot(fileName);
+        for (int i = 0; i < slots.length; i++) {
+            int slot = (home + i) % slots.length;
+            readSlot(slot);
+            if (slots[slot] == null || slots[slot] == TOMBSTONE) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int getHomeSlot(String fileName) {
+        return (fileName.hashCode() & Integer.MAX_VALUE) % slots.length;
+    }
+
+    /**
+     * Reads block of the slot if the directory is read lazily and the block wasn't read yet
+     */
+    private void readSlot(int slot) {
+        if (blockReader == null) {
+            return;
+        }
+        int block = slot / slotsPerBlock;
+        if (!readBlocks.get(block)) {
+            readBlocks.set(block);
+            blockReader.accept(block);
+            if (readBlocks.cardinality() * slotsPerBlock >= slots.length) {
+                // everything is in memory, lookups don't probe anymore
+                blockReader = null;
+            }
+        }
     }
 }
@@ -6,9 +6,14 @@ package com.fs.filesystem;
 public class DirectoryEntry {
     public String fileName;
     public int fileDescriptorIndex;
+    /**
+     * Index of the entry in directory file on disk
+     */
+    public int slot;
 
     public DirectoryEntry(String fileName, int fileDescriptorIndex) {
         this.fileDescriptorIndex = fileDescriptorIndex;
         this.fileName = fileName;
+        this.slot = -1;
     }
 }
@@ -0,0 +1,37 @@
+package com.fs.filesystem;
+
+/**
+ * Run of contiguous disk blocks which holds contiguous part of a file or a hole, part of a
+ * file without disk blocks which is read as zeros
+ */
+public class Extent {
+    /**
+     * Size of extent on disk: 4 bytes for first block and 4 bytes for length
+     */
+    public static final int SIZE = 8;
+    /**
+     * First block of a hole
+     */
+    public static final int HOLE = -1;
+
+    public int startBlock;
+    public int length;
+
+    public Extent(int startBlock, int length) {
+        this.startBlock = startBlock;
+        this.length = length;
+    }
+
+    public boolean isHole() {
+        return startBlock == HOLE;
+    }
+
+    public int getEndBlock() {
+        return startBlock + length;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + startBlock + ", " + length + "]";
+    }
+}
@@ -1,34 +1,250 @@
 package com.fs.filesystem;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
  * @author Medynskyi Mykola
+ *
+ * File data is mapped by extents. On disk the descriptor holds the file length, the first
+ * extent and the index of the single indirect extent block. The single indirect block holds
+ * the index of the double indirect block and more extents, the double indirect block holds
+ * indexes of extent blocks with the rest of extents.
+ *
+ * Blocks written after the mapped blocks of the file get disk blocks later, they wait in
+ * memory as delayed blocks, see FileSystem#flushDelayedBlocks.
+ *
+ * File can have holes, extents without disk blocks. They are made by writes after the end of
+ * file and are read as zeros, a block of a hole gets its disk block when it is written.
+ *
+ * Blocks of a compressed file are stored by {@link CompressedBlocks}, its extents hold the
+ * disk blocks with compressed records. The flag is kept on disk in the highest bit of the
+ * length of the first extent.
  */
 
 public class FileDescriptor {
+    static final int COMPRESSED_FLAG = 1 << 31;
 
     public int fileLength; // in bytes
     public int countOfOccupiedBytes;
-    public int[] fileContentsBlocksIndexes;
+    /**
+     * Extents of the file in the order of file blocks
+     */
+    public List<Extent> extents;
+    public int indirectBlock;
+    public int doubleIndirectBlock;
+    /**
+     * Extent blocks which are referenced from the double indirect block
+     */
+    public List<Integer> extentBlocks;
+    /**
+     * Index of the first extent which was changed since descriptor was saved to disk
+     */
+    int firstModifiedExtent;
+    public boolean compressed;
+    /**
+     * Compressed blocks of the file, created when a compressed file is used for the first time
+     */
+    CompressedBlocks compressedBlocks;
+    /**
+     * Contents of file blocks which follow the mapped blocks and have no disk blocks yet
+     */
+    List<byte[]> delayedBlocks = new ArrayList<>();
 
-    public FileDescriptor(int fileLength, int[] fileContentsBlocksIndexes) {
+    public FileDescriptor(int fileLength, List<Extent> extents) {
         this.fileLength = fileLength;
         this.countOfOccupiedBytes = 0;
-        this.fileContentsBlocksIndexes = fileContentsBlocksIndexes;
+        this.extents = extents;
+        this.indirectBlock = -1;
+        this.doubleIndirectBlock = -1;
+        this.extentBlocks = new ArrayList<>();
+        this.firstModifiedExtent = Integer.MAX_VALUE;
     }
+
+    public FileDescriptor(int fileLength) {
+        this(fileLength, new ArrayList<>());
+    }
+
     public FileDescriptor() {
-        fileLength = -1;
-        fileContentsBlocksIndexes = new int[]{-1,-1,-1};
+        this(-1);
+    }
+
+    /**
+     * @param fileBlock index of block in the file
+     * @return index of disk block or -1 if file block is not mapped or is in a hole
+     */
+    public int getDiskBlock(int fileBlock) {
+        for (Extent extent : extents) {
+            if (fileBlock < extent.length) {
+                return extent.isHole() ? -1 : extent.startBlock + fileBlock;
+            }
+            fileBlock -= extent.length;
+        }
+        return -1;
+    }
+
+    /**
+     * @param fileBlock index of block in the file
+     * @return number of blocks starting from fileBlock which are contiguous on disk, 0 in a hole
+     */
+    public int getContiguousBlocks(int fileBlock) {
+        for (Extent extent : extents) {
+            if (fileBlock < extent.length) {
+                return extent.isHole() ? 0 : extent.length - fileBlock;
+            }
+            fileBlock -= extent.length;
+        }
+        return 0;
+    }
+
+    /**
+     * @param fileBlock index of block in the file
+     * @return number of blocks of the hole starting from fileBlock, 0 if block is not in a hole
+     */
+    public int getHoleBlocks(int fileBlock) {
+        for (Extent extent : extents) {
+            if (fileBlock < extent.length) {
+                return extent.isHole() ? extent.length - fileBlock : 0;
+            }
+            fileBlock -= extent.length;
+        }
+        return 0;
+    }
+
+    public boolean isHole(int fileBlock) {
+        return getHoleBlocks(fileBlock) > 0;
+    }
+
+    /**
+     * @return number of mapped blocks of the file, blocks of holes included
+     */
+    public int getNumberOfBlocks() {
+        int numberOfBlocks = 0;
+        for (Extent extent : extents) {
+            numberOfBlocks += extent.length;
+        }
+        return numberOfBlocks;
     }
 
+    /**
+     * @return true if diskBlock can be appended to the file without a new extent
+     */
+    public boolean continuesLastExtent(int diskBlock) {
+        if (extents.isEmpty()) {
+            return false;
+        }
+        Extent lastExtent = extents.get(extents.size() - 1);
+        return !lastExtent.isHole() && lastExtent.getEndBlock() == diskBlock;
+    }
+
+    /**
+     * Adds a hole of length blocks after the last block of the file
+     */
+    public void appendHole(int length) {
+        if (!extents.isEmpty() && extents.get(extents.size() - 1).isHole()) {
+            extents.get(extents.size() - 1).length += length;
+        } else {
+            extents.add(new Extent(Extent.HOLE, length));
+        }
+        firstModifiedExtent = Math.min(firstModifiedExtent, extents.size() - 1);
+    }
+
+    /**
+     * Maps diskBlock as the next block of the file. If it follows the last extent on
+     * disk, the extent gets longer, otherwise a new extent is added.
+     */
+    public void appendBlock(int diskBlock) {
+        appendBlocks(diskBlock, 1);
+    }
+
+    /**
+     * Maps length disk blocks starting with firstDiskBlock as the next blocks of the file
+     */
+    public void appendBlocks(int firstDiskBlock, int length) {
+        if (continuesLastExtent(firstDiskBlock)) {
+            extents.get(extents.size() - 1).length += length;
+        } else {
+            extents.add(new Extent(firstDiskBlock, length));
+        }
+        firstModifiedExtent = Math.min(firstModifiedExtent, extents.size() - 1);
+    }
+
+    /**
+     * Maps file block to another disk block, e.g. a block of a hole. Extent which holds it is
+     * split into up to three, the new block is merged with neighbour extents it continues.
+     */
+    public void replaceBlock(int fileBlock, int diskBlock) {
+        for (int i = 0; i < extents.size(); i++) {
+            Extent extent = extents.get(i);
+            if (fileBlock < extent.length) {
+                List<Extent> parts = new ArrayList<>(3);
+                if (fileBlock > 0) {
+                    parts.add(new Extent(extent.startBlock, fileBlock));
+                }
+                parts.add(new Extent(diskBlock, 1));
+                if (fileBlock + 1 < extent.length) {
+                    int rest = extent.isHole() ? Extent.HOLE : extent.startBlock + fileBlock + 1;
+                    parts.add(new Extent(rest, extent.length - fileBlock - 1));
+                }
+                extents.remove(i);
+                extents.addAll(i, parts);
+                int replaced = fileBlock > 0 ? i + 1 : i;
+                mergeWithNext(replaced);
+                if (replaced > 0 && mergeWithNext(replaced - 1)) {
+                    replaced--;
+                }
+                firstModifiedExtent = Math.min(firstModifiedExtent, Math.min(i, replaced));
+                return;
+            }
+            fileBlock -= extent.length;
+        }
+    }
+
+    /**
+     * Merges extent with the next one if both are holes or the next one continues it on disk
+     *
+     * @return whether extents were merged
+     */
+    private boolean mergeWithNext(int index) {
+        if (index + 1 >= extents.size()) {
+            return false;
+        }
+        Extent extent = extents.get(index);
+        Extent next = extents.get(index + 1);
+        boolean holes = extent.isHole() && next.isHole();
+        if (!holes && (extent.isHole() || next.isHole() || extent.getEndBlock() != next.startBlock)) {
+            return false;
+        }
+        extent.length += next.length;
+        extents.remove(index + 1);
+        return true;
+    }
+
+    /**
+     * Unmaps the last block of the file
+     *
+     * @return index of disk block which was unmapped or -1 if file has no blocks or the block is in a hole
+     */
+    public int removeLastBlock() {
+        if (extents.isEmpty()) {
+            return -1;
+        }
+        Extent lastExtent = extents.get(extents.size() - 1);
+        lastExtent.length--;
+        if (lastExtent.length == 0) {
+            extents.remove(extents.size() - 1);
+        }
+        // if the extent was removed, its slot on disk has to be updated
+        firstModifiedExtent = Math.min(firstModifiedExtent, lastExtent.length == 0 ? extents.size() : extents.size() - 1);
+        return lastExtent.isHole() ? -1 : lastExtent.getEndBlock();
+    }
 
     @Override
     public String toString() {
         return "FileDescriptor{" +
                 "fileLength=" + fileLength +
-                ", fileContentsBlocksIndexes=" + Arrays.toString(fileContentsBlocksIndexes) +
+                ", extents=" + extents +
                 '}';
     }
 }
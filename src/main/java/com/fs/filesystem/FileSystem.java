@@ -1,54 +1,169 @@
 package com.fs.filesystem;
 
+import com.fs.iosystem.BlockCache;
+import com.fs.iosystem.IOScheduler;
 import com.fs.iosystem.IOSystem;
 import com.fs.ldisk.LDisk;
 import com.fs.utils.FileSystemConfig;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 public class FileSystem {
+    /**
+     * Returned instead of a disk block for a block which stays in memory until it is flushed
+     */
+    private static final int DELAYED_BLOCK = -2;
 
     public IOSystem ioSystem;
+    public Superblock superblock;
     public BitSet bitmap;
+    public BlockAllocator allocator;
     public FileDescriptor[] descriptors;
     public Directory directory;
     public OpenFileTable openFileTable;
+    /**
+     * Journal of metadata updates or null if disk was formatted without it
+     */
+    public Journal journal;
+    /**
+     * Data blocks by their contents, null if disk was formatted without dedup
+     */
+    private FingerprintIndex fingerprints;
+    /**
+     * Runtime metrics, see {@link FileSystemMetrics#register} to publish them through JMX
+     */
+    public final FileSystemMetrics metrics = new FileSystemMetrics(this);
+    /**
+     * Metadata blocks modified since the last flush: bitmap blocks (disk block indexes),
+     * descriptor blocks (index among descriptor blocks) and directory blocks (index in directory file)
+     */
+    private final BitSet dirtyBitmapBlocks = new BitSet();
+    private final BitSet dirtyDescriptorBlocks = new BitSet();
+    private final BitSet dirtyDirectoryBlocks = new BitSet();
+    /**
+     * Descriptors whose extent blocks were modified since the last flush
+     */
+    private final BitSet dirtyExtentDescriptors = new BitSet();
+    /**
+     * Blocks which files don't use anymore but the disk can still reference until the next
+     * flush, they are freed when it is committed
+     */
+    private final List<Extent> blocksFreedAfterFlush = new ArrayList<>();
+    /**
+     * Mount reads only the superblock and the bitmap, descriptor blocks and the directory are
+     * read on first access. Loading is synchronized on loadedDescriptorBlocks.
+     */
+    private final BitSet loadedDescriptorBlocks = new BitSet();
+    private volatile boolean directoryLoaded;
+    /**
+     * Incremented by every metadata change, flushedSequence is the value which was written
+     * by the last flush. A flush which finds its changes written by a flush of another thread
+     * doesn't write them again, so concurrent operations share one journal commit.
+     */
+    private long changeSequence;
+    private long flushedSequence;
+    private long metadataFlushInterval = FileSystemConfig.METADATA_FLUSH_INTERVAL;
+    private volatile long lastMetadataFlush = System.currentTimeMillis();
+    private FileSystemLocks locks;
+    /**
+     * Scheduler which transfers runs of whole blocks or null if they go straight to IOSystem
+     */
+    private IOScheduler ioScheduler;
     /**
      * @author Medynskyi Mykola
      *
-     * This constructor initialise bitmap and sets for first 8 bits - true flag.
-     * This means that first 8 blocks on disk are reserved for bitmap (1 block, 8 bytes in it),
-     * descriptors (6 blocks, 16 bytes per descriptor (4 bytes for file length and 12 for file
-     * content blocks indexes), so in one block we have 4 descriptors) and 1 block for directory
-     * (this block contains entries from directory, each of them are 8 bytes (4 bytes for file name
-     * and 4 for descriptor index)). We also initialize first descriptor which contains indexes
-     * to one data blocks of directory.
+     * This constructor formats the disk with default number of descriptors, see
+     * {@link #FileSystem(IOSystem, int)}.
      *
      * @param ioSystem
      *
      */
     public FileSystem(IOSystem ioSystem) {
+        this(ioSystem, FileSystemConfig.NUMBER_OF_DESCRIPTORS);
+    }
+
+    /**
+     * Formats the disk with linear directory, see {@link #FileSystem(IOSystem, int, int)}
+     */
+    public FileSystem(IOSystem ioSystem, int numberOfDescriptors) {
+        this(ioSystem, numberOfDescriptors, 0);
+    }
+
+    /**
+     * This constructor formats the disk. Block length and number of blocks are taken from the disk,
+     * the layout is computed by {@link Superblock#forGeometry} and written to block 0 together
+     * with the bitmap. For the default geometry first 8 blocks on disk are reserved: block 0
+     * for superblock and bitmap (8 bytes in it), descriptors (6 blocks, 16 bytes per descriptor
+     * (4 bytes for file length, 8 for the first extent and 4 for the indirect extent block),
+     * so in one block we have 4 descriptors) and 1 block for directory (this block contains entries from directory,
+     * each of them are 8 bytes (4 bytes for file name and 4 for descriptor index)). We also
+     * initialize first descriptor which contains indexes to one data blocks of directory.
+     *
+     * With {@link Superblock#FEATURE_HASHED_DIRECTORY} directory gets all its blocks at format
+     * time, twice as many slots as there are descriptors, so probing stays short.
+     *
+     * @param ioSystem
+     * @param numberOfDescriptors number of descriptors including the directory descriptor
+     * @param features FEATURE_ flags of {@link Superblock}
+     */
+    public FileSystem(IOSystem ioSystem, int numberOfDescriptors, int features) {
         this.ioSystem = ioSystem;
+        superblock = Superblock.forGeometry(ioSystem.getBlocksAmount(), ioSystem.getBlockLength(), numberOfDescriptors, features);
+        locks = new FileSystemLocks(false, superblock.numberOfDescriptors);
+
+        ByteBuffer superblockBuffer = ByteBuffer.allocate(superblock.blockLength);
+        superblock.write(superblockBuffer);
+        ioSystem.writeBlock(0, superblockBuffer.array());
+        if (superblock.hasFeature(Superblock.FEATURE_JOURNAL)) {
+            // transaction left by the previous file system on this disk must not be replayed
+            journal = new Journal(ioSystem, superblock);
+            journal.discard();
+        }
 
-        // bitmap setting true: 1 for bitmap, 6 for descriptors, 3 for directory
-        bitmap = new BitSet(FileSystemConfig.BLOCKS_AMOUNT);
-        bitmap.set(0,8,true);
+        // bitmap setting true: superblock and bitmap, descriptors, first block of directory
+        int dataBlocksStartingPosition = superblock.dataBlocksStart;
+        bitmap = new BitSet(superblock.blocksAmount);
+        bitmap.set(0, dataBlocksStartingPosition + 1, true);
+        allocator = new BlockAllocator(bitmap, dataBlocksStartingPosition, superblock.blocksAmount,
+                superblock.hasReferenceCounts() ? new byte[superblock.blocksAmount] : null);
+        fingerprints = superblock.hasFeature(Superblock.FEATURE_DEDUP) ? new FingerprintIndex() : null;
         saveBitMapToDisk(bitmap);
 
-        directory = new Directory();
-        descriptors = new FileDescriptor[FileSystemConfig.NUMBER_OF_DESCRIPTORS];
-        // index where data blocks starts (maybe it will better to change in later)
-        int dataBlocksStartingPosition = 7;
-        // initializing descriptor for directory TODO: save directory descriptor to disk
-        descriptors[0] = new FileDescriptor(0,
-                new int[]{dataBlocksStartingPosition, -1, -1});
+        descriptors = new FileDescriptor[superblock.numberOfDescriptors];
+        // initializing descriptor for directory
+        descriptors[0] = new FileDescriptor(0);
+        descriptors[0].appendBlock(dataBlocksStartingPosition);
+        if (superblock.hasFeature(Superblock.FEATURE_HASHED_DIRECTORY)) {
+            int entriesPerBlock = superblock.getDirectoryEntriesPerBlock();
+            int numberOfDirectoryBlocks = (2 * numberOfDescriptors + entriesPerBlock - 1) / entriesPerBlock;
+            for (int i = 1; i < numberOfDirectoryBlocks; i++) {
+                if (appendNewBlock(0) == -1) {
+                    throw new IllegalArgumentException("Disk is too small for hashed directory");
+                }
+            }
+            directory = new Directory(numberOfDirectoryBlocks * entriesPerBlock);
+            saveBitMapToDisk(bitmap);
+        } else {
+            directory = new Directory();
+        }
 
         openFileTable = new OpenFileTable();
-        openFileTable.entries[0] = new OpenFileTableEntry();
+        OpenFileTableEntry directoryEntry = new OpenFileTableEntry(superblock.blockLength);
         // OFT first entry for directory
-        openFileTable.entries[0].fileDescriptorIndex = 0;
+        directoryEntry.fileDescriptorIndex = 0;
+        openFileTable.setDirectoryEntry(directoryEntry);
+        loadedDescriptorBlocks.set(0, superblock.numberOfDescriptorBlocks);
+        directoryLoaded = true;
 
         saveDescriptorsToDisk();
         saveDirectoryToDisk();
@@ -57,25 +172,80 @@ public class FileSystem {
      * @author Medynskyi Mykola
      * @contributor Nikita Pupov: implemented reading bitmap from disk
      *
-     * initializing file system from disk
+     * initializing file system from disk. Layout is read from the superblock, disks without
+     * superblock are mounted with the legacy layout and upgraded to the current one.
+     * Only the superblock and the bitmap are read here, descriptors and directory blocks are
+     * read when they are used for the first time.
      */
     public FileSystem(LDisk ldisk) {
-        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(FileSystemConfig.BLOCK_LENGTH);
-
-        byte[] blockBytes = diskBlockBuffer.array();
-        byte[] bitMapBytes = Arrays.copyOfRange(blockBytes, 0, FileSystemConfig.BITMAP_LENGTH_ON_DISK);
         this.ioSystem = new IOSystem(ldisk);
+        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(ioSystem.getBlockLength());
         ioSystem.readBlock(0, diskBlockBuffer);
-        descriptors = new FileDescriptor[FileSystemConfig.NUMBER_OF_DESCRIPTORS];
-        blockBytes = diskBlockBuffer.array();
-        bitMapBytes = Arrays.copyOfRange(blockBytes, 0, FileSystemConfig.BITMAP_LENGTH_ON_DISK);
-        bitmap = BitSet.valueOf(bitMapBytes);
+        superblock = Superblock.read(diskBlockBuffer);
+        if (superblock == null) {
+            superblock = Superblock.legacy();
+        }
+        if (superblock.blockLength != ldisk.blockLength || superblock.blocksAmount > ldisk.blocksAmount) {
+            throw new IllegalStateException("Disk geometry doesn't match superblock " + superblock);
+        }
+        if (superblock.hasFeature(Superblock.FEATURE_JOURNAL)) {
+            journal = new Journal(ioSystem, superblock);
+            journal.replay();
+        }
+
+        descriptors = new FileDescriptor[superblock.numberOfDescriptors];
+        locks = new FileSystemLocks(false, superblock.numberOfDescriptors);
+        bitmap = readBitMapFromDisk();
+        if (superblock.hasReferenceCounts()) {
+            byte[] referenceCounts = readMetadataBytes(superblock.getReferenceCountsOffset(), superblock.getReferenceCountsLength());
+            allocator = new BlockAllocator(bitmap, superblock.dataBlocksStart, superblock.blocksAmount, referenceCounts);
+            fingerprints = superblock.hasFeature(Superblock.FEATURE_DEDUP) ? new FingerprintIndex() : null;
+        } else {
+            allocator = new BlockAllocator(bitmap, superblock.dataBlocksStart, superblock.blocksAmount);
+        }
         openFileTable = new OpenFileTable();
-        openFileTable.entries[0] = new OpenFileTableEntry();
+        OpenFileTableEntry directoryEntry = new OpenFileTableEntry(superblock.blockLength);
         // OFT first entry for directory
-        openFileTable.entries[0].fileDescriptorIndex = 0;
-        readDescriptorsFromDisk();
-        readDirectoryFromDisk();
+        directoryEntry.fileDescriptorIndex = 0;
+        openFileTable.setDirectoryEntry(directoryEntry);
+        if (superblock.isLegacy()) {
+            // descriptors are rewritten with the current layout, so they are read now
+            readDescriptorsFromDisk();
+            readDirectoryFromDisk();
+            upgradeLegacyLayout();
+        }
+    }
+
+    /**
+     * Turns concurrent mode on or off. In concurrent mode files are locked with read/write locks,
+     * so reads of one file don't block each other and operations on different files run in
+     * parallel, see {@link FileSystemLocks}. Every thread should use its own entry of the open
+     * file table. Mode must be set before the file system is shared between threads.
+     */
+    public void setConcurrent(boolean concurrent) {
+        locks = new FileSystemLocks(concurrent, superblock.numberOfDescriptors);
+    }
+
+    /**
+     * Sends runs of whole blocks which are read or written by files through the scheduler,
+     * so transfers of different threads to adjacent blocks are merged. null - straight to IOSystem.
+     */
+    public void setIOScheduler(IOScheduler ioScheduler) {
+        this.ioScheduler = ioScheduler;
+    }
+
+    /**
+     * Legacy disks have the bitmap at the beginning of block 0 and three block indexes in
+     * each descriptor. The superblock fits in block 0 before the bitmap, so the disk is
+     * rewritten with the current layout of the same geometry.
+     */
+    private void upgradeLegacyLayout() {
+        superblock = Superblock.forGeometry(superblock.blocksAmount, superblock.blockLength, superblock.numberOfDescriptors);
+        ByteBuffer superblockBuffer = ByteBuffer.allocate(superblock.blockLength);
+        superblock.write(superblockBuffer);
+        ioSystem.writeBlock(0, superblockBuffer.array());
+        saveBitMapToDisk(bitmap);
+        saveDescriptorsToDisk();
     }
 
     /**
@@ -85,33 +255,42 @@ public class FileSystem {
      * @return index of file in OFT
      */
     public int open(String fileName) {
+        long start = System.nanoTime();
+        Lock directoryLock = locks.directoryLock(fileName);
+        directoryLock.lock();
+        try {
+            return openLocked(fileName);
+        } finally {
+            directoryLock.unlock();
+            metrics.recordLatency(FileSystemMetrics.Operation.OPEN, start);
+        }
+    }
+
+    private int openLocked(String fileName) {
         int fileDescriptorIndex = findDescriptorIndexByFileName(fileName);
         if(fileDescriptorIndex == -1) {
             System.out.println("ERROR! FILE " + fileName + " DOESN'T EXIST");
             return -1;
         }
 
-        if(openFileTable.getOFTEntryIndexByFDIndex(fileDescriptorIndex) != -1) {
-            System.out.println("ERROR! FILE " + fileName + " ALREADY OPENED");
-            return -1;
-        }
-
-        int freeOFTEntryIndex = openFileTable.getOFTFreeEntryIndex();
-        if(freeOFTEntryIndex == -1) {
-            System.out.println("ERROR! NO MORE SPACE IN OFT");
-            return -1;
-        }
-
-        OpenFileTableEntry openFileTableEntry = new OpenFileTableEntry();
+        OpenFileTableEntry openFileTableEntry = new OpenFileTableEntry(superblock.blockLength);
         openFileTableEntry.fileDescriptorIndex = fileDescriptorIndex;
 
         //read first block of file to the buffer in OFT if file is not empty
-        ByteBuffer bytes = ByteBuffer.allocate(FileSystemConfig.BLOCK_LENGTH);
-        ioSystem.readBlock(descriptors[fileDescriptorIndex].fileContentsBlocksIndexes[0], bytes);
+        ByteBuffer bytes = ByteBuffer.allocate(superblock.blockLength);
+        loadDescriptor(fileDescriptorIndex);
+        readFileBlock(fileDescriptorIndex, 0, bytes);
         openFileTableEntry.fileBlockInBuffer = 0;
         openFileTableEntry.readWriteBuffer = bytes.array();
+        // first block is loaded here, so reading from the start of file counts as sequential
+        openFileTableEntry.lastReadBlock = 0;
 
-        openFileTable.entries[freeOFTEntryIndex] = openFileTableEntry;
+        // file can be opened several times, every open gets its own entry
+        int freeOFTEntryIndex = openFileTable.addEntry(openFileTableEntry);
+        if(freeOFTEntryIndex == -1) {
+            System.out.println("ERROR! NO MORE SPACE IN OFT");
+            return -1;
+        }
 
         return freeOFTEntryIndex;
     }
@@ -125,12 +304,23 @@ public class FileSystem {
      * @return 1 if everything is OK
      */
     public int close(int OFTEntryIndex) {
-        if(OFTEntryIndex < 0 || OFTEntryIndex >= OpenFileTable.OFT_NUMBER_OF_ENTRIES) {
-            System.out.println("ERROR! WRONG INDEX");
-            return -1;
+        long start = System.nanoTime();
+        Lock fileLock = lockEntry(OFTEntryIndex, true);
+        int status;
+        try {
+            status = closeLocked(OFTEntryIndex);
+        } finally {
+            fileLock.unlock();
+        }
+        if (status == 1) {
+            flushMetadata();
         }
+        metrics.recordLatency(FileSystemMetrics.Operation.CLOSE, start);
+        return status;
+    }
 
-        OpenFileTableEntry entry = openFileTable.entries[OFTEntryIndex];
+    private int closeLocked(int OFTEntryIndex) {
+        OpenFileTableEntry entry = OFTEntryIndex <= 0 ? null : openFileTable.getEntry(OFTEntryIndex);
 
         if(entry == null) {
             System.out.println("ERROR! WRONG INDEX");
@@ -139,22 +329,63 @@ public class FileSystem {
 
         FileDescriptor fileDescriptor = descriptors[entry.fileDescriptorIndex];
 
-        //when buffer closes, we must write buffer content to OFT
+        //when buffer closes, we must write buffer content to the block which is in the buffer
+        //(at the block boundary it is not the block of the current position)
         if(fileDescriptor.fileLength > 0) {
+            flushEntryBuffer(entry);
+            flushDelayedBlocks(entry.fileDescriptorIndex);
+        }
 
-            int currentBlockNumber = entry.getCurrentDataBlockPosition();
-
-            int currentBlockNumberOnDisk = fileDescriptor.fileContentsBlocksIndexes[currentBlockNumber];
+        //remove OFT entry
+        openFileTable.removeEntry(OFTEntryIndex);
+        if (fileDescriptor.compressed && openFileTable.getOFTEntryIndexByFDIndex(entry.fileDescriptorIndex) == -1) {
+            // rewritten compressed blocks are dropped when the last entry of the file is closed
+            getCompressedBlocks(entry.fileDescriptorIndex).compact();
+        }
+        return 1;
+    }
 
-            if(currentBlockNumberOnDisk != -1) {
-                ioSystem.writeBlock(currentBlockNumberOnDisk, entry.readWriteBuffer);
+    /**
+     * Locks file of the entry and checks that the entry wasn't closed in the meantime
+     *
+     * @param exclusive lock for writing if true, for reading otherwise
+     * @return locked lock, no-op lock if the index is wrong (the operation reports it)
+     */
+    private Lock lockEntry(int OFTEntryIndex, boolean exclusive) {
+        while (true) {
+            OpenFileTableEntry entry = OFTEntryIndex > 0 ? openFileTable.getEntry(OFTEntryIndex) : null;
+            if (entry == null) {
+                return FileSystemLocks.NO_LOCK;
             }
+            ReadWriteLock fileLock = locks.fileLock(entry.fileDescriptorIndex);
+            Lock lock = exclusive ? fileLock.writeLock() : fileLock.readLock();
+            lock.lock();
+            if (openFileTable.getEntry(OFTEntryIndex) == entry) {
+                return lock;
+            }
+            lock.unlock();
         }
+    }
 
-        //remove OFT entry
-        openFileTable.entries[OFTEntryIndex] = null;
-
-        return 1;
+    /**
+     * Locks file of the entry for an operation which only reads the file. Reads can still
+     * write: buffers of other entries of the file are flushed (see {@link #synchronizeSharedFile})
+     * and the own modified buffer is written back when the read moves to another block, both
+     * can allocate blocks. The read lock is taken only when neither can happen, otherwise the
+     * write lock. While the read lock is held no entry can modify its buffer, so entries which are
+     * opened meanwhile have nothing to flush.
+     *
+     * @return locked lock, no-op lock if the index is wrong (the operation reports it)
+     */
+    private Lock lockEntryForRead(int OFTEntryIndex) {
+        Lock lock = lockEntry(OFTEntryIndex, false);
+        OpenFileTableEntry entry = OFTEntryIndex > 0 ? openFileTable.getEntry(OFTEntryIndex) : null;
+        if (entry == null || (!entry.bufferModified
+                && openFileTable.getOFTEntryIndexesByFDIndex(entry.fileDescriptorIndex).size() < 2)) {
+            return lock;
+        }
+        lock.unlock();
+        return lockEntry(OFTEntryIndex, true);
     }
 
     /**
@@ -173,60 +404,165 @@ public class FileSystem {
      *
      */
     public int create(String fileName) {
+        return create(fileName, false);
+    }
+
+    /**
+     * Creates file, see {@link #create(String)}. Blocks of a compressed file are compressed
+     * one by one and packed into its disk blocks, see {@link CompressedBlocks}.
+     *
+     * @param compressed whether blocks of the file are compressed
+     */
+    public int create(String fileName, boolean compressed) {
         if (fileName.length() < 1 || fileName.length() > FileSystemConfig.MAXIMUM_FILE_NAME_LENGTH) {
             System.out.println("ERROR! File name is larger than maximum length or it is less than 1");
             return FileSystemConfig.ERROR;
         }
-        // Checking if there is already file in the directory with name: fileName
-        for (int i = 0; i < directory.listOfEntries.size(); i++) {
-            if (directory.listOfEntries.get(i).fileName.equals(fileName)) {
-                destroy(fileName);
-            }
+        long start = System.nanoTime();
+        Lock directoryLock = locks.directoryLock(fileName);
+        int status;
+        directoryLock.lock();
+        try {
+            status = createLocked(fileName, compressed);
+        } finally {
+            directoryLock.unlock();
         }
-        // searching free descriptor
-        int freeDescriptorIndex = -1;
-        for (int i = 0; i < descriptors.length; i++) {
-            if (descriptors[i] == null) {
-                freeDescriptorIndex = i;
-                break;
-            }
+        metadataChanged();
+        metrics.recordLatency(FileSystemMetrics.Operation.CREATE, start);
+        return status;
+    }
+
+    private int createLocked(String fileName, boolean compressed) {
+        // Checking if there is already file in the directory with name: fileName
+        if (findDescriptorIndexByFileName(fileName) != -1) {
+            destroyLocked(fileName);
         }
+        int freeDescriptorIndex = claimFreeDescriptor();
         if (freeDescriptorIndex == -1) {
             System.out.println("ERROR! THERE IS NO FREE DESCRIPTOR IN THE FILESYSTEM");
             return FileSystemConfig.ERROR;
         }
-        if (directory.listOfEntries.size() % FileSystemConfig.MAXIMUM_DIRECTORY_ENTRIES_PER_BLOCK == 0 && directory.listOfEntries.size() > 0) {
-            int freeBlockIndex = searchFreeDataBlock(bitmap);
-            bitmap.set(freeBlockIndex,true);
-            saveBitMapToDisk(bitmap);
-            for (int i = 0; i < descriptors[0].fileContentsBlocksIndexes.length; i++) {
-                if (descriptors[0].fileContentsBlocksIndexes[i] == -1) {
-                    descriptors[0].fileContentsBlocksIndexes[i] = freeBlockIndex;
-                    break;
+        descriptors[freeDescriptorIndex].compressed = compressed;
+        int firstBlock = appendNewBlock(freeDescriptorIndex);
+        if (firstBlock == -1) {
+            releaseDescriptor(freeDescriptorIndex);
+            System.out.println("ERROR! THERE IS NO FREE SPACE ON DISK");
+            return FileSystemConfig.ERROR;
+        }
+        // freed blocks are not zeroed, the first block is. Log of compressed blocks starts empty.
+        ioSystem.writeBlock(firstBlock, new byte[superblock.blockLength]);
+
+        Lock directoryFileLock = locks.fileLock(0).writeLock();
+        directoryFileLock.lock();
+        try {
+            Directory directory = loadDirectory();
+            if (directory.isFull()) {
+                System.out.println("ERROR! THERE IS NO FREE SPACE IN THE DIRECTORY");
+                releaseDescriptor(freeDescriptorIndex);
+                return FileSystemConfig.ERROR;
+            }
+            if (!directory.isHashed() && directory.listOfEntries.size() % superblock.getDirectoryEntriesPerBlock() == 0 && directory.listOfEntries.size() > 0) {
+                if (appendNewBlock(0) == -1) {
+                    System.out.println("ERROR! THERE IS NO FREE SPACE FOR THE DIRECTORY");
+                    releaseDescriptor(freeDescriptorIndex);
+                    return FileSystemConfig.ERROR;
                 }
             }
+            int slot = directory.addEntryToDirectory(fileName, freeDescriptorIndex);
+            if (slot == -1) {
+                // lazily read hashed directory finds out it is full only while probing
+                System.out.println("ERROR! THERE IS NO FREE SPACE IN THE DIRECTORY");
+                releaseDescriptor(freeDescriptorIndex);
+                return FileSystemConfig.ERROR;
+            }
+            markDirectoryDirty(slot, slot);
+        } finally {
+            directoryFileLock.unlock();
         }
-        directory.addEntryToDirectory(fileName, freeDescriptorIndex);
-
-        int freeBlockIndex = searchFreeDataBlock(bitmap);
+        return FileSystemConfig.SUCCESS;
+    }
 
+    /**
+     * Takes the first free descriptor slot
+     *
+     * @return index of descriptor or -1 if all are taken
+     */
+    private int claimFreeDescriptor() {
+        for (int i = 0; i < descriptors.length; i++) {
+            if (loadDescriptor(i) == null) {
+                Lock descriptorLock = locks.descriptorLock(i);
+                descriptorLock.lock();
+                try {
+                    if (descriptors[i] == null) {
+                        descriptors[i] = new FileDescriptor(0);
+                        return i;
+                    }
+                } finally {
+                    descriptorLock.unlock();
+                }
+            }
+        }
+        return -1;
+    }
 
-        bitmap.set(freeBlockIndex,true);
+    /**
+     * Frees blocks of the descriptor which was claimed, but its file wasn't created
+     */
+    private void releaseDescriptor(int descriptorIndex) {
+        for (Extent extent : descriptors[descriptorIndex].extents) {
+            if (!extent.isHole()) {
+                freeBlocks(extent.startBlock, extent.length);
+            }
+        }
+        Lock descriptorLock = locks.descriptorLock(descriptorIndex);
+        descriptorLock.lock();
+        descriptors[descriptorIndex] = null;
+        descriptorLock.unlock();
+    }
 
-        descriptors[freeDescriptorIndex] = new FileDescriptor(0, new int[]{freeBlockIndex,-1,-1});
-        saveBitMapToDisk(bitmap);
-        saveDirectoryToDisk();
-        saveDescriptorsToDisk();
-        return FileSystemConfig.SUCCESS;
+    /**
+     * Returns blocks to the allocator. Blocks which become free are discarded, see
+     * {@link IOSystem#discardBlocks}, blocks shared with other files only lose a reference.
+     */
+    private void freeBlocks(int firstBlock, int numberOfBlocks) {
+        locks.allocatorLock.lock();
+        try {
+            // contents are dropped while blocks are still taken, so nobody gets them meanwhile
+            if (!superblock.hasReferenceCounts()) {
+                ioSystem.discardBlocks(firstBlock, numberOfBlocks);
+            } else {
+                for (int block = firstBlock; block < firstBlock + numberOfBlocks; block++) {
+                    if (!allocator.isShared(block)) {
+                        ioSystem.discardBlocks(block, 1);
+                    }
+                }
+            }
+            allocator.free(firstBlock, numberOfBlocks);
+            for (int block = firstBlock; fingerprints != null && block < firstBlock + numberOfBlocks; block++) {
+                if (allocator.isFree(block)) {
+                    fingerprints.remove(block);
+                }
+            }
+        } finally {
+            locks.allocatorLock.unlock();
+        }
+        markBitmapDirty(firstBlock, numberOfBlocks);
     }
 
+    /**
+     * @return the first free data block, disk bitmap is searched with the allocator summary
+     */
     public int searchFreeDataBlock(BitSet bits) {
-        for (int i = 0; i < bits.size(); i++) {
-            if (!bits.get(i)) {
-                return i;
+        if (bits == bitmap) {
+            locks.allocatorLock.lock();
+            try {
+                return allocator.findFreeBlock(superblock.dataBlocksStart);
+            } finally {
+                locks.allocatorLock.unlock();
             }
         }
-        return -1;
+        int freeBlockIndex = bits.nextClearBit(superblock.dataBlocksStart);
+        return freeBlockIndex < superblock.blocksAmount ? freeBlockIndex : -1;
     }
 
     /**
@@ -251,44 +587,178 @@ public class FileSystem {
             System.out.println("ERROR! File name is larger than maximum length or it is equal to zero");
             return FileSystemConfig.ERROR;
         }
+        long start = System.nanoTime();
+        Lock directoryLock = locks.directoryLock(fileName);
+        int status;
+        directoryLock.lock();
+        try {
+            status = destroyLocked(fileName);
+        } finally {
+            directoryLock.unlock();
+        }
+        metadataChanged();
+        metrics.recordLatency(FileSystemMetrics.Operation.DESTROY, start);
+        return status;
+    }
+
+    private int destroyLocked(String fileName) {
         int descriptorIndex = findDescriptorIndexByFileName(fileName);
         if (descriptorIndex == -1) {
             System.out.println("ERROR! There is no file with file name: " + fileName);
             return FileSystemConfig.ERROR;
         }
 
-        for(int i=0;i<openFileTable.entries.length;i++) {
-            if(openFileTable.entries[i] != null && openFileTable.entries[i].fileDescriptorIndex == descriptorIndex) {
-                System.out.println("ERROR! You must close file before destroying it");
-                return FileSystemConfig.ERROR;
-            }
+        if(openFileTable.getOFTEntryIndexByFDIndex(descriptorIndex) != -1) {
+            System.out.println("ERROR! You must close file before destroying it");
+            return FileSystemConfig.ERROR;
         }
 
-        for (int i = 0; i < descriptors[descriptorIndex].fileContentsBlocksIndexes.length; i++) {
-            if (descriptors[descriptorIndex].fileContentsBlocksIndexes[i] != -1) {
-                bitmap.set(descriptors[descriptorIndex].fileContentsBlocksIndexes[i], false);
-                saveBitMapToDisk(bitmap);
-                ioSystem.writeBlock(descriptors[descriptorIndex].fileContentsBlocksIndexes[i], new byte[64]);
+        // descriptor block must be in memory before it is marked modified
+        loadDescriptor(descriptorIndex);
+        Lock directoryFileLock = locks.fileLock(0).writeLock();
+        directoryFileLock.lock();
+        try {
+            Directory directory = loadDirectory();
+            // in the linear layout the last entry is moved into the slot of the removed one
+            int lastSlot = directory.listOfEntries.size() - 1;
+            DirectoryEntry removedEntry = directory.removeEntryFromDirectory(fileName);
+            markDirectoryDirty(removedEntry.slot, removedEntry.slot);
+            if (!directory.isHashed()) {
+                markDirectoryDirty(lastSlot, lastSlot);
             }
+            if (!directory.isHashed() && directory.listOfEntries.size() % superblock.getDirectoryEntriesPerBlock() == 0 && directory.listOfEntries.size() > 0) {
+
+                freeLastBlock(0);
+                locks.dirtyLock.lock();
+                dirtyDirectoryBlocks.clear(descriptors[0].getNumberOfBlocks());
+                locks.dirtyLock.unlock();
+            }
+        } finally {
+            directoryFileLock.unlock();
         }
 
-        directory.listOfEntries.remove(findDirectoryEntryIndex(descriptorIndex));
+        // file is not in the directory anymore, so nobody can open it
+        Lock fileLock = locks.fileLock(descriptorIndex).writeLock();
+        fileLock.lock();
+        List<Extent> freedBlocks = new ArrayList<>();
+        try {
+            FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+            for (Extent extent : fileDescriptor.extents) {
+                if (!extent.isHole()) {
+                    freedBlocks.add(extent);
+                }
+            }
+            for (int block : getExtentBlocks(fileDescriptor)) {
+                freedBlocks.add(new Extent(block, 1));
+            }
+        } finally {
+            fileLock.unlock();
+        }
+        Lock descriptorLock = locks.descriptorLock(descriptorIndex);
+        descriptorLock.lock();
         descriptors[descriptorIndex] = null;
-        if (directory.listOfEntries.size() % FileSystemConfig.MAXIMUM_DIRECTORY_ENTRIES_PER_BLOCK == 0 && directory.listOfEntries.size() > 0) {
+        descriptorLock.unlock();
+        markDescriptorDirty(descriptorIndex);
+        // blocks are discarded instead of being zeroed, once the descriptor is gone from the disk
+        freeBlocksAfterFlush(freedBlocks);
+        return FileSystemConfig.SUCCESS;
 
-            for (int i = descriptors[0].fileContentsBlocksIndexes.length-1; i >= 0; i--) {
-                if (descriptors[0].fileContentsBlocksIndexes[i] != -1) {
-                    bitmap.set(descriptors[0].fileContentsBlocksIndexes[i], false);
-                    descriptors[0].fileContentsBlocksIndexes[i] = -1;
-                    break;
+    }
+
+    /**
+     * Creates file fileName (an existing one is replaced) which shares all data blocks of file
+     * sourceName, so only metadata is written. Shared block is copied when one of the files
+     * writes to it, see {@link #writeSharedBlock}. Disk must be formatted with
+     * {@link Superblock#FEATURE_CLONE} or {@link Superblock#FEATURE_DEDUP}, compressed files
+     * can't be cloned.
+     *
+     * @param sourceName name of the cloned file
+     * @param fileName name of the clone
+     */
+    public int cloneFile(String sourceName, String fileName) {
+        if (!superblock.hasReferenceCounts()) {
+            System.out.println("ERROR! DISK WAS FORMATTED WITHOUT SHARED BLOCKS");
+            return FileSystemConfig.ERROR;
+        }
+        if (sourceName.equals(fileName)) {
+            System.out.println("ERROR! File can't be cloned into itself");
+            return FileSystemConfig.ERROR;
+        }
+        int OFTEntryIndex = open(sourceName);
+        if (OFTEntryIndex == -1) {
+            return FileSystemConfig.ERROR;
+        }
+        if (descriptors[openFileTable.getEntry(OFTEntryIndex).fileDescriptorIndex].compressed) {
+            System.out.println("ERROR! Compressed file can't be cloned");
+            close(OFTEntryIndex);
+            return FileSystemConfig.ERROR;
+        }
+        if (create(fileName) == FileSystemConfig.ERROR) {
+            close(OFTEntryIndex);
+            return FileSystemConfig.ERROR;
+        }
+        int status;
+        // nobody can open the clone before it gets its blocks
+        Lock directoryLock = locks.directoryLock(fileName);
+        directoryLock.lock();
+        try {
+            Lock fileLock = lockEntryForRead(OFTEntryIndex);
+            try {
+                status = cloneLocked(OFTEntryIndex, findDescriptorIndexByFileName(fileName));
+            } finally {
+                fileLock.unlock();
+            }
+        } finally {
+            directoryLock.unlock();
+        }
+        close(OFTEntryIndex);
+        if (status == FileSystemConfig.ERROR) {
+            destroy(fileName);
+        }
+        metadataChanged();
+        return status;
+    }
+
+    private int cloneLocked(int OFTEntryIndex, int descriptorIndex) {
+        OpenFileTableEntry entry = openFileTable.getEntry(OFTEntryIndex);
+        FileDescriptor source = descriptors[entry.fileDescriptorIndex];
+        FileDescriptor clone = descriptors[descriptorIndex];
+        // modified buffers of the source reach the disk before its blocks are shared
+        synchronizeSharedFile(entry);
+
+        // block the clone got at create is given back
+        while (clone.getNumberOfBlocks() > 0) {
+            freeLastBlock(descriptorIndex);
+        }
+        locks.allocatorLock.lock();
+        try {
+            if (!reserveExtentBlocks(clone, source.extents.size())) {
+                System.out.println("ERROR! THERE IS NO FREE SPACE ON DISK");
+                return FileSystemConfig.ERROR;
+            }
+            for (Extent extent : source.extents) {
+                if (extent.isHole()) {
+                    clone.appendHole(extent.length);
+                    continue;
+                }
+                for (int block = extent.startBlock; block < extent.getEndBlock(); block++) {
+                    if (!allocator.addReference(block)) {
+                        // blocks shared so far are given back when the clone is destroyed
+                        System.out.println("ERROR! BLOCK " + block + " IS SHARED BY TOO MANY FILES");
+                        return FileSystemConfig.ERROR;
+                    }
+                    clone.appendBlock(block);
                 }
+                markBitmapDirty(extent.startBlock, extent.length);
             }
+        } finally {
+            locks.allocatorLock.unlock();
         }
-        saveDirectoryToDisk();
-        saveDescriptorsToDisk();
-        saveBitMapToDisk(bitmap);
+        clone.fileLength = source.fileLength;
+        clone.countOfOccupiedBytes = source.countOfOccupiedBytes;
+        markDescriptorDirty(descriptorIndex);
+        markExtentsDirty(descriptorIndex);
         return FileSystemConfig.SUCCESS;
-
     }
 
     /**
@@ -305,68 +775,142 @@ public class FileSystem {
      *   - the end of the buffer is reached
      *
      * @param OFTEntryIndex index of file in openFileTable.
-     * @param memArea       starting main memory address.
+     * @param memArea       main memory, filled from its position up to its limit, the position
+     *                      is not moved. Can be direct or a slice of a bigger buffer.
      * @param count         number of bytes to be read.
      * @return int    number of bytes read.
      */
     public int read(int OFTEntryIndex, ByteBuffer memArea, int count) {
-        if(OFTEntryIndex <= 0 || OFTEntryIndex >= OpenFileTable.OFT_NUMBER_OF_ENTRIES) {
-            System.out.println("ERROR! WRONG INDEX");
-            return -1;
+        long start = System.nanoTime();
+        Lock fileLock = lockEntryForRead(OFTEntryIndex);
+        int read;
+        try {
+            read = readLocked(OFTEntryIndex, memArea, count);
+        } finally {
+            fileLock.unlock();
         }
-        if (count <= 0) {
+        metrics.addBytesRead(read);
+        metrics.recordLatency(FileSystemMetrics.Operation.READ, start);
+        return read;
+    }
+
+    /**
+     * Scattering read, fills buffers one after another from the current position in one pass
+     * over the file. Every buffer is filled from its position to its limit and its position is
+     * moved after the read bytes. Buffers can be direct, whole blocks are copied into them
+     * without passing through the heap.
+     *
+     * @param OFTEntryIndex index of file in openFileTable.
+     * @param dsts          buffers to fill.
+     * @return number of bytes read, 0 at the end of file, -1 if the entry is wrong.
+     */
+    public long read(int OFTEntryIndex, ByteBuffer[] dsts) {
+        long start = System.nanoTime();
+        Lock fileLock = lockEntryForRead(OFTEntryIndex);
+        int read;
+        try {
+            read = checkReadEntry(OFTEntryIndex) ? readBuffers(openFileTable.getEntry(OFTEntryIndex), dsts) : -1;
+        } finally {
+            fileLock.unlock();
+        }
+        metrics.addBytesRead(read);
+        metrics.recordLatency(FileSystemMetrics.Operation.READ, start);
+        return read;
+    }
+
+    private int readLocked(int OFTEntryIndex, ByteBuffer memArea, int count) {
+        if (!checkReadEntry(OFTEntryIndex) || count <= 0) {
             return -1;
         }
+        // memArea is filled from its position up to its limit, its own position is not moved
+        ByteBuffer dst = memArea.duplicate();
+        dst.limit(dst.position() + Math.min(count, dst.remaining()));
+        return readBuffers(openFileTable.getEntry(OFTEntryIndex), new ByteBuffer[]{dst});
+    }
 
-        OpenFileTableEntry entry = openFileTable.entries[OFTEntryIndex];
+    /**
+     * @return whether the entry holds an opened file which has something to read
+     */
+    private boolean checkReadEntry(int OFTEntryIndex) {
+        OpenFileTableEntry entry = OFTEntryIndex <= 0 ? null : openFileTable.getEntry(OFTEntryIndex);
 
         if(entry == null) {
             System.out.println("ERROR! WRONG INDEX");
-            return -1;
+            return false;
         }
 
+        return descriptors[entry.fileDescriptorIndex].fileLength != 0;
+    }
+
+    private int readBuffers(OpenFileTableEntry entry, ByteBuffer[] dsts) {
         FileDescriptor fileDescriptor = descriptors[entry.fileDescriptorIndex];
+        // flushes buffers of other entries, the caller holds the write lock then, see lockEntryForRead
+        synchronizeSharedFile(entry);
 
-        if(fileDescriptor.fileLength == 0) {
-            return -1;
+        if (entry.currentPositionInFile >= fileDescriptor.fileLength) {
+            return 0;
         }
-
-        if (writeBuffer(entry, fileDescriptor) == -1) {
+        if (writeBuffer(entry, fileDescriptor, false) == -1) {
             return -1;
         }
 
         // find current position inside readWriteBuffer
-        int currentBufferPosition = entry.currentPositionInFile % FileSystemConfig.BLOCK_LENGTH;
-        int currentMemoryPosition = 0;
+        int currentBufferPosition = entry.getCurrentBufferPosition();
+        int total = 0;
 
-        int counter = 0;
+        for (ByteBuffer dst : dsts) {
+            int bytesToRead = dst.remaining();
+            int counter = 0;
 
-        // read count bytes starting at readWriteBuffer[currentBufferPosition] to memArea
-        for (int i = 0; i < count && i < memArea.array().length; i++) {
-            // if end of file, then return number of bytes read
-            if (entry.currentPositionInFile == fileDescriptor.fileLength) {
-                return counter;
-            } else {
+            // read bytes starting at readWriteBuffer[currentBufferPosition] to the buffer,
+            // a whole block (or the rest of it) is copied at once
+            while (counter < bytesToRead && entry.currentPositionInFile < fileDescriptor.fileLength) {
                 // if end of block, then write buffer to the disk, then read next block to RWBuffer
-                if (currentBufferPosition == FileSystemConfig.BLOCK_LENGTH) {
-
-                    writeBuffer(entry, fileDescriptor);
-
+                if (currentBufferPosition == superblock.blockLength) {
+                    // whole blocks which are contiguous on disk are read straight into the buffer
+                    int wholeBlocks = Math.min(bytesToRead - counter, fileDescriptor.fileLength - entry.currentPositionInFile) / superblock.blockLength;
+                    int nextFileBlock = entry.getCurrentDataBlockPosition();
+                    // holes are read as zeros without touching the disk
+                    int holes = fileDescriptor.compressed ? 0 : Math.min(wholeBlocks, fileDescriptor.getHoleBlocks(nextFileBlock));
+                    if (holes > 0) {
+                        dst.put(new byte[holes * superblock.blockLength]);
+                        counter += holes * superblock.blockLength;
+                        entry.currentPositionInFile += holes * superblock.blockLength;
+                        continue;
+                    }
+                    // compressed blocks go through the buffer one by one
+                    int run = fileDescriptor.compressed ? 0 : Math.min(wholeBlocks, fileDescriptor.getContiguousBlocks(nextFileBlock));
+                    if (run > 0) {
+                        readDiskBlocks(fileDescriptor.getDiskBlock(nextFileBlock), run, dst);
+                        dst.position(dst.position() + run * superblock.blockLength);
+                        entry.lastReadBlock = nextFileBlock + run - 1;
+                        counter += run * superblock.blockLength;
+                        entry.currentPositionInFile += run * superblock.blockLength;
+                        continue;
+                    }
+                    if (writeBuffer(entry, fileDescriptor, false) == -1) {
+                        break;
+                    }
                     currentBufferPosition = 0;
                 }
 
-                // read 1 byte to memory
-                memArea.put(currentMemoryPosition, entry.readWriteBuffer[currentBufferPosition]);
+                int chunk = Math.min(superblock.blockLength - currentBufferPosition, bytesToRead - counter);
+                chunk = Math.min(chunk, fileDescriptor.fileLength - entry.currentPositionInFile);
+                dst.put(entry.readWriteBuffer, currentBufferPosition, chunk);
+
                 // update positions, counter
-                counter++;
-                currentBufferPosition++;
-                currentMemoryPosition++;
+                counter += chunk;
+                currentBufferPosition += chunk;
                 // entry.currentPositionInFile - points to first byte after last accessed
-                entry.currentPositionInFile++;
+                entry.currentPositionInFile += chunk;
+            }
+            total += counter;
+            if (counter < bytesToRead) {
+                break;
             }
         }
 
-        return counter;
+        return total;
     }
 
     /**
@@ -386,54 +930,88 @@ public class FileSystem {
      * @return int    number of bytes written to file.
      */
     public int write(int OFTEntryIndex, byte[] memArea, int count) {
-        if(OFTEntryIndex <= 0 || OFTEntryIndex >= OpenFileTable.OFT_NUMBER_OF_ENTRIES) {
-            System.out.println("ERROR! WRONG INDEX");
-            return -1;
+        long start = System.nanoTime();
+        Lock fileLock = lockEntry(OFTEntryIndex, true);
+        int written;
+        try {
+            written = writeLocked(OFTEntryIndex, memArea, count);
+        } finally {
+            fileLock.unlock();
+        }
+        metadataChanged();
+        metrics.addBytesWritten(written);
+        metrics.recordLatency(FileSystemMetrics.Operation.WRITE, start);
+        return written;
+    }
+
+    /**
+     * Gathering write, writes buffers one after another at the current position in one pass
+     * over the file. Every buffer is written from its position to its limit and its position
+     * is moved after the written bytes. Buffers can be direct or read-only.
+     *
+     * @param OFTEntryIndex index of file in openFileTable.
+     * @param srcs          buffers to write.
+     * @return number of bytes written, -1 if the entry is wrong or there is nothing to write.
+     */
+    public long write(int OFTEntryIndex, ByteBuffer[] srcs) {
+        long start = System.nanoTime();
+        Lock fileLock = lockEntry(OFTEntryIndex, true);
+        int written;
+        try {
+            written = writeBuffers(OFTEntryIndex, srcs);
+        } finally {
+            fileLock.unlock();
         }
+        metadataChanged();
+        metrics.addBytesWritten(written);
+        metrics.recordLatency(FileSystemMetrics.Operation.WRITE, start);
+        return written;
+    }
+
+    private int writeLocked(int OFTEntryIndex, byte[] memArea, int count) {
         if (count <= 0) {
             return -1;
         }
+        return writeBuffers(OFTEntryIndex, new ByteBuffer[]{ByteBuffer.wrap(memArea, 0, Math.min(count, memArea.length))});
+    }
 
-        OpenFileTableEntry entry = openFileTable.entries[OFTEntryIndex];
+    private int writeBuffers(int OFTEntryIndex, ByteBuffer[] srcs) {
+        OpenFileTableEntry entry = OFTEntryIndex <= 0 ? null : openFileTable.getEntry(OFTEntryIndex);
 
         if(entry == null) {
             System.out.println("ERROR! WRONG INDEX");
             return -1;
         }
+        int count = 0;
+        for (ByteBuffer src : srcs) {
+            count += src.remaining();
+        }
+        if (count <= 0) {
+            return -1;
+        }
 
         FileDescriptor fileDescriptor = descriptors[entry.fileDescriptorIndex];
 
         if(fileDescriptor.fileLength == -1) {
             return -1;
         }
+        synchronizeSharedFile(entry);
 
-        //if currentPosition == end of file
-        if (entry.currentPositionInFile == 3 * FileSystemConfig.BLOCK_LENGTH) {
-            return 0;
-        }
-
-        if (writeBuffer(entry, fileDescriptor) == -1) {
+        if (writeBuffer(entry, fileDescriptor, true) == -1) {
             return -1;
         }
 
         // find current position inside readWriteBffer
-        int currentBufferPosition = entry.currentPositionInFile % FileSystemConfig.BLOCK_LENGTH;
-        int currentMemoryPosition = 0;
-
-        int counter = 0;
+        int currentBufferPosition = entry.getCurrentBufferPosition();
 
         if (fileDescriptor.fileLength == 0) {
-            int newDiskBlock = -1;
-            for (int i = 8; i < 64; i++) {
-                if (!bitmap.get(i)) {
-                    newDiskBlock = i;
-                    break;
-                }
+            // first block of the file is allocated by create
+            if (fileDescriptor.getNumberOfBlocks() == 0 && appendNewBlock(entry.fileDescriptorIndex) == -1) {
+                return -1;
             }
             entry.fileBlockInBuffer = 0;
-            fileDescriptor.fileContentsBlocksIndexes[entry.fileBlockInBuffer] = newDiskBlock;
-            fileDescriptor.fileLength += FileSystemConfig.BLOCK_LENGTH;
-            bitmap.set(newDiskBlock, true);
+            fileDescriptor.fileLength += superblock.blockLength;
+            markDescriptorDirty(entry.fileDescriptorIndex);
         }
 
         //number of occupied bytes in the file
@@ -449,33 +1027,77 @@ public class FileSystem {
             fileDescriptor.countOfOccupiedBytes += count + countOfAddedBytes;
         }
 
-        // write count bytes from memArea to ReadWriteBuffer starting at currentBufferPosition
-        for (int i = 0; i < count && i < memArea.length; i++) {
-
-            // if end of buffer, check if we can load next block (allocate or read, but previously write that buffer to the disk)
-            if (currentBufferPosition == FileSystemConfig.BLOCK_LENGTH) {
-                if (entry.fileBlockInBuffer < 2) {
-                    currentBufferPosition = 0;
-                    writeBuffer(entry, fileDescriptor);
-                } else {
-                    break;
+        int total = 0;
+        for (ByteBuffer src : srcs) {
+            int bytesToWrite = src.remaining();
+            int counter = 0;
+
+            // write bytes from the buffer to ReadWriteBuffer starting at currentBufferPosition,
+            // a whole block (or the rest of it) is copied at once
+            while (counter < bytesToWrite) {
+
+                // if end of buffer, check if we can load next block (allocate or read, but previously write that buffer to the disk)
+                if (currentBufferPosition == superblock.blockLength) {
+                    // compressed blocks and blocks which can be shared go through the buffer one by one
+                    boolean blockByBlock = fileDescriptor.compressed || superblock.hasReferenceCounts();
+                    int wholeBlocks = blockByBlock ? 0 : (bytesToWrite - counter) / superblock.blockLength;
+                    if (wholeBlocks > 0) {
+                        // whole blocks are written straight from the buffer, as many as are contiguous on disk,
+                        // blocks before them get their disk blocks first
+                        flushEntryBuffer(entry);
+                        flushDelayedBlocks(entry.fileDescriptorIndex);
+                        int nextFileBlock = entry.getCurrentDataBlockPosition();
+                        int missingBlocks = nextFileBlock + wholeBlocks - fileDescriptor.getNumberOfBlocks();
+                        if (missingBlocks > 0) {
+                            appendNewBlocks(entry.fileDescriptorIndex, missingBlocks);
+                            fileDescriptor.fileLength = Math.max(fileDescriptor.fileLength, fileDescriptor.getNumberOfBlocks() * superblock.blockLength);
+                        }
+                        int firstDiskBlock = -1;
+                        int run = 0;
+                        while (run < wholeBlocks) {
+                            int diskBlock = mapFileBlock(entry.fileDescriptorIndex, nextFileBlock + run);
+                            if (diskBlock < 0 || (run > 0 && diskBlock != firstDiskBlock + run)) {
+                                break;
+                            }
+                            firstDiskBlock = run == 0 ? diskBlock : firstDiskBlock;
+                            run++;
+                        }
+                        if (run == 0) {
+                            break;
+                        }
+                        writeDiskBlocks(firstDiskBlock, run, src);
+                        src.position(src.position() + run * superblock.blockLength);
+                        counter += run * superblock.blockLength;
+                        entry.currentPositionInFile += run * superblock.blockLength;
+                        continue;
+                    }
+                    if (writeBuffer(entry, fileDescriptor, true) == -1) {
+                        break;
+                    }
+                    currentBufferPosition = 0;
                 }
-            }
 
-            // write 1 byte to file
-            entry.readWriteBuffer[currentBufferPosition] = memArea[currentMemoryPosition];
-            entry.bufferModified = true;
+                int chunk = Math.min(superblock.blockLength - currentBufferPosition, bytesToWrite - counter);
+                src.get(entry.readWriteBuffer, currentBufferPosition, chunk);
+                entry.bufferModified = true;
 
-            // update positions, writtenCount
-            counter++;
-            currentBufferPosition++;
-            currentMemoryPosition++;
-            entry.currentPositionInFile++;
+                // update positions, writtenCount
+                counter += chunk;
+                currentBufferPosition += chunk;
+                entry.currentPositionInFile += chunk;
+            }
+            total += counter;
+            if (counter < bytesToWrite) {
+                break;
+            }
         }
-        saveBitMapToDisk(bitmap);
-        saveDirectoryToDisk();
-        saveDescriptorsToDisk();
-        return counter;
+        // the last block of an imported file can be partly filled
+        fileDescriptor.fileLength = Math.max(fileDescriptor.fileLength, entry.currentPositionInFile);
+        if (locks.concurrent) {
+            // readers of other entries don't touch this buffer, they read the disk
+            flushEntryBuffer(entry);
+        }
+        return total;
     }
 
     /**
@@ -494,35 +1116,468 @@ public class FileSystem {
      * @return int    status.
      */
     public int seek(int OFTEntryIndex, int pos) {
-        if(OFTEntryIndex <= 0 || OFTEntryIndex >= OpenFileTable.OFT_NUMBER_OF_ENTRIES) {
+        long start = System.nanoTime();
+        Lock fileLock = lockEntry(OFTEntryIndex, true);
+        try {
+            return seekLocked(OFTEntryIndex, pos);
+        } finally {
+            fileLock.unlock();
+            metrics.recordLatency(FileSystemMetrics.Operation.SEEK, start);
+        }
+    }
+
+    private int seekLocked(int OFTEntryIndex, int pos) {
+        OpenFileTableEntry entry = OFTEntryIndex <= 0 ? null : openFileTable.getEntry(OFTEntryIndex);
+        if(entry == null) {
             System.out.println("ERROR! WRONG INDEX");
             return -1;
         }
 
-        FileDescriptor fileDescriptor = descriptors[openFileTable.entries[OFTEntryIndex].fileDescriptorIndex];
+        FileDescriptor fileDescriptor = descriptors[entry.fileDescriptorIndex];
 
-        if (pos > fileDescriptor.fileLength || pos < 0) {
+        // position after the end of file is allowed, a write there leaves a hole before it
+        if (pos < 0) {
             return -1;
         }
 
-        OpenFileTableEntry entry = openFileTable.entries[OFTEntryIndex];
-
+        synchronizeSharedFile(entry);
         entry.currentPositionInFile = pos;
-        writeBuffer(entry, fileDescriptor);
+        entry.resetReadahead();
+        // blocks of holes and blocks after the end of file get disk blocks when they are written
+        boolean allocate = pos <= fileDescriptor.fileLength && !fileDescriptor.isHole(entry.getCurrentDataBlockPosition());
+        writeBuffer(entry, fileDescriptor, allocate);
 
         return 1;
     }
 
-    private int writeBuffer(OpenFileTableEntry entry, FileDescriptor fileDescriptor) {
+    /**
+     * Creates file fileName (an existing one is replaced) with the contents of a host file.
+     * All blocks are allocated first and then filled straight from the host file channel, see
+     * {@link IOSystem#transferFrom}, so the contents are not collected in a heap array.
+     *
+     * @param hostPath path of the file on the host
+     * @param fileName name of the file in the file system
+     * @return number of imported bytes or -1
+     */
+    public int importFile(String hostPath, String fileName) {
+        try (FileChannel source = FileChannel.open(Paths.get(hostPath), StandardOpenOption.READ)) {
+            if (source.size() > Integer.MAX_VALUE - superblock.blockLength) {
+                System.out.println("ERROR! FILE " + hostPath + " IS TOO BIG");
+                return -1;
+            }
+            if (create(fileName) == FileSystemConfig.ERROR) {
+                return -1;
+            }
+            int OFTEntryIndex = open(fileName);
+            if (OFTEntryIndex == -1) {
+                return -1;
+            }
+            int imported;
+            Lock fileLock = lockEntry(OFTEntryIndex, true);
+            try {
+                imported = importLocked(OFTEntryIndex, source, (int) source.size());
+            } finally {
+                fileLock.unlock();
+            }
+            close(OFTEntryIndex);
+            if (imported == -1) {
+                destroy(fileName);
+            }
+            metrics.addBytesWritten(imported);
+            return imported;
+        } catch (IOException e) {
+            System.out.println("ERROR! CAN'T READ " + hostPath + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private int importLocked(int OFTEntryIndex, FileChannel source, int size) {
+        OpenFileTableEntry entry = openFileTable.getEntry(OFTEntryIndex);
+        FileDescriptor fileDescriptor = descriptors[entry.fileDescriptorIndex];
+
+        int numberOfBlocks = (size + superblock.blockLength - 1) / superblock.blockLength;
+        int missingBlocks = numberOfBlocks - fileDescriptor.getNumberOfBlocks();
+        if (missingBlocks > 0 && appendNewBlocks(entry.fileDescriptorIndex, missingBlocks) < missingBlocks) {
+            System.out.println("ERROR! THERE IS NO FREE SPACE ON DISK");
+            return -1;
+        }
+        long imported = 0;
+        int fileBlock = 0;
+        try {
+            // one transfer for every run of blocks which are contiguous on disk
+            while (fileBlock < numberOfBlocks) {
+                int run = Math.min(fileDescriptor.getContiguousBlocks(fileBlock), numberOfBlocks - fileBlock);
+                imported += ioSystem.transferFrom(source, fileDescriptor.getDiskBlock(fileBlock), run);
+                fileBlock += run;
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR! CAN'T IMPORT FILE: " + e.getMessage());
+            return -1;
+        }
+        fileDescriptor.fileLength = (int) imported;
+        fileDescriptor.countOfOccupiedBytes = (int) imported;
+        markDescriptorDirty(entry.fileDescriptorIndex);
+        return (int) imported;
+    }
+
+    /**
+     * Writes contents of file fileName to a host file (it is created or truncated). Runs of
+     * contiguous blocks go straight from the disk to the host file channel, see
+     * {@link IOSystem#transferTo}.
+     *
+     * @param fileName name of the file in the file system
+     * @param hostPath path of the file on the host
+     * @return number of exported bytes or -1
+     */
+    public int exportFile(String fileName, String hostPath) {
+        int OFTEntryIndex = open(fileName);
+        if (OFTEntryIndex == -1) {
+            return -1;
+        }
+        int exported;
+        Lock fileLock = lockEntryForRead(OFTEntryIndex);
+        try (FileChannel target = FileChannel.open(Paths.get(hostPath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            exported = exportLocked(OFTEntryIndex, target);
+        } catch (IOException e) {
+            System.out.println("ERROR! CAN'T EXPORT TO " + hostPath + ": " + e.getMessage());
+            exported = -1;
+        } finally {
+            fileLock.unlock();
+        }
+        close(OFTEntryIndex);
+        metrics.addBytesRead(exported);
+        return exported;
+    }
+
+    private int exportLocked(int OFTEntryIndex, FileChannel target) throws IOException {
+        OpenFileTableEntry entry = openFileTable.getEntry(OFTEntryIndex);
+        FileDescriptor fileDescriptor = descriptors[entry.fileDescriptorIndex];
+        // modified buffers of other entries of the file reach the disk first
+        synchronizeSharedFile(entry);
+
+        long length = Math.max(fileDescriptor.fileLength, 0);
+        long exported = 0;
+        int fileBlock = 0;
+        if (fileDescriptor.compressed) {
+            // blocks are decompressed one by one
+            ByteBuffer block = ByteBuffer.allocate(superblock.blockLength);
+            for (; exported < length; fileBlock++) {
+                block.clear();
+                readFileBlock(entry.fileDescriptorIndex, fileBlock, block);
+                block.limit((int) Math.min(superblock.blockLength, length - exported));
+                while (block.hasRemaining()) {
+                    exported += target.write(block);
+                }
+            }
+            return (int) exported;
+        }
+        while (exported < length) {
+            int holes = fileDescriptor.getHoleBlocks(fileBlock);
+            if (holes > 0) {
+                // holes are exported as zeros
+                ByteBuffer zeros = ByteBuffer.wrap(new byte[(int) Math.min((long) holes * superblock.blockLength, length - exported)]);
+                while (zeros.hasRemaining()) {
+                    exported += target.write(zeros);
+                }
+                fileBlock += holes;
+                continue;
+            }
+            int delayedIndex = fileBlock - fileDescriptor.getNumberOfBlocks();
+            if (delayedIndex >= 0) {
+                // delayed blocks are in memory
+                if (delayedIndex >= fileDescriptor.delayedBlocks.size()) {
+                    break;
+                }
+                ByteBuffer block = ByteBuffer.wrap(fileDescriptor.delayedBlocks.get(delayedIndex), 0,
+                        (int) Math.min(superblock.blockLength, length - exported));
+                while (block.hasRemaining()) {
+                    exported += target.write(block);
+                }
+                fileBlock++;
+                continue;
+            }
+            int run = fileDescriptor.getContiguousBlocks(fileBlock);
+            if (run == 0) {
+                break;
+            }
+            long bytes = Math.min((long) run * superblock.blockLength, length - exported);
+            ioSystem.transferTo(fileDescriptor.getDiskBlock(fileBlock), bytes, target);
+            exported += bytes;
+            fileBlock += run;
+        }
+        return (int) exported;
+    }
+
+    /**
+     * Reads blocks into buffer at its position, the position is not moved. Waits for the
+     * transfer when it goes through the scheduler.
+     */
+    private void readDiskBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        if (ioScheduler != null) {
+            ioScheduler.readBlocks(firstBlock, count, buffer).join();
+        } else {
+            ioSystem.readBlocks(firstBlock, count, buffer);
+        }
+    }
+
+    /**
+     * Writes blocks from buffer at its position, the position is not moved. Waits for the
+     * transfer when it goes through the scheduler.
+     */
+    private void writeDiskBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        if (ioScheduler != null) {
+            ioScheduler.writeBlocks(firstBlock, count, buffer).join();
+        } else {
+            ioSystem.writeBlocks(firstBlock, count, buffer);
+        }
+    }
+
+    /**
+     * Writes buffer of the entry to its block on disk if it was modified
+     */
+    private void flushEntryBuffer(OpenFileTableEntry entry) {
+        if (entry.fileBlockInBuffer == -1 || !entry.bufferModified) {
+            return;
+        }
+        writeFileBlock(entry.fileDescriptorIndex, entry.fileBlockInBuffer, entry.readWriteBuffer);
+        entry.bufferModified = false;
+    }
+
+    /**
+     * Reads block of the file into buffer at its position, the position is not moved. Block
+     * of a compressed file is decompressed, delayed block is copied from memory, block which
+     * is not mapped is read as zeros.
+     */
+    private void readFileBlock(int descriptorIndex, int fileBlock, ByteBuffer buffer) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        if (fileDescriptor.compressed) {
+            getCompressedBlocks(descriptorIndex).readBlock(fileBlock, buffer);
+            return;
+        }
+        int delayedIndex = fileBlock - fileDescriptor.getNumberOfBlocks();
+        if (delayedIndex >= 0 && delayedIndex < fileDescriptor.delayedBlocks.size()) {
+            buffer.duplicate().put(fileDescriptor.delayedBlocks.get(delayedIndex));
+            return;
+        }
+        int diskBlock = fileDescriptor.getDiskBlock(fileBlock);
+        if (diskBlock != -1) {
+            ioSystem.readBlock(diskBlock, buffer);
+        } else {
+            buffer.duplicate().put(new byte[superblock.blockLength]);
+        }
+    }
+
+    /**
+     * Writes block of the file, block of a compressed file is compressed, delayed block is
+     * kept in memory
+     */
+    private void writeFileBlock(int descriptorIndex, int fileBlock, byte[] buffer) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        if (fileDescriptor.compressed) {
+            if (!getCompressedBlocks(descriptorIndex).writeBlock(fileBlock, buffer)) {
+                System.out.println("ERROR! THERE IS NO FREE SPACE ON DISK");
+            }
+            return;
+        }
+        int delayedIndex = fileBlock - fileDescriptor.getNumberOfBlocks();
+        if (delayedIndex >= 0 && delayedIndex < fileDescriptor.delayedBlocks.size()) {
+            // buffer stays in use, so it is copied
+            System.arraycopy(buffer, 0, fileDescriptor.delayedBlocks.get(delayedIndex), 0, superblock.blockLength);
+            return;
+        }
+        int diskBlock = fileDescriptor.getDiskBlock(fileBlock);
+        if (diskBlock == -1) {
+            return;
+        }
+        if (superblock.hasReferenceCounts()) {
+            writeSharedBlock(descriptorIndex, fileBlock, diskBlock, buffer);
+            return;
+        }
+        ioSystem.writeBlock(diskBlock, buffer);
+    }
+
+    /**
+     * Writes block of the file on a disk where blocks can be shared. Block which is shared
+     * by several files is copied on write, so the other files don't see the change. With
+     * dedup, if some block already has the same contents, the file block is mapped to it and
+     * nothing is written.
+     *
+     * @param diskBlock disk block the file block is mapped to now
+     */
+    private void writeSharedBlock(int descriptorIndex, int fileBlock, int diskBlock, byte[] buffer) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        long fingerprint = fingerprints != null ? FingerprintIndex.fingerprint(buffer) : 0;
+        int newDiskBlock = diskBlock;
+        boolean write = true;
+        locks.allocatorLock.lock();
+        try {
+            int duplicate = fingerprints != null ? fingerprints.find(fingerprint) : -1;
+            if (duplicate != -1 && sameContents(duplicate, buffer)) {
+                if (duplicate == diskBlock) {
+                    // block doesn't change
+                    return;
+                }
+                // the file can need two more extents when its extent is split
+                if (reserveExtentBlocks(fileDescriptor, fileDescriptor.extents.size() + 2) && allocator.addReference(duplicate)) {
+                    newDiskBlock = duplicate;
+                    write = false;
+                }
+            }
+            if (write && allocator.isShared(diskBlock)) {
+                newDiskBlock = allocator.allocateBlock();
+                if (newDiskBlock == -1 || !reserveExtentBlocks(fileDescriptor, fileDescriptor.extents.size() + 2)) {
+                    if (newDiskBlock != -1) {
+                        allocator.free(newDiskBlock, 1);
+                    }
+                    System.out.println("ERROR! THERE IS NO FREE SPACE ON DISK");
+                    return;
+                }
+            }
+            if (newDiskBlock != diskBlock) {
+                fileDescriptor.replaceBlock(fileBlock, newDiskBlock);
+                allocator.free(diskBlock, 1);
+                if (fingerprints != null && allocator.isFree(diskBlock)) {
+                    fingerprints.remove(diskBlock);
+                }
+                markBitmapDirty(diskBlock, 1);
+                markBitmapDirty(newDiskBlock, 1);
+            }
+            if (write && fingerprints != null) {
+                fingerprints.put(newDiskBlock, fingerprint);
+            }
+        } finally {
+            locks.allocatorLock.unlock();
+        }
+        if (newDiskBlock != diskBlock) {
+            markDescriptorDirty(descriptorIndex);
+            markExtentsDirty(descriptorIndex);
+        }
+        if (write) {
+            ioSystem.writeBlock(newDiskBlock, buffer);
+        }
+    }
+
+    /**
+     * @return whether disk block holds the same bytes as the buffer
+     */
+    private boolean sameContents(int diskBlock, byte[] buffer) {
+        ByteBuffer contents = ByteBuffer.allocate(superblock.blockLength);
+        ioSystem.readBlock(diskBlock, contents);
+        return Arrays.equals(contents.array(), buffer);
+    }
+
+    private CompressedBlocks getCompressedBlocks(int descriptorIndex) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        synchronized (fileDescriptor) {
+            if (fileDescriptor.compressedBlocks == null) {
+                fileDescriptor.compressedBlocks = new CompressedBlocks(ioSystem, fileDescriptor, superblock.blockLength,
+                        () -> appendNewBlock(descriptorIndex), () -> freeLastBlock(descriptorIndex),
+                        n -> allocateCompressedLog(descriptorIndex, n), extents -> replaceCompressedLog(descriptorIndex, extents));
+            }
+            return fileDescriptor.compressedBlocks;
+        }
+    }
+
+    /**
+     * Allocates blocks for a compacted log of the compressed file, extent blocks for them are
+     * reserved as well
+     *
+     * @return allocated blocks or null if there is no room for them
+     */
+    private List<Extent> allocateCompressedLog(int descriptorIndex, int n) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        locks.allocatorLock.lock();
+        try {
+            List<Extent> extents = allocator.allocate(n, true);
+            if (extents == null) {
+                return null;
+            }
+            if (!reserveExtentBlocks(fileDescriptor, extents.size())) {
+                extents.forEach(allocator::free);
+                return null;
+            }
+            for (Extent extent : extents) {
+                markBitmapDirty(extent.startBlock, extent.length);
+            }
+            return extents;
+        } finally {
+            locks.allocatorLock.unlock();
+        }
+    }
+
+    /**
+     * Switches the compressed file to its compacted log. Old blocks are freed after the
+     * descriptor which doesn't reference them is flushed, so they are not reused while the
+     * disk still points to them.
+     */
+    private void replaceCompressedLog(int descriptorIndex, List<Extent> extents) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        List<Extent> oldExtents = fileDescriptor.extents;
+        fileDescriptor.extents = new ArrayList<>(extents);
+        fileDescriptor.firstModifiedExtent = 0;
+        markDescriptorDirty(descriptorIndex);
+        markExtentsDirty(descriptorIndex);
+        freeBlocksAfterFlush(oldExtents);
+    }
+
+    /**
+     * Frees blocks after the next metadata flush is committed. Called after the metadata which
+     * stops referencing them is marked modified, so that flush writes it.
+     */
+    private void freeBlocksAfterFlush(List<Extent> extents) {
+        locks.dirtyLock.lock();
+        blocksFreedAfterFlush.addAll(extents);
+        changeSequence++;
+        locks.dirtyLock.unlock();
+    }
+
+    /**
+     * Several entries can have the same file opened. Before one of them is used, modified
+     * buffers of the others are written to the disk and its own buffer is read again if it
+     * wasn't modified, so it sees what the other entries have written.
+     */
+    private void synchronizeSharedFile(OpenFileTableEntry entry) {
+        List<Integer> entryIndexes = openFileTable.getOFTEntryIndexesByFDIndex(entry.fileDescriptorIndex);
+        if (entryIndexes.size() < 2) {
+            return;
+        }
+        FileDescriptor fileDescriptor = descriptors[entry.fileDescriptorIndex];
+        for (int index : entryIndexes) {
+            OpenFileTableEntry otherEntry = openFileTable.getEntry(index);
+            if (otherEntry != null && otherEntry != entry) {
+                flushEntryBuffer(otherEntry);
+            }
+        }
+        if (!entry.bufferModified && entry.fileBlockInBuffer != -1) {
+            readFileBlock(entry.fileDescriptorIndex, entry.fileBlockInBuffer, ByteBuffer.wrap(entry.readWriteBuffer));
+        }
+    }
+
+    /**
+     * Loads block of the current position into the buffer, the buffer is written to disk
+     * before if it holds a different modified block
+     *
+     * @param allocate whether block after the end of file can be allocated
+     * @return -1 if block is not mapped and can't be allocated
+     */
+    private int writeBuffer(OpenFileTableEntry entry, FileDescriptor fileDescriptor, boolean allocate) {
         if (entry.fileBlockInBuffer == -1) {
             return -1;
         }
+        if (allocate && entry.fileBlockInBuffer == entry.getCurrentDataBlockPosition()
+                && findFileBlock(fileDescriptor, entry.fileBlockInBuffer) == -1) {
+            // buffer holds zeros of a hole which was read, the block is mapped before it is written
+            if (mapFileBlock(entry.fileDescriptorIndex, entry.fileBlockInBuffer) == -1) {
+                return -1;
+            }
+            entry.bufferModified = true;
+        }
         // if buffer holds different block
         if (entry.fileBlockInBuffer != (entry.getCurrentDataBlockPosition())) {
             if (entry.bufferModified) {
-                int diskBlock = fileDescriptor.fileContentsBlocksIndexes[entry.fileBlockInBuffer];
                 try {
-                    ioSystem.writeBlock(diskBlock, entry.readWriteBuffer);
+                    writeFileBlock(entry.fileDescriptorIndex, entry.fileBlockInBuffer, entry.readWriteBuffer);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -531,27 +1586,28 @@ public class FileSystem {
             try {
                 int newFileBlock = entry.getCurrentDataBlockPosition();
 
-                if (fileDescriptor.fileContentsBlocksIndexes[newFileBlock] == -1) {
-                    int newDiskBlock = -1;
-                    for (int i = 8; i < 64; i++) {
-                        if (!bitmap.get(i)) {
-                            newDiskBlock = i;
-                            break;
-                        }
-                    }
-                    if (newDiskBlock == -1) {
-                        return -1;
-                    }
-                    fileDescriptor.fileContentsBlocksIndexes[newFileBlock] = newDiskBlock;
-                    fileDescriptor.fileLength += FileSystemConfig.BLOCK_LENGTH;
-                    bitmap.set(newDiskBlock, true);
+                int newDiskBlock = findFileBlock(fileDescriptor, newFileBlock);
+                // block which gets a disk block now holds whatever was written to it before it was freed
+                boolean newBlock = newDiskBlock == -1 && allocate;
+                if (newBlock) {
+                    newDiskBlock = mapFileBlock(entry.fileDescriptorIndex, newFileBlock);
+                }
+                // holes are read as zeros
+                if (newDiskBlock == -1 && (allocate || !fileDescriptor.isHole(newFileBlock))) {
+                    return -1;
                 }
 
-                ByteBuffer temp = ByteBuffer.allocate(FileSystemConfig.BLOCK_LENGTH);
-                ioSystem.readBlock(fileDescriptor.fileContentsBlocksIndexes[newFileBlock], temp);
+                ByteBuffer temp = ByteBuffer.allocate(superblock.blockLength);
+                if (!newBlock) {
+                    readFileBlock(entry.fileDescriptorIndex, newFileBlock, temp);
+                }
                 entry.readWriteBuffer = temp.array();
-                entry.bufferModified = false;
+                // zeros of a new block reach the disk even if nothing is written to it
+                entry.bufferModified = newBlock && !fileDescriptor.compressed;
                 entry.fileBlockInBuffer = newFileBlock;
+                if (!allocate) {
+                    readAhead(entry, fileDescriptor, newFileBlock);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -559,14 +1615,395 @@ public class FileSystem {
         return 1;
     }
 
+    /**
+     * Tracks whether the entry reads its file sequentially. While it does, blocks after the
+     * one which was just read are prefetched into the block cache. The window starts with
+     * {@link FileSystemConfig#INITIAL_READAHEAD_BLOCKS} and doubles every time the next part
+     * is prefetched, which happens when less than half of the window is left ahead.
+     */
+    private void readAhead(OpenFileTableEntry entry, FileDescriptor fileDescriptor, int fileBlock) {
+        if (fileDescriptor.compressed) {
+            // disk blocks of a compressed file don't follow its file blocks
+            return;
+        }
+        boolean sequential = fileBlock == entry.lastReadBlock + 1;
+        entry.lastReadBlock = fileBlock;
+        if (!sequential) {
+            entry.readaheadWindow = 0;
+            entry.readaheadEnd = fileBlock + 1;
+            return;
+        }
+        if (entry.readaheadEnd - fileBlock - 1 > entry.readaheadWindow / 2) {
+            return;
+        }
+        entry.readaheadWindow = entry.readaheadWindow == 0 ? FileSystemConfig.INITIAL_READAHEAD_BLOCKS
+                : Math.min(2 * entry.readaheadWindow, FileSystemConfig.MAXIMUM_READAHEAD_BLOCKS);
+
+        int to = Math.min(fileBlock + 1 + entry.readaheadWindow, fileDescriptor.getNumberOfBlocks());
+        int block = Math.max(entry.readaheadEnd, fileBlock + 1);
+        while (block < to) {
+            int run = Math.min(fileDescriptor.getContiguousBlocks(block), to - block);
+            if (run == 0) {
+                // nothing to read in a hole
+                block += fileDescriptor.getHoleBlocks(block);
+                continue;
+            }
+            ioSystem.prefetchBlocks(fileDescriptor.getDiskBlock(block), run);
+            block += run;
+        }
+        entry.readaheadEnd = Math.max(entry.readaheadEnd, to);
+    }
+
+    /**
+     * Returns disk block of the file block. The block right after the last mapped block
+     * of the file is allocated, so the file grows by one block.
+     *
+     * Block written right after the end of file is delayed, see {@link #flushDelayedBlocks}.
+     *
+     * @return index of disk block, {@link #DELAYED_BLOCK} or -1 if block is not mapped and
+     * can't be allocated, see {@link #findFileBlock}
+     */
+    private int mapFileBlock(int descriptorIndex, int fileBlock) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        int diskBlock = findFileBlock(fileDescriptor, fileBlock);
+        if (diskBlock != -1) {
+            return diskBlock;
+        }
+        if (fileDescriptor.compressed) {
+            // compressed block gets its place on disk when it is written, blocks before it
+            // without records are read as zeros
+            fileDescriptor.fileLength = (fileBlock + 1) * superblock.blockLength;
+            markDescriptorDirty(descriptorIndex);
+            return fileBlock;
+        }
+        if (fileBlock < fileDescriptor.getNumberOfBlocks()) {
+            return fillHole(descriptorIndex, fileBlock);
+        }
+        if (fileBlock == fileDescriptor.getNumberOfBlocks() + fileDescriptor.delayedBlocks.size() && delayBlock(descriptorIndex)) {
+            fileDescriptor.fileLength = Math.max(fileDescriptor.fileLength, (fileBlock + 1) * superblock.blockLength);
+            return DELAYED_BLOCK;
+        }
+        // hole and blocks which can't be delayed follow the delayed blocks on disk
+        if (!flushDelayedBlocks(descriptorIndex)) {
+            return -1;
+        }
+        int missingBlocks = fileBlock - fileDescriptor.getNumberOfBlocks();
+        if (missingBlocks > 0 && !appendHole(descriptorIndex, missingBlocks)) {
+            return -1;
+        }
+        diskBlock = appendNewBlock(descriptorIndex);
+        if (diskBlock != -1) {
+            fileDescriptor.fileLength = Math.max(fileDescriptor.fileLength, (fileBlock + 1) * superblock.blockLength);
+        }
+        return diskBlock;
+    }
+
+    /**
+     * Adds a hole of the given number of blocks after the last block of the file
+     *
+     * @return false if file has no room for a new extent
+     */
+    private boolean appendHole(int descriptorIndex, int numberOfBlocks) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        if (!fileDescriptor.isHole(fileDescriptor.getNumberOfBlocks() - 1)
+                && !reserveExtentBlocks(fileDescriptor, fileDescriptor.extents.size() + 1)) {
+            return false;
+        }
+        fileDescriptor.appendHole(numberOfBlocks);
+        markDescriptorDirty(descriptorIndex);
+        markExtentsDirty(descriptorIndex);
+        return true;
+    }
+
+    /**
+     * Gives disk block to a block of a hole, the block after the disk block of the previous
+     * file block is preferred, so the file stays contiguous when the hole is filled in order
+     *
+     * @return index of the disk block or -1 if there is no free block or no room for new extents
+     */
+    private int fillHole(int descriptorIndex, int fileBlock) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        int previousDiskBlock = fileBlock > 0 ? fileDescriptor.getDiskBlock(fileBlock - 1) : -1;
+        int diskBlock;
+        locks.allocatorLock.lock();
+        try {
+            // hole can be split into three extents
+            if (!reserveExtentBlocks(fileDescriptor, fileDescriptor.extents.size() + 2)) {
+                return -1;
+            }
+            List<Extent> allocated = allocator.allocate(previousDiskBlock == -1 ? -1 : previousDiskBlock + 1, 1, false);
+            if (allocated == null) {
+                return -1;
+            }
+            diskBlock = allocated.get(0).startBlock;
+            fileDescriptor.replaceBlock(fileBlock, diskBlock);
+        } finally {
+            locks.allocatorLock.unlock();
+        }
+        markBitmapDirty(diskBlock, 1);
+        markDescriptorDirty(descriptorIndex);
+        markExtentsDirty(descriptorIndex);
+        return diskBlock;
+    }
+
+    /**
+     * @return index of disk block of the file block or -1 if it is not mapped. Compressed
+     * blocks have no fixed disk block, for them the file block itself is returned if it is
+     * inside the file.
+     */
+    private int findFileBlock(FileDescriptor fileDescriptor, int fileBlock) {
+        if (fileDescriptor.compressed) {
+            return (long) fileBlock * superblock.blockLength < fileDescriptor.fileLength ? fileBlock : -1;
+        }
+        int delayedIndex = fileBlock - fileDescriptor.getNumberOfBlocks();
+        if (delayedIndex >= 0 && delayedIndex < fileDescriptor.delayedBlocks.size()) {
+            return DELAYED_BLOCK;
+        }
+        return fileDescriptor.getDiskBlock(fileBlock);
+    }
+
+    /**
+     * Adds a delayed block after the end of file. Disk blocks for it and for the extent blocks
+     * it can need are reserved in the allocator, so other allocations can't take them. Blocks
+     * which can be shared get their disk blocks when they are written, like runs of whole blocks.
+     *
+     * @return false if block must be allocated now
+     */
+    private boolean delayBlock(int descriptorIndex) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        if (superblock.hasReferenceCounts()) {
+            return false;
+        }
+        if (fileDescriptor.delayedBlocks.size() >= FileSystemConfig.MAXIMUM_DELAYED_BLOCKS
+                && !flushDelayedBlocks(descriptorIndex)) {
+            return false;
+        }
+        int delayed = fileDescriptor.delayedBlocks.size();
+        // every delayed block can end up in its own extent
+        if (fileDescriptor.extents.size() + delayed + 1 > superblock.getMaximumExtentsPerFile()) {
+            return false;
+        }
+        locks.allocatorLock.lock();
+        try {
+            if (!allocator.reserve(getDelayedReservation(delayed + 1) - getDelayedReservation(delayed))) {
+                return false;
+            }
+        } finally {
+            locks.allocatorLock.unlock();
+        }
+        fileDescriptor.delayedBlocks.add(new byte[superblock.blockLength]);
+        return true;
+    }
+
+    /**
+     * @return number of blocks reserved for the given number of delayed blocks of a file: the
+     * blocks themselves, indirect and double indirect blocks and extent blocks for an extent
+     * per block
+     */
+    private int getDelayedReservation(int delayed) {
+        if (delayed == 0) {
+            return 0;
+        }
+        int extentsPerBlock = superblock.getExtentsPerBlock();
+        return delayed + 2 + (delayed + extentsPerBlock - 1) / extentsPerBlock;
+    }
+
+    /**
+     * Gives disk blocks to the delayed blocks of the file and writes them. They are allocated
+     * together, so interleaved writers don't fragment each other and the blocks get one
+     * contiguous run if there is one. Called with the file locked for writing.
+     *
+     * @return false if there was no free space for some of them, they are cut off the file
+     */
+    private boolean flushDelayedBlocks(int descriptorIndex) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        List<byte[]> blocks = fileDescriptor.delayedBlocks;
+        if (blocks.isEmpty()) {
+            return true;
+        }
+        int firstFileBlock = fileDescriptor.getNumberOfBlocks();
+        // blocks are mapped when they are not delayed anymore
+        fileDescriptor.delayedBlocks = new ArrayList<>();
+        int appended;
+        locks.allocatorLock.lock();
+        try {
+            // reserved blocks are released and allocated at once, nobody else can take them
+            allocator.release(getDelayedReservation(blocks.size()));
+            appended = appendNewBlocks(descriptorIndex, blocks.size());
+        } finally {
+            locks.allocatorLock.unlock();
+        }
+        int written = 0;
+        while (written < appended) {
+            int fileBlock = firstFileBlock + written;
+            int run = Math.min(fileDescriptor.getContiguousBlocks(fileBlock), appended - written);
+            // one write for every run of blocks which are contiguous on disk
+            ByteBuffer data = ByteBuffer.allocate(run * superblock.blockLength);
+            for (int i = 0; i < run; i++) {
+                data.put(blocks.get(written + i));
+            }
+            data.flip();
+            writeDiskBlocks(fileDescriptor.getDiskBlock(fileBlock), run, data);
+            written += run;
+        }
+        if (appended < blocks.size()) {
+            System.out.println("ERROR! THERE IS NO FREE SPACE ON DISK");
+            fileDescriptor.fileLength = Math.min(fileDescriptor.fileLength, (firstFileBlock + appended) * superblock.blockLength);
+            markDescriptorDirty(descriptorIndex);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unmaps the last block of the file and returns it to the allocator
+     */
+    private void freeLastBlock(int descriptorIndex) {
+        int diskBlock = descriptors[descriptorIndex].removeLastBlock();
+        if (diskBlock != -1) {
+            freeBlocks(diskBlock, 1);
+        }
+        markDescriptorDirty(descriptorIndex);
+        markExtentsDirty(descriptorIndex);
+    }
+
+    /**
+     * Allocates a disk block and maps it as the next block of the file, see {@link #appendNewBlocks}
+     *
+     * @return index of allocated disk block or -1 if there is no free block or no room for a new extent
+     */
+    private int appendNewBlock(int descriptorIndex) {
+        if (appendNewBlocks(descriptorIndex, 1) == 0) {
+            return -1;
+        }
+        List<Extent> extents = descriptors[descriptorIndex].extents;
+        return extents.get(extents.size() - 1).getEndBlock() - 1;
+    }
+
+    /**
+     * Allocates disk blocks and maps them as the next blocks of the file. Blocks right after
+     * the last extent are preferred, so the file stays in one extent while it is possible,
+     * and new blocks are asked to be contiguous.
+     *
+     * @return number of appended blocks, less than n if disk is full or file has no room for new extents
+     */
+    private int appendNewBlocks(int descriptorIndex, int n) {
+        FileDescriptor fileDescriptor = descriptors[descriptorIndex];
+        int appended = 0;
+        locks.allocatorLock.lock();
+        try {
+            n = Math.min(n, allocator.getAvailableBlocks());
+            if (n == 0) {
+                return 0;
+            }
+            Extent lastExtent = fileDescriptor.extents.isEmpty() ? null : fileDescriptor.extents.get(fileDescriptor.extents.size() - 1);
+            int goal = lastExtent == null || lastExtent.isHole() ? -1 : lastExtent.getEndBlock();
+            List<Extent> newExtents = allocator.allocate(goal, n, true);
+            boolean noRoomForExtent = false;
+            for (Extent extent : newExtents) {
+                markBitmapDirty(extent.startBlock, extent.length);
+                noRoomForExtent = noRoomForExtent || (!fileDescriptor.continuesLastExtent(extent.startBlock)
+                        && !reserveExtentBlocks(fileDescriptor, fileDescriptor.extents.size() + 1));
+                if (noRoomForExtent) {
+                    // the rest of blocks goes back
+                    allocator.free(extent);
+                    continue;
+                }
+                fileDescriptor.appendBlocks(extent.startBlock, extent.length);
+                appended += extent.length;
+            }
+        } finally {
+            locks.allocatorLock.unlock();
+        }
+        if (appended > 0) {
+            markDescriptorDirty(descriptorIndex);
+            markExtentsDirty(descriptorIndex);
+        }
+        return appended;
+    }
+
+    /**
+     * Makes sure that file has enough extent blocks to store given number of extents. The
+     * first extent is stored in the descriptor, next ones in the single indirect block and
+     * the rest in extent blocks referenced from the double indirect block.
+     *
+     * @return false if file can't have that many extents or there is no free block
+     */
+    private boolean reserveExtentBlocks(FileDescriptor fileDescriptor, int numberOfExtents) {
+        if (numberOfExtents > superblock.getMaximumExtentsPerFile()) {
+            return false;
+        }
+        int extentsPerBlock = superblock.getExtentsPerBlock();
+        if (numberOfExtents > 1 && fileDescriptor.indirectBlock == -1) {
+            fileDescriptor.indirectBlock = allocateMetadataBlock();
+            if (fileDescriptor.indirectBlock == -1) {
+                return false;
+            }
+        }
+        int neededExtentBlocks = (Math.max(0, numberOfExtents - 1 - extentsPerBlock) + extentsPerBlock - 1) / extentsPerBlock;
+        if (neededExtentBlocks > 0 && fileDescriptor.doubleIndirectBlock == -1) {
+            fileDescriptor.doubleIndirectBlock = allocateMetadataBlock();
+            if (fileDescriptor.doubleIndirectBlock == -1) {
+                return false;
+            }
+            // pointer to double indirect block is stored in the single indirect block
+            fileDescriptor.firstModifiedExtent = Math.min(fileDescriptor.firstModifiedExtent, 1);
+        }
+        while (fileDescriptor.extentBlocks.size() < neededExtentBlocks) {
+            int extentBlock = allocateMetadataBlock();
+            if (extentBlock == -1) {
+                return false;
+            }
+            fileDescriptor.extentBlocks.add(extentBlock);
+        }
+        return true;
+    }
+
+    /**
+     * @return index of allocated block or -1 if disk is full
+     */
+    private int allocateMetadataBlock() {
+        int block;
+        locks.allocatorLock.lock();
+        try {
+            block = allocator.allocateBlock();
+        } finally {
+            locks.allocatorLock.unlock();
+        }
+        if (block != -1) {
+            markBitmapDirty(block, 1);
+        }
+        return block;
+    }
+
+    /**
+     * @return indirect, double indirect and extent blocks of the file
+     */
+    private List<Integer> getExtentBlocks(FileDescriptor fileDescriptor) {
+        List<Integer> blocks = new ArrayList<>(fileDescriptor.extentBlocks);
+        if (fileDescriptor.indirectBlock != -1) {
+            blocks.add(fileDescriptor.indirectBlock);
+        }
+        if (fileDescriptor.doubleIndirectBlock != -1) {
+            blocks.add(fileDescriptor.doubleIndirectBlock);
+        }
+        return blocks;
+    }
+
     /**
      * @author Medynskyi Mykola
      *
      * This method prints the directory entries data, e.g. filename and size of file
      */
     public void listDirectory() {
-        for (DirectoryEntry entry: directory.listOfEntries) {
-            System.out.println(entry.fileName + " " + descriptors[entry.fileDescriptorIndex].countOfOccupiedBytes);
+        Lock directoryFileLock = locks.fileLock(0).readLock();
+        directoryFileLock.lock();
+        try {
+            for (DirectoryEntry entry: getDirectory().listOfEntries) {
+                System.out.println(entry.fileName + " " + loadDescriptor(entry.fileDescriptorIndex).countOfOccupiedBytes);
+            }
+        } finally {
+            directoryFileLock.unlock();
         }
     }
 
@@ -577,50 +2014,89 @@ public class FileSystem {
      * @return index of descriptor of file
      */
     private int findDescriptorIndexByFileName(String fileName) {
-        for (int i = 0; i < directory.listOfEntries.size(); i++) {
-            if (directory.listOfEntries.get(i).fileName.equals(fileName)) {
-                return directory.listOfEntries.get(i).fileDescriptorIndex;
-            }
+        Lock directoryFileLock = locks.fileLock(0).readLock();
+        directoryFileLock.lock();
+        try {
+            DirectoryEntry entry = loadDirectory().findEntry(fileName);
+            return entry == null ? -1 : entry.fileDescriptorIndex;
+        } finally {
+            directoryFileLock.unlock();
         }
-        return -1;
     }
 
     /**
-     * @author Medynskyi Mykola
+     * @author Nikita Pupov
+     * Update bitmap on disk. Bitmap starts right after the superblock and can span several blocks.
+     */
+    public void saveBitMapToDisk(BitSet bitmap) {
+        // reference counts follow the bitmap
+        int bitmapEnd = superblock.getReferenceCountsOffset() + superblock.getReferenceCountsLength();
+        for (int block = superblock.bitmapOffset / superblock.blockLength; block * superblock.blockLength < bitmapEnd; block++) {
+            writeBitMapBlock(block, copyBitMapBlock(bitmap, block));
+        }
+    }
+
+    /**
+     * Copies parts of the bitmap and of the reference counts which are stored in the given disk block,
+     * only this range of the bitmap is converted to bytes
      *
-     * @param descriptorIndex
-     * @return index of directory entry
+     * @param block index of disk block
+     * @return bytes at their offsets in the disk block, other bytes are zeros
      */
-    private int findDirectoryEntryIndex(int descriptorIndex) {
-        for (int i = 0; i < FileSystemConfig.NUMBER_OF_DESCRIPTORS - 1; i++) {
-            if (directory.listOfEntries.get(i) != null &&
-                    directory.listOfEntries.get(i).fileDescriptorIndex == descriptorIndex) {
-                return i;
-            }
+    private byte[] copyBitMapBlock(BitSet bitmap, int block) {
+        byte[] blockBytes = new byte[superblock.blockLength];
+        int blockStart = block * superblock.blockLength;
+        int blockEnd = blockStart + superblock.blockLength;
+        int from = Math.max(superblock.bitmapOffset, blockStart);
+        int to = Math.min(superblock.getReferenceCountsOffset(), blockEnd);
+        if (from < to) {
+            int firstBit = (from - superblock.bitmapOffset) * 8;
+            byte[] bits = bitmap.get(firstBit, firstBit + (to - from) * 8).toByteArray();
+            System.arraycopy(bits, 0, blockBytes, from - blockStart, bits.length);
         }
-        return -1;
+        byte[] referenceCounts = allocator.getReferenceCounts();
+        int countsOffset = superblock.getReferenceCountsOffset();
+        from = Math.max(countsOffset, blockStart);
+        to = Math.min(countsOffset + superblock.getReferenceCountsLength(), blockEnd);
+        if (referenceCounts != null && from < to) {
+            System.arraycopy(referenceCounts, from - countsOffset, blockBytes, from - blockStart, to - from);
+        }
+        return blockBytes;
     }
 
     /**
-     * @author Nikita Pupov
-     * Update bitmap on disk
+     * Writes parts of the bitmap and of the reference counts which are stored in the given disk block
+     *
+     * @param block index of disk block
+     * @param bitMapBytes bytes copied by {@link #copyBitMapBlock}
      */
-    public void saveBitMapToDisk(BitSet bitmap) {
-        //convert bitMap to byte array
-        byte[] bitSetBytes = bitmap.toByteArray();
+    private void writeBitMapBlock(int block, byte[] bitMapBytes) {
+        // bitmap and reference counts are one range, other bytes of the block can belong to the superblock
+        int blockStart = block * superblock.blockLength;
+        int from = Math.max(superblock.bitmapOffset, blockStart) - blockStart;
+        int to = Math.min(superblock.getReferenceCountsOffset() + superblock.getReferenceCountsLength(),
+                blockStart + superblock.blockLength) - blockStart;
+
+        BlockCache blockCache = ioSystem.getBlockCache();
+        if (blockCache != null && journal == null) {
+            byte[] frame = blockCache.pin(block);
+            try {
+                System.arraycopy(bitMapBytes, from, frame, from, to - from);
+            } finally {
+                blockCache.unpin(block, true);
+            }
+            return;
+        }
 
-        //read first block, because it contains bitmap(first 7 bytes)
-        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(FileSystemConfig.BLOCK_LENGTH);
-        ioSystem.readBlock(0, diskBlockBuffer);
+        //read block, because it can contain superblock as well
+        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(superblock.blockLength);
+        ioSystem.readBlock(block, diskBlockBuffer);
 
         //override bitMap in buffer
-        for(int i=0;i<bitSetBytes.length;i++) {
-            diskBlockBuffer.put(i, bitSetBytes[i]);
-        }
+        System.arraycopy(bitMapBytes, from, diskBlockBuffer.array(), from, to - from);
 
         //flush buffer to disk
-        byte[] bufferBytes = diskBlockBuffer.array();
-        ioSystem.writeBlock(0, bufferBytes);
+        writeMetadataBlock(block, diskBlockBuffer.array());
     }
 
     /**
@@ -628,13 +2104,28 @@ public class FileSystem {
      * Returns BitMap stored on disk
      */
     public BitSet readBitMapFromDisk() {
-        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(FileSystemConfig.BLOCK_LENGTH);
-        ioSystem.readBlock(0, diskBlockBuffer);
+        return BitSet.valueOf(readMetadataBytes(superblock.bitmapOffset, superblock.getBitmapLength()));
+    }
 
-        byte[] blockBytes = diskBlockBuffer.array();
-        byte[] bitMapBytes = Arrays.copyOfRange(blockBytes, 0, FileSystemConfig.BITMAP_LENGTH_ON_DISK);
+    /**
+     * Reads bytes which are stored on disk at the given offset, e.g. the bitmap
+     *
+     * @param offset offset of the bytes from the beginning of the disk
+     */
+    private byte[] readMetadataBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+
+        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(superblock.blockLength);
+        int end = offset + length;
+        for (int block = offset / superblock.blockLength; block * superblock.blockLength < end; block++) {
+            ioSystem.readBlock(block, diskBlockBuffer);
+            int blockStart = block * superblock.blockLength;
+            int from = Math.max(offset, blockStart);
+            int to = Math.min(end, blockStart + superblock.blockLength);
+            System.arraycopy(diskBlockBuffer.array(), from - blockStart, bytes, from - offset, to - from);
+        }
 
-        return BitSet.valueOf(bitMapBytes);
+        return bytes;
     }
 
     /**
@@ -644,69 +2135,221 @@ public class FileSystem {
      *
      */
     public void readDescriptorsFromDisk() {
-        for (int i = 1; i <= FileSystemConfig.NUMBER_OF_DESCRIPTOR_BLOCKS; i++) {
-            ByteBuffer diskBlockBuffer = ByteBuffer.allocate(FileSystemConfig.BLOCK_LENGTH);
-            ioSystem.readBlock(i, diskBlockBuffer);
-            for (int j = 0; j < FileSystemConfig.NUMBER_OF_DESCRIPTORS_IN_ONE_BLOCK; j++) {
-                int lengthOfFile = diskBlockBuffer.getInt();
-                if (lengthOfFile == -1) {
-                    for (int k = 0; k < FileSystemConfig.MAXIMUM_NUMBER_OF_BLOCKS_PER_FILE; k++){
-                        diskBlockBuffer.getInt();
+        synchronized (loadedDescriptorBlocks) {
+            for (int i = 0; i < superblock.numberOfDescriptorBlocks; i++) {
+                readDescriptorBlock(i);
+            }
+            loadedDescriptorBlocks.set(0, superblock.numberOfDescriptorBlocks);
+        }
+    }
+
+    /**
+     * Returns descriptor, its block is read from disk if it wasn't read yet
+     *
+     * @return descriptor or null if descriptor is free
+     */
+    private FileDescriptor loadDescriptor(int descriptorIndex) {
+        int descriptorBlock = descriptorIndex / superblock.getDescriptorsPerBlock();
+        synchronized (loadedDescriptorBlocks) {
+            if (!loadedDescriptorBlocks.get(descriptorBlock)) {
+                readDescriptorBlock(descriptorBlock);
+                loadedDescriptorBlocks.set(descriptorBlock);
+            }
+            return descriptors[descriptorIndex];
+        }
+    }
+
+    /**
+     * Reads descriptors of the given descriptor block together with their extent blocks
+     *
+     * @param i index of block among descriptor blocks
+     */
+    private void readDescriptorBlock(int i) {
+        int descriptorsPerBlock = superblock.getDescriptorsPerBlock();
+        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(superblock.blockLength);
+        ioSystem.readBlock(superblock.descriptorBlocksStart + i, diskBlockBuffer);
+        for (int j = 0; j < descriptorsPerBlock && i * descriptorsPerBlock + j < descriptors.length; j++) {
+            int lengthOfFile = diskBlockBuffer.getInt();
+            if (lengthOfFile == -1) {
+                diskBlockBuffer.position(diskBlockBuffer.position() + FileSystemConfig.DESCRIPTOR_SIZE - 4);
+                descriptors[i * descriptorsPerBlock + j] = null;
+            }
+            else if (superblock.isLegacy()) {
+                // legacy descriptor holds indexes of file blocks
+                FileDescriptor fileDescriptor = new FileDescriptor(lengthOfFile);
+                for (int k = 0; k < FileSystemConfig.LEGACY_BLOCKS_PER_FILE; k++){
+                    int dataBlock = diskBlockBuffer.getInt();
+                    if (dataBlock != -1) {
+                        fileDescriptor.appendBlock(dataBlock);
                     }
-                    descriptors[(i-1) * FileSystemConfig.NUMBER_OF_DESCRIPTORS_IN_ONE_BLOCK + j] = null;
                 }
-                else {
-                    int[] dataBlocks = new int[FileSystemConfig.MAXIMUM_NUMBER_OF_BLOCKS_PER_FILE];
-                    for (int k = 0; k < FileSystemConfig.MAXIMUM_NUMBER_OF_BLOCKS_PER_FILE; k++){
-                        dataBlocks[k] = diskBlockBuffer.getInt();
-                    }
-                    descriptors[(i-1) * FileSystemConfig.NUMBER_OF_DESCRIPTORS_IN_ONE_BLOCK + j]
-                            = new FileDescriptor(lengthOfFile, dataBlocks);
+                descriptors[i * descriptorsPerBlock + j] = fileDescriptor;
+            }
+            else {
+                FileDescriptor fileDescriptor = new FileDescriptor(lengthOfFile);
+                int startBlock = diskBlockBuffer.getInt();
+                int length = diskBlockBuffer.getInt();
+                fileDescriptor.compressed = (length & FileDescriptor.COMPRESSED_FLAG) != 0;
+                length &= ~FileDescriptor.COMPRESSED_FLAG;
+                // hole has no first block, but it has length
+                if (startBlock != -1 || length > 0) {
+                    fileDescriptor.extents.add(new Extent(startBlock, length));
                 }
+                fileDescriptor.indirectBlock = diskBlockBuffer.getInt();
+                readExtentBlocks(fileDescriptor);
+                descriptors[i * descriptorsPerBlock + j] = fileDescriptor;
             }
         }
     }
 
+    /**
+     * Reads extents of the file from its single indirect block and from extent blocks
+     * referenced by the double indirect block. Extent block starts with 4 bytes of the
+     * double indirect block index (only used in the single indirect block) and 4 bytes with
+     * the number of extents in it. Double indirect block holds the number of extent blocks
+     * followed by their indexes.
+     */
+    private void readExtentBlocks(FileDescriptor fileDescriptor) {
+        if (fileDescriptor.indirectBlock == -1) {
+            return;
+        }
+        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(superblock.blockLength);
+        ioSystem.readBlock(fileDescriptor.indirectBlock, diskBlockBuffer);
+        fileDescriptor.doubleIndirectBlock = diskBlockBuffer.getInt();
+        readExtents(fileDescriptor, diskBlockBuffer);
+        if (fileDescriptor.doubleIndirectBlock == -1) {
+            return;
+        }
+        ByteBuffer doubleIndirectBuffer = ByteBuffer.allocate(superblock.blockLength);
+        ioSystem.readBlock(fileDescriptor.doubleIndirectBlock, doubleIndirectBuffer);
+        int numberOfExtentBlocks = doubleIndirectBuffer.getInt();
+        for (int i = 0; i < numberOfExtentBlocks; i++) {
+            int extentBlock = doubleIndirectBuffer.getInt();
+            fileDescriptor.extentBlocks.add(extentBlock);
+            diskBlockBuffer.clear();
+            ioSystem.readBlock(extentBlock, diskBlockBuffer);
+            diskBlockBuffer.getInt();
+            readExtents(fileDescriptor, diskBlockBuffer);
+        }
+    }
+
+    private void readExtents(FileDescriptor fileDescriptor, ByteBuffer extentBlockBuffer) {
+        int numberOfExtents = extentBlockBuffer.getInt();
+        for (int i = 0; i < numberOfExtents; i++) {
+            fileDescriptor.extents.add(new Extent(extentBlockBuffer.getInt(), extentBlockBuffer.getInt()));
+        }
+    }
+
     /**
      * @author Medynskyi Mykola
      *
      * This method reads directory data from disk
      */
     public void readDirectoryFromDisk() {
+        if (superblock.hasFeature(Superblock.FEATURE_HASHED_DIRECTORY)) {
+            readHashedDirectoryFromDisk();
+            return;
+        }
         directory = new Directory();
        // readDescriptorsFromDisk();
-        FileDescriptor fileDescriptor = descriptors[openFileTable.entries[0].fileDescriptorIndex];
-        int maximumDirectoryEntriesPerBlock = 8;
+        OpenFileTableEntry directoryEntry = openFileTable.getEntry(0);
+        FileDescriptor fileDescriptor = loadDescriptor(directoryEntry.fileDescriptorIndex);
+        int maximumDirectoryEntriesPerBlock = superblock.getDirectoryEntriesPerBlock();
         int currentPosition = 0;
         boolean check = true;
-        for (int i = 0; i < fileDescriptor.fileContentsBlocksIndexes.length && check; i++) {
-            if (fileDescriptor.fileContentsBlocksIndexes[i] != -1 ) {
-                ByteBuffer buffer = ByteBuffer.allocate(FileSystemConfig.BLOCK_LENGTH);
-                ioSystem.readBlock(fileDescriptor.fileContentsBlocksIndexes[i], buffer);
-                openFileTable.entries[0].readWriteBuffer = buffer.array();
-                for (int j = 0; j < maximumDirectoryEntriesPerBlock; j++) {
-                   // openFileTable.entries
-                    if (openFileTable.entries[0].readWriteBuffer[currentPosition] == 0) {
-                        check = false;
-                        break;
-                    }
-                    String fileName = "";
-                    for (int k = 0; k < 4; k++, currentPosition++) {
-                        char charFromBuffer = (char) openFileTable.entries[0].readWriteBuffer[currentPosition];
-                        if (charFromBuffer != '\0') {
-                            fileName += (char) openFileTable.entries[0].readWriteBuffer[currentPosition];
-                        }
+        for (int i = 0; i < fileDescriptor.getNumberOfBlocks() && check; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(superblock.blockLength);
+            ioSystem.readBlock(fileDescriptor.getDiskBlock(i), buffer);
+            directoryEntry.readWriteBuffer = buffer.array();
+            for (int j = 0; j < maximumDirectoryEntriesPerBlock; j++) {
+               // openFileTable.entries
+                if (directoryEntry.readWriteBuffer[currentPosition] == 0) {
+                    check = false;
+                    break;
+                }
+                String fileName = "";
+                for (int k = 0; k < FileSystemConfig.MAXIMUM_FILE_NAME_LENGTH; k++, currentPosition++) {
+                    char charFromBuffer = (char) directoryEntry.readWriteBuffer[currentPosition];
+                    if (charFromBuffer != '\0') {
+                        fileName += (char) directoryEntry.readWriteBuffer[currentPosition];
                     }
-                    byte[] integer = Arrays.copyOfRange(openFileTable.entries[0].readWriteBuffer, currentPosition, currentPosition + 4);
-                    currentPosition += 4;
-                    int fileDescriptorIndex = ByteBuffer.wrap(integer).getInt();
-                    directory.addEntryToDirectory(fileName, fileDescriptorIndex);
                 }
-                if (currentPosition == FileSystemConfig.BLOCK_LENGTH) {
-                    currentPosition = 0;
+                byte[] integer = Arrays.copyOfRange(directoryEntry.readWriteBuffer, currentPosition, currentPosition + 4);
+                currentPosition += 4;
+                int fileDescriptorIndex = ByteBuffer.wrap(integer).getInt();
+                directory.addEntryToDirectory(fileName, fileDescriptorIndex);
+            }
+            if (currentPosition == superblock.blockLength) {
+                currentPosition = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads all slots of the hashed directory
+     */
+    private void readHashedDirectoryFromDisk() {
+        FileDescriptor fileDescriptor = loadDescriptor(0);
+        directory = new Directory(fileDescriptor.getNumberOfBlocks() * superblock.getDirectoryEntriesPerBlock());
+        for (int i = 0; i < fileDescriptor.getNumberOfBlocks(); i++) {
+            readHashedDirectoryBlock(i);
+        }
+    }
+
+    /**
+     * Reads slots of one block of the hashed directory. Empty slot has zero name and descriptor
+     * index, tombstone has zero name and descriptor index -1.
+     *
+     * @param directoryBlock index of block in the directory file
+     */
+    private void readHashedDirectoryBlock(int directoryBlock) {
+        int entriesPerBlock = superblock.getDirectoryEntriesPerBlock();
+        ByteBuffer buffer = ByteBuffer.allocate(superblock.blockLength);
+        byte[] name = new byte[FileSystemConfig.MAXIMUM_FILE_NAME_LENGTH];
+        ioSystem.readBlock(descriptors[0].getDiskBlock(directoryBlock), buffer);
+        for (int j = 0; j < entriesPerBlock; j++) {
+            buffer.get(name);
+            int fileDescriptorIndex = buffer.getInt();
+            if (name[0] != 0) {
+                String fileName = "";
+                for (int k = 0; k < name.length && name[k] != '\0'; k++) {
+                    fileName += (char) name[k];
+                }
+                directory.addEntryAtSlot(fileName, fileDescriptorIndex, directoryBlock * entriesPerBlock + j);
+            } else if (fileDescriptorIndex == -1) {
+                directory.addTombstoneAtSlot(directoryBlock * entriesPerBlock + j);
+            }
+        }
+    }
+
+    /**
+     * Returns directory, it is read from disk on first access. Linear directory is read whole,
+     * blocks of hashed directory are read when probing reaches them.
+     */
+    private Directory loadDirectory() {
+        if (!directoryLoaded) {
+            synchronized (loadedDescriptorBlocks) {
+                if (!directoryLoaded) {
+                    if (superblock.hasFeature(Superblock.FEATURE_HASHED_DIRECTORY)) {
+                        int entriesPerBlock = superblock.getDirectoryEntriesPerBlock();
+                        directory = new Directory(loadDescriptor(0).getNumberOfBlocks() * entriesPerBlock, entriesPerBlock, this::readHashedDirectoryBlock);
+                    } else {
+                        readDirectoryFromDisk();
+                    }
+                    directoryLoaded = true;
                 }
             }
         }
+        return directory;
+    }
+
+    /**
+     * @return directory with all its entries read from disk
+     */
+    public Directory getDirectory() {
+        Directory loaded = loadDirectory();
+        loaded.readAllSlots();
+        return loaded;
     }
 
     /**
@@ -718,83 +2361,374 @@ public class FileSystem {
      * @return -1 if the directory was not saved, 1 if directory was saved successfully
      */
     public int saveDirectoryToDisk() {
-        FileDescriptor fileDescriptor = descriptors[openFileTable.entries[0].fileDescriptorIndex];
-        int numberOfDirectoryBlocks = 0;
-        for (int i = 0; i < 3; i++) {
-            if (fileDescriptor.fileContentsBlocksIndexes[i] != -1) {
-                numberOfDirectoryBlocks++;
-            }
-        }
-        final int maximumDirectoryEntriesPerBlock = 8;
-        if (directory.listOfEntries.size() > maximumDirectoryEntriesPerBlock * numberOfDirectoryBlocks) {
+        FileDescriptor fileDescriptor = loadDescriptor(openFileTable.getEntry(0).fileDescriptorIndex);
+        int numberOfDirectoryBlocks = fileDescriptor.getNumberOfBlocks();
+        if (getDirectory().listOfEntries.size() > superblock.getDirectoryEntriesPerBlock() * numberOfDirectoryBlocks) {
             return FileSystemConfig.ERROR;
         }
-        int currentBufferPosition = 0;
+        for (int i = 0; i < numberOfDirectoryBlocks; i++) {
+            writeDirectoryBlock(i);
+        }
+        return FileSystemConfig.SUCCESS;
+    }
 
-        boolean check = true;
-        int indexForFileContentsBlocksIndexesArray = 0;
-        for (int i = 0; i < directory.listOfEntries.size(); i++) {
-            check = true;
-            if (openFileTable.entries[0].readWriteBuffer == null) {
-                openFileTable.entries[0].readWriteBuffer = new byte[FileSystemConfig.BLOCK_LENGTH];
+    /**
+     * Writes entries which belong to the given block of directory. Each entry takes 8 bytes: 4 for
+     * file name (padded with '\0') and 4 for descriptor index. Rest of the block is filled with
+     * zeros, so reading stops there.
+     *
+     * @param directoryBlock index of block in the directory file
+     */
+    private void writeDirectoryBlock(int directoryBlock) {
+        FileDescriptor fileDescriptor = descriptors[0];
+        int diskBlock = fileDescriptor.getDiskBlock(directoryBlock);
+        if (diskBlock == -1) {
+            return;
+        }
+        int entriesPerBlock = superblock.getDirectoryEntriesPerBlock();
+        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(superblock.blockLength);
+        int firstEntry = directoryBlock * entriesPerBlock;
+        for (int i = firstEntry; i < firstEntry + entriesPerBlock; i++) {
+            DirectoryEntry entry = directory.getEntryAtSlot(i);
+            if (entry == null) {
+                // empty slot stays zero
+                diskBlockBuffer.position(diskBlockBuffer.position() + FileSystemConfig.DIRECTORY_ENTRY_SIZE);
+                continue;
             }
-            for (int j = 0; j < 4; j++) {
-                if (j < directory.listOfEntries.get(i).fileName.length()) {
-                    openFileTable.entries[0].readWriteBuffer[currentBufferPosition] = (byte) directory.listOfEntries.get(i).fileName.charAt(j);
+            for (int j = 0; j < FileSystemConfig.MAXIMUM_FILE_NAME_LENGTH; j++) {
+                diskBlockBuffer.put(j < entry.fileName.length() ? (byte) entry.fileName.charAt(j) : (byte) '\0');
+            }
+            diskBlockBuffer.putInt(entry.fileDescriptorIndex);
+        }
+        writeMetadataBlock(diskBlock, diskBlockBuffer.array());
+    }
+
+    /**
+     * @author Medynskyi Mykola
+     *
+     * This method saves descriptors to the disk
+     */
+    public void saveDescriptorsToDisk() {
+        for (int i = 0; i < superblock.numberOfDescriptorBlocks; i++) {
+            writeDescriptorBlock(i);
+        }
+        for (FileDescriptor fileDescriptor : descriptors) {
+            if (fileDescriptor != null) {
+                fileDescriptor.firstModifiedExtent = 0;
+                writeExtentBlocks(fileDescriptor);
+            }
+        }
+    }
+
+    /**
+     * Writes descriptors which are stored in the given descriptor block
+     *
+     * @param descriptorBlock index of block among descriptor blocks
+     */
+    private void writeDescriptorBlock(int descriptorBlock) {
+        int descriptorsPerBlock = superblock.getDescriptorsPerBlock();
+        // free slots of a block which wasn't read would be written over the descriptors on disk
+        loadDescriptor(descriptorBlock * descriptorsPerBlock);
+        ByteBuffer diskBlock = ByteBuffer.allocate(superblock.blockLength);
+        for (int j = 0; j < descriptorsPerBlock && descriptorBlock * descriptorsPerBlock + j < descriptors.length; j++) {
+            int currentDescriptor = descriptorBlock * descriptorsPerBlock + j;
+            Lock fileLock = locks.fileLock(currentDescriptor).readLock();
+            fileLock.lock();
+            try {
+                FileDescriptor fileDescriptor = descriptors[currentDescriptor];
+                if (fileDescriptor == null) {
+                    diskBlock.putInt(-1).putInt(-1).putInt(0).putInt(-1);
                 }
                 else {
-                    openFileTable.entries[0].readWriteBuffer[currentBufferPosition] = (byte)'\0';
+                    // delayed blocks are not on disk yet, so the stored file ends before them
+                    int storedLength = fileDescriptor.delayedBlocks.isEmpty() ? fileDescriptor.fileLength
+                            : Math.min(fileDescriptor.fileLength, fileDescriptor.getNumberOfBlocks() * superblock.blockLength);
+                    diskBlock.putInt(storedLength);
+                    int flags = fileDescriptor.compressed ? FileDescriptor.COMPRESSED_FLAG : 0;
+                    if (fileDescriptor.extents.isEmpty()) {
+                        diskBlock.putInt(-1).putInt(flags);
+                    } else {
+                        diskBlock.putInt(fileDescriptor.extents.get(0).startBlock).putInt(fileDescriptor.extents.get(0).length | flags);
+                    }
+                    diskBlock.putInt(fileDescriptor.indirectBlock);
                 }
-                currentBufferPosition++;
-            }
-            byte[] integerToBytes = ByteBuffer.allocate(4).putInt(directory.listOfEntries.get(i).fileDescriptorIndex).array();
-            for (int k = 0; k < 4; k++) {
-                openFileTable.entries[0].readWriteBuffer[currentBufferPosition] = integerToBytes[k];
-                currentBufferPosition++;
+            } finally {
+                fileLock.unlock();
             }
-            if ((i+1) % maximumDirectoryEntriesPerBlock == 0) {
+        }
+        writeMetadataBlock(superblock.descriptorBlocksStart + descriptorBlock, diskBlock.array());
+    }
 
-                while (fileDescriptor.fileContentsBlocksIndexes[indexForFileContentsBlocksIndexesArray] == -1) {
-                    indexForFileContentsBlocksIndexesArray++;
-                }
-                ioSystem.writeBlock(fileDescriptor.fileContentsBlocksIndexes[indexForFileContentsBlocksIndexesArray], openFileTable.entries[0].readWriteBuffer);
-                indexForFileContentsBlocksIndexesArray++;
-                currentBufferPosition = 0;
-                openFileTable.entries[0].readWriteBuffer = null;
-                check = false;
+    /**
+     * Writes extent blocks of the file which contain extents modified since the last write.
+     * Double indirect block is rewritten together with its extent blocks.
+     */
+    private void writeExtentBlocks(FileDescriptor fileDescriptor) {
+        int firstExtent = Math.max(fileDescriptor.firstModifiedExtent, 1);
+        fileDescriptor.firstModifiedExtent = Integer.MAX_VALUE;
+        if (fileDescriptor.indirectBlock == -1 || firstExtent == Integer.MAX_VALUE) {
+            return;
+        }
+        int extentsPerBlock = superblock.getExtentsPerBlock();
+        if (firstExtent < 1 + extentsPerBlock) {
+            writeExtentBlock(fileDescriptor.indirectBlock, fileDescriptor.doubleIndirectBlock, fileDescriptor, 1);
+        }
+        if (fileDescriptor.doubleIndirectBlock == -1) {
+            return;
+        }
+        int firstExtentBlock = Math.max(0, firstExtent - 1 - extentsPerBlock) / extentsPerBlock;
+        for (int i = firstExtentBlock; i < fileDescriptor.extentBlocks.size(); i++) {
+            writeExtentBlock(fileDescriptor.extentBlocks.get(i), -1, fileDescriptor, 1 + extentsPerBlock * (i + 1));
+        }
+        ByteBuffer doubleIndirectBuffer = ByteBuffer.allocate(superblock.blockLength);
+        doubleIndirectBuffer.putInt(fileDescriptor.extentBlocks.size());
+        for (int extentBlock : fileDescriptor.extentBlocks) {
+            doubleIndirectBuffer.putInt(extentBlock);
+        }
+        writeMetadataBlock(fileDescriptor.doubleIndirectBlock, doubleIndirectBuffer.array());
+    }
+
+    /**
+     * Writes extents starting with firstExtent which fit into one extent block
+     */
+    private void writeExtentBlock(int diskBlock, int header, FileDescriptor fileDescriptor, int firstExtent) {
+        int lastExtent = Math.min(fileDescriptor.extents.size(), firstExtent + superblock.getExtentsPerBlock());
+        ByteBuffer diskBlockBuffer = ByteBuffer.allocate(superblock.blockLength);
+        diskBlockBuffer.putInt(header);
+        diskBlockBuffer.putInt(Math.max(0, lastExtent - firstExtent));
+        for (int i = firstExtent; i < lastExtent; i++) {
+            diskBlockBuffer.putInt(fileDescriptor.extents.get(i).startBlock).putInt(fileDescriptor.extents.get(i).length);
+        }
+        writeMetadataBlock(diskBlock, diskBlockBuffer.array());
+    }
+
+    /**
+     * Writes metadata block to the disk. When the file system has a journal, the block becomes
+     * part of the running transaction, outside of a transaction the journal is discarded first.
+     */
+    private void writeMetadataBlock(int block, byte[] bytes) {
+        if (journal != null) {
+            if (journal.isLogging()) {
+                journal.log(block, bytes);
+                return;
             }
+            journal.discard();
         }
-        if (check) {
-            ioSystem.writeBlock(fileDescriptor.fileContentsBlocksIndexes[indexForFileContentsBlocksIndexesArray], openFileTable.entries[0].readWriteBuffer);
+        ioSystem.writeBlock(block, bytes);
+    }
+
+    /**
+     * Marks bitmap blocks which contain bits of the given disk blocks as modified
+     */
+    private void markBitmapDirty(int firstDiskBlock, int numberOfBlocks) {
+        int firstBitmapBlock = (superblock.bitmapOffset + firstDiskBlock / 8) / superblock.blockLength;
+        int lastBitmapBlock = (superblock.bitmapOffset + (firstDiskBlock + numberOfBlocks - 1) / 8) / superblock.blockLength;
+        locks.dirtyLock.lock();
+        dirtyBitmapBlocks.set(firstBitmapBlock, lastBitmapBlock + 1);
+        if (superblock.hasReferenceCounts()) {
+            // reference counts of the blocks can change together with their bits
+            int countsOffset = superblock.getReferenceCountsOffset();
+            dirtyBitmapBlocks.set((countsOffset + firstDiskBlock) / superblock.blockLength,
+                    (countsOffset + firstDiskBlock + numberOfBlocks - 1) / superblock.blockLength + 1);
         }
-        return FileSystemConfig.SUCCESS;
+        changeSequence++;
+        locks.dirtyLock.unlock();
     }
 
     /**
-     * @author Medynskyi Mykola
+     * Marks descriptor block which contains the given descriptor as modified
+     */
+    private void markDescriptorDirty(int descriptorIndex) {
+        locks.dirtyLock.lock();
+        dirtyDescriptorBlocks.set(descriptorIndex / superblock.getDescriptorsPerBlock());
+        changeSequence++;
+        locks.dirtyLock.unlock();
+    }
+
+    /**
+     * Marks extent blocks of the descriptor as modified
+     */
+    private void markExtentsDirty(int descriptorIndex) {
+        locks.dirtyLock.lock();
+        dirtyExtentDescriptors.set(descriptorIndex);
+        changeSequence++;
+        locks.dirtyLock.unlock();
+    }
+
+    /**
+     * Marks directory blocks which contain entries from first to last (inclusive) as modified
+     */
+    private void markDirectoryDirty(int firstEntryIndex, int lastEntryIndex) {
+        int entriesPerBlock = superblock.getDirectoryEntriesPerBlock();
+        locks.dirtyLock.lock();
+        dirtyDirectoryBlocks.set(firstEntryIndex / entriesPerBlock, lastEntryIndex / entriesPerBlock + 1);
+        changeSequence++;
+        locks.dirtyLock.unlock();
+    }
+
+    /**
+     * Called at the end of every operation which changes metadata. Modified metadata blocks
+     * are flushed when the flush interval has passed since the last flush.
+     */
+    private void metadataChanged() {
+        if (metadataFlushInterval >= 0 && System.currentTimeMillis() - lastMetadataFlush >= metadataFlushInterval) {
+            flushMetadata();
+        }
+    }
+
+    /**
+     * Writes modified bitmap, descriptor and directory blocks to the disk. Blocks that
+     * weren't modified since the last flush are not written. Sets of modified blocks are
+     * taken and cleared first, so blocks modified during the flush are written next time.
+     * At the end modified blocks of the block cache are written back as well.
      *
-     * This method saves descriptors to the disk
+     * Threads which wait for the flush lock while another thread flushes find their changes
+     * written by the next flush, so a group of concurrent operations is committed together.
      */
-    public void saveDescriptorsToDisk() {
-        for (int i = 1; i <= FileSystemConfig.NUMBER_OF_DESCRIPTOR_BLOCKS; i++) {
-            ByteBuffer diskBlock = ByteBuffer.allocate(FileSystemConfig.BLOCK_LENGTH);
-            for (int j = 0; j < FileSystemConfig.NUMBER_OF_DESCRIPTORS_IN_ONE_BLOCK; j++) {
-                int currentDescriptor = (i-1) * FileSystemConfig.NUMBER_OF_DESCRIPTORS_IN_ONE_BLOCK + j;
-                if (descriptors[currentDescriptor] == null) {
-                    diskBlock.putInt(-1);
-                    for (int k = 0; k < FileSystemConfig.MAXIMUM_NUMBER_OF_BLOCKS_PER_FILE; k++) {
-                        diskBlock.putInt(-1);
-                    }
+    public void flushMetadata() {
+        long targetSequence;
+        locks.dirtyLock.lock();
+        targetSequence = changeSequence;
+        locks.dirtyLock.unlock();
+
+        locks.flushLock.lock();
+        try {
+            if (flushedSequence < targetSequence) {
+                flushMetadataBlocks();
+            }
+            ioSystem.flush();
+            lastMetadataFlush = System.currentTimeMillis();
+        } finally {
+            locks.flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes modified metadata blocks, with journal all of them are one transaction.
+     * Called with the flush lock.
+     */
+    private void flushMetadataBlocks() {
+        BitSet extentDescriptors;
+        BitSet bitmapBlocks;
+        BitSet descriptorBlocks;
+        BitSet directoryBlocks;
+        List<Extent> freedBlocks;
+        locks.dirtyLock.lock();
+        try {
+            flushedSequence = changeSequence;
+            freedBlocks = new ArrayList<>(blocksFreedAfterFlush);
+            blocksFreedAfterFlush.clear();
+            extentDescriptors = (BitSet) dirtyExtentDescriptors.clone();
+            bitmapBlocks = (BitSet) dirtyBitmapBlocks.clone();
+            descriptorBlocks = (BitSet) dirtyDescriptorBlocks.clone();
+            directoryBlocks = (BitSet) dirtyDirectoryBlocks.clone();
+            dirtyExtentDescriptors.clear();
+            dirtyBitmapBlocks.clear();
+            dirtyDescriptorBlocks.clear();
+            dirtyDirectoryBlocks.clear();
+        } finally {
+            locks.dirtyLock.unlock();
+        }
+
+        if (journal != null) {
+            journal.begin();
+        }
+        for (int i = extentDescriptors.nextSetBit(0); i >= 0; i = extentDescriptors.nextSetBit(i + 1)) {
+            Lock fileLock = locks.fileLock(i).readLock();
+            fileLock.lock();
+            try {
+                if (descriptors[i] != null) {
+                    writeExtentBlocks(descriptors[i]);
                 }
-                else {
-                    diskBlock.putInt(descriptors[currentDescriptor].fileLength);
-                    for (int k = 0; k < FileSystemConfig.MAXIMUM_NUMBER_OF_BLOCKS_PER_FILE; k++) {
-                        diskBlock.putInt(descriptors[currentDescriptor].fileContentsBlocksIndexes[k]);
-                    }
+            } finally {
+                fileLock.unlock();
+            }
+        }
+        if (!bitmapBlocks.isEmpty()) {
+            // only dirty blocks are copied under the lock
+            List<byte[]> bitMapBlocks = new ArrayList<>(bitmapBlocks.cardinality());
+            locks.allocatorLock.lock();
+            try {
+                for (int block = bitmapBlocks.nextSetBit(0); block >= 0; block = bitmapBlocks.nextSetBit(block + 1)) {
+                    bitMapBlocks.add(copyBitMapBlock(bitmap, block));
+                }
+            } finally {
+                locks.allocatorLock.unlock();
+            }
+            int i = 0;
+            for (int block = bitmapBlocks.nextSetBit(0); block >= 0; block = bitmapBlocks.nextSetBit(block + 1)) {
+                writeBitMapBlock(block, bitMapBlocks.get(i++));
+            }
+        }
+        for (int block = descriptorBlocks.nextSetBit(0); block >= 0; block = descriptorBlocks.nextSetBit(block + 1)) {
+            writeDescriptorBlock(block);
+        }
+        Lock directoryFileLock = locks.fileLock(0).readLock();
+        directoryFileLock.lock();
+        try {
+            for (int block = directoryBlocks.nextSetBit(0); block >= 0; block = directoryBlocks.nextSetBit(block + 1)) {
+                if (block < descriptors[0].getNumberOfBlocks()) {
+                    writeDirectoryBlock(block);
+                }
+            }
+        } finally {
+            directoryFileLock.unlock();
+        }
+        if (journal != null) {
+            journal.commit();
+        }
+        metrics.metadataFlushed();
+        if (!freedBlocks.isEmpty()) {
+            for (Extent extent : freedBlocks) {
+                freeBlocks(extent.startBlock, extent.length);
+            }
+            // bitmap with the freed blocks is the next transaction
+            flushMetadataBlocks();
+        }
+    }
+
+    /**
+     * @return number of free blocks and number of free runs, both are counters of the allocator
+     */
+    int[] getFreeSpace() {
+        locks.allocatorLock.lock();
+        try {
+            return new int[]{allocator.getFreeBlocks(), allocator.getFreeRuns()};
+        } finally {
+            locks.allocatorLock.unlock();
+        }
+    }
+
+    /**
+     * Writes modified buffers of open files and modified metadata to the disk and makes
+     * everything durable. Files stay open.
+     */
+    public void sync() {
+        // entry 0 is the directory, its blocks are written with the metadata
+        for (int i = 1; i < openFileTable.getNumberOfEntries(); i++) {
+            Lock fileLock = lockEntry(i, true);
+            try {
+                OpenFileTableEntry entry = openFileTable.getEntry(i);
+                if (entry != null) {
+                    flushEntryBuffer(entry);
+                    flushDelayedBlocks(entry.fileDescriptorIndex);
                 }
+            } finally {
+                fileLock.unlock();
             }
-            ioSystem.writeBlock(i, diskBlock.array());
         }
+        flushMetadata();
+        ioSystem.force();
+    }
+
+    /**
+     * Sets how often modified metadata is written to the disk. With 0 it is written at the end
+     * of every operation, with negative interval only by close, closeAllFiles and sync.
+     *
+     * @param metadataFlushInterval interval in milliseconds
+     */
+    public void setMetadataFlushInterval(long metadataFlushInterval) {
+        this.metadataFlushInterval = metadataFlushInterval;
     }
 
     /**
@@ -803,11 +2737,13 @@ public class FileSystem {
      * This method reads close all files
      */
     public int closeAllFiles() {
-        for(int i = 0; i < openFileTable.entries.length; i++) {
-            if (openFileTable.entries[i] != null) {
+        // entry 0 is the directory, it stays open
+        for(int i = 1; i < openFileTable.getNumberOfEntries(); i++) {
+            if (openFileTable.getEntry(i) != null) {
                 close(i);
             }
         }
+        flushMetadata();
         return 1;
     }
 
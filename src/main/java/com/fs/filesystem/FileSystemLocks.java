@@ -0,0 +1,110 @@
+package com.fs.filesystem;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks of the file system in concurrent mode. When concurrent mode is off every lock is a
+ * no-op, so single-threaded callers don't pay for synchronization.
+ *
+ * - file lock: read/write lock per descriptor, taken for reading by read and for writing by
+ *   write, seek, close and destroy. File lock of descriptor 0 protects the directory.
+ * - descriptor stripe: taken while a descriptor slot is claimed or freed
+ * - directory stripe: serializes open, create and destroy of the same file name
+ * - allocator lock: bitmap and allocator
+ * - dirty lock: sets of modified metadata blocks
+ * - flush lock: only one metadata flush runs at a time
+ *
+ * Locks are taken in this order: directory stripe, file lock of the directory, file lock,
+ * descriptor stripe, allocator lock, dirty lock. Metadata is flushed with the flush lock and
+ * one file read lock at a time, never while a file lock is held.
+ */
+class FileSystemLocks {
+    private static final int NUMBER_OF_STRIPES = 32;
+    static final Lock NO_LOCK = new NoLock();
+    private static final ReadWriteLock NO_READ_WRITE_LOCK = new ReadWriteLock() {
+        @Override
+        public Lock readLock() {
+            return NO_LOCK;
+        }
+
+        @Override
+        public Lock writeLock() {
+            return NO_LOCK;
+        }
+    };
+
+    final boolean concurrent;
+    final Lock allocatorLock;
+    final Lock dirtyLock;
+    final Lock flushLock;
+    private final ReadWriteLock[] fileLocks;
+    private final Lock[] descriptorStripes;
+    private final Lock[] directoryStripes;
+
+    FileSystemLocks(boolean concurrent, int numberOfDescriptors) {
+        this.concurrent = concurrent;
+        allocatorLock = newLock();
+        dirtyLock = newLock();
+        flushLock = newLock();
+        fileLocks = new ReadWriteLock[numberOfDescriptors];
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = concurrent ? new ReentrantReadWriteLock() : NO_READ_WRITE_LOCK;
+        }
+        descriptorStripes = new Lock[NUMBER_OF_STRIPES];
+        directoryStripes = new Lock[NUMBER_OF_STRIPES];
+        for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+            descriptorStripes[i] = newLock();
+            directoryStripes[i] = newLock();
+        }
+    }
+
+    ReadWriteLock fileLock(int descriptorIndex) {
+        return fileLocks[descriptorIndex];
+    }
+
+    Lock descriptorLock(int descriptorIndex) {
+        return descriptorStripes[descriptorIndex % NUMBER_OF_STRIPES];
+    }
+
+    Lock directoryLock(String fileName) {
+        return directoryStripes[(fileName.hashCode() & Integer.MAX_VALUE) % NUMBER_OF_STRIPES];
+    }
+
+    private Lock newLock() {
+        return concurrent ? new ReentrantLock() : NO_LOCK;
+    }
+
+    private static class NoLock implements Lock {
+        @Override
+        public void lock() {
+        }
+
+        @Override
+        public void lockInterruptibly() {
+        }
+
+        @Override
+        public boolean tryLock() {
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) {
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
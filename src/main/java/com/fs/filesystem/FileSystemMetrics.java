@@ -0,0 +1,179 @@
+package com.fs.filesystem;
+
+import com.fs.iosystem.BlockCache;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime metrics of a file system which can be registered as a JMX MBean. Counters on the
+ * hot path are LongAdders, values of the allocator and the open file table are taken when
+ * they are asked for.
+ */
+public class FileSystemMetrics implements FileSystemMetricsMBean {
+    /**
+     * Operations whose latency is recorded
+     */
+    public enum Operation {
+        OPEN, CLOSE, CREATE, DESTROY, READ, WRITE, SEEK
+    }
+
+    private final FileSystem fileSystem;
+    private final LongAdder bytesRead;
+    private final LongAdder bytesWritten;
+    private final LongAdder metadataFlushes;
+    private final Map<Operation, LatencyHistogram> latencies;
+    private ObjectName objectName;
+
+    FileSystemMetrics(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+        this.bytesRead = new LongAdder();
+        this.bytesWritten = new LongAdder();
+        this.metadataFlushes = new LongAdder();
+        this.latencies = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Registers metrics in the platform MBean server as com.fs:type=FileSystem,name=name
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        objectName = new ObjectName("com.fs:type=FileSystem,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    void recordLatency(Operation operation, long startNanos) {
+        latencies.get(operation).record(System.nanoTime() - startNanos);
+    }
+
+    void addBytesRead(int bytes) {
+        if (bytes > 0) {
+            bytesRead.add(bytes);
+        }
+    }
+
+    void addBytesWritten(int bytes) {
+        if (bytes > 0) {
+            bytesWritten.add(bytes);
+        }
+    }
+
+    void metadataFlushed() {
+        metadataFlushes.increment();
+    }
+
+    public LatencyHistogram getLatencies(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    @Override
+    public long getReadBlockCalls() {
+        return fileSystem.ioSystem.getReadBlockCalls();
+    }
+
+    @Override
+    public long getWriteBlockCalls() {
+        return fileSystem.ioSystem.getWriteBlockCalls();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getMetadataFlushes() {
+        return metadataFlushes.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        BlockCache blockCache = fileSystem.ioSystem.getBlockCache();
+        return blockCache == null ? 0 : blockCache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        BlockCache blockCache = fileSystem.ioSystem.getBlockCache();
+        return blockCache == null ? 0 : blockCache.getMisses();
+    }
+
+    @Override
+    public int getFreeBlocks() {
+        return fileSystem.allocator.getFreeBlocks();
+    }
+
+    @Override
+    public int getFreeRuns() {
+        return fileSystem.allocator.getFreeRuns();
+    }
+
+    /**
+     * @return 0 if all free blocks are one run, 1 if no two free blocks are adjacent
+     */
+    @Override
+    public double getFragmentation() {
+        int[] freeSpace = fileSystem.getFreeSpace();
+        return freeSpace[1] <= 1 ? 0 : (double) (freeSpace[1] - 1) / (freeSpace[0] - 1);
+    }
+
+    @Override
+    public int getOpenFiles() {
+        return fileSystem.openFileTable.getNumberOfOpenEntries();
+    }
+
+    @Override
+    public String[] getOperations() {
+        String[] names = new String[Operation.values().length];
+        for (Operation operation : Operation.values()) {
+            names[operation.ordinal()] = operation.name();
+        }
+        return names;
+    }
+
+    @Override
+    public long getOperationCount(String operation) {
+        return latencies(operation).getCount();
+    }
+
+    @Override
+    public double getAverageLatencyNanos(String operation) {
+        LatencyHistogram histogram = latencies(operation);
+        long count = histogram.getCount();
+        return count == 0 ? 0 : (double) histogram.getTotalNanos() / count;
+    }
+
+    @Override
+    public long getLatencyPercentileNanos(String operation, double percentile) {
+        return latencies(operation).getPercentile(percentile);
+    }
+
+    @Override
+    public long[] getLatencyHistogram(String operation) {
+        return latencies(operation).getBuckets();
+    }
+
+    private LatencyHistogram latencies(String operation) {
+        return latencies.get(Operation.valueOf(operation.toUpperCase()));
+    }
+}
@@ -0,0 +1,38 @@
+package com.fs.filesystem;
+
+/**
+ * Attributes and operations of {@link FileSystemMetrics} which are visible through JMX
+ */
+public interface FileSystemMetricsMBean {
+    long getReadBlockCalls();
+
+    long getWriteBlockCalls();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getMetadataFlushes();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    int getFreeBlocks();
+
+    int getFreeRuns();
+
+    double getFragmentation();
+
+    int getOpenFiles();
+
+    String[] getOperations();
+
+    long getOperationCount(String operation);
+
+    double getAverageLatencyNanos(String operation);
+
+    long getLatencyPercentileNanos(String operation, double percentile);
+
+    long[] getLatencyHistogram(String operation);
+}
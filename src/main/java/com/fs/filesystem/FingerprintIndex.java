@@ -0,0 +1,58 @@
+package com.fs.filesystem;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of data blocks by fingerprints of their contents, so a written block can be shared
+ * with a block which has the same contents. Index is kept in memory and holds blocks written
+ * since mount. Fingerprints can collide, block found by fingerprint must be compared with the
+ * written one. Not synchronized, the file system uses it under the allocator lock.
+ */
+public class FingerprintIndex {
+    private final Map<Long, Integer> blockByFingerprint = new HashMap<>();
+    private final Map<Integer, Long> fingerprintByBlock = new HashMap<>();
+
+    /**
+     * @return 64-bit FNV-1a hash of the block
+     */
+    public static long fingerprint(byte[] block) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : block) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return block with the fingerprint or -1 if there is none
+     */
+    public int find(long fingerprint) {
+        Integer block = blockByFingerprint.get(fingerprint);
+        return block == null ? -1 : block;
+    }
+
+    /**
+     * Records new contents of the block, its previous fingerprint is forgotten
+     */
+    public void put(int block, long fingerprint) {
+        remove(block);
+        Integer previous = blockByFingerprint.put(fingerprint, block);
+        if (previous != null) {
+            fingerprintByBlock.remove(previous);
+        }
+        fingerprintByBlock.put(block, fingerprint);
+    }
+
+    public void remove(int block) {
+        Long fingerprint = fingerprintByBlock.remove(block);
+        if (fingerprint != null) {
+            blockByFingerprint.remove(fingerprint, block);
+        }
+    }
+
+    public int size() {
+        return blockByFingerprint.size();
+    }
+}
@@ -0,0 +1,237 @@
+package com.fs.filesystem;
+
+import com.fs.iosystem.IOSystem;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of metadata blocks. Metadata blocks written by one flush of the file
+ * system are collected into a transaction. The transaction is written to the journal and made
+ * durable before the blocks are written to their places, so after a crash the disk gets
+ * consistent again by writing the last committed transaction once more when it is mounted.
+ *
+ * Journal holds only the last transaction:
+ * - header [magic][sequence][count][checksum] followed by count indexes of target blocks,
+ *   indexes which don't fit into the first block continue in the next ones
+ * - copies of the target blocks in the same order
+ * Checksum (CRC32) covers everything after the magic, so a transaction which was torn by a
+ * crash is never replayed.
+ *
+ * Blocks are written to their places lazily through the block cache, the next commit makes
+ * them durable before it overwrites the journal.
+ *
+ * Flush which modifies more blocks than the journal holds is never split into several
+ * transactions. It becomes a checkpoint instead: the journal is discarded, blocks are written
+ * to their places and made durable when the flush ends.
+ */
+public class Journal {
+    public static final int MAGIC = 0x4A524E4C;
+    private static final int HEADER_SIZE = 16;
+
+    private final IOSystem ioSystem;
+    private final Superblock superblock;
+    /**
+     * Blocks of the running transaction, the last image of every block
+     */
+    private final Map<Integer, byte[]> transaction;
+    /**
+     * Maximum number of blocks in one transaction
+     */
+    private final int capacity;
+    private boolean logging;
+    /**
+     * Whether the running flush didn't fit into the journal and its blocks go to their places
+     */
+    private boolean checkpoint;
+    /**
+     * Whether the journal holds a committed transaction which can be replayed
+     */
+    private boolean holdsTransaction;
+    private int sequence;
+    private long commits;
+    private long checkpoints;
+
+    public Journal(IOSystem ioSystem, Superblock superblock) {
+        this.ioSystem = ioSystem;
+        this.superblock = superblock;
+        this.transaction = new LinkedHashMap<>();
+        int blocks = 0;
+        while (getTagBlocks(blocks + 1) + blocks + 1 <= superblock.journalBlocks) {
+            blocks++;
+        }
+        this.capacity = blocks;
+        if (capacity == 0) {
+            throw new IllegalArgumentException("Journal is too small");
+        }
+        ByteBuffer header = ByteBuffer.allocate(superblock.blockLength);
+        ioSystem.readBlock(superblock.journalStart, header);
+        if (header.getInt(0) == MAGIC) {
+            sequence = header.getInt(4);
+            holdsTransaction = true;
+        }
+    }
+
+    /**
+     * @return maximum number of blocks in one transaction
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of committed transactions
+     */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return number of flushes which didn't fit into the journal
+     */
+    public synchronized long getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Starts a transaction, blocks passed to {@link #log} are kept until {@link #commit}
+     */
+    public synchronized void begin() {
+        logging = true;
+    }
+
+    public synchronized boolean isLogging() {
+        return logging;
+    }
+
+    /**
+     * Adds the block to the transaction. If the transaction is full, the flush becomes a
+     * checkpoint: blocks collected so far and all next ones are written to their places.
+     */
+    public synchronized void log(int block, byte[] bytes) {
+        if (!checkpoint && !transaction.containsKey(block) && transaction.size() == capacity) {
+            discard();
+            for (Map.Entry<Integer, byte[]> logged : transaction.entrySet()) {
+                ioSystem.writeBlock(logged.getKey(), logged.getValue());
+            }
+            transaction.clear();
+            checkpoint = true;
+        }
+        if (checkpoint) {
+            ioSystem.writeBlock(block, bytes);
+            return;
+        }
+        transaction.put(block, bytes.clone());
+    }
+
+    /**
+     * Writes the transaction to the journal, makes it durable and then writes its blocks to
+     * their places. Blocks of a checkpoint are made durable.
+     */
+    public synchronized void commit() {
+        if (checkpoint) {
+            ioSystem.force();
+            checkpoint = false;
+            checkpoints++;
+        } else {
+            commitTransaction();
+        }
+        logging = false;
+    }
+
+    /**
+     * Makes the journal empty, it is done before metadata is written bypassing the journal,
+     * so an older transaction doesn't overwrite it on the next mount
+     */
+    public synchronized void discard() {
+        if (!holdsTransaction) {
+            return;
+        }
+        ioSystem.force();
+        ioSystem.writeBlock(superblock.journalStart, new byte[superblock.blockLength]);
+        ioSystem.force();
+        holdsTransaction = false;
+    }
+
+    /**
+     * Writes blocks of the last committed transaction to their places. Called on mount before
+     * any metadata is read.
+     *
+     * @return number of replayed blocks, 0 if journal has no complete transaction
+     */
+    public synchronized int replay() {
+        if (!holdsTransaction) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(superblock.blockLength);
+        ioSystem.readBlock(superblock.journalStart, header);
+        int count = header.getInt(8);
+        if (count <= 0 || count > capacity) {
+            return 0;
+        }
+        int tagBlocks = getTagBlocks(count);
+        byte[] journal = new byte[(tagBlocks + count) * superblock.blockLength];
+        ioSystem.readBlocks(superblock.journalStart, tagBlocks + count, journal, 0);
+        ByteBuffer buffer = ByteBuffer.wrap(journal);
+        int checksum = buffer.getInt(12);
+        buffer.putInt(12, 0);
+        if (checksum != checksum(journal)) {
+            System.out.println("ERROR! JOURNAL TRANSACTION " + header.getInt(4) + " IS INCOMPLETE");
+            return 0;
+        }
+        byte[] block = new byte[superblock.blockLength];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(journal, (tagBlocks + i) * superblock.blockLength, block, 0, superblock.blockLength);
+            ioSystem.writeBlock(buffer.getInt(HEADER_SIZE + 4 * i), block);
+        }
+        ioSystem.force();
+        return count;
+    }
+
+    private void commitTransaction() {
+        if (transaction.isEmpty()) {
+            return;
+        }
+        int count = transaction.size();
+        int tagBlocks = getTagBlocks(count);
+        byte[] journal = new byte[(tagBlocks + count) * superblock.blockLength];
+        ByteBuffer buffer = ByteBuffer.wrap(journal);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, ++sequence);
+        buffer.putInt(8, count);
+        int i = 0;
+        for (Map.Entry<Integer, byte[]> block : transaction.entrySet()) {
+            buffer.putInt(HEADER_SIZE + 4 * i, block.getKey());
+            System.arraycopy(block.getValue(), 0, journal, (tagBlocks + i) * superblock.blockLength, superblock.blockLength);
+            i++;
+        }
+        buffer.putInt(12, checksum(journal));
+
+        // data and blocks of the previous transaction reach the disk before the journal is overwritten
+        ioSystem.force();
+        ioSystem.writeBlocks(superblock.journalStart, tagBlocks + count, journal, 0);
+        ioSystem.force();
+        holdsTransaction = true;
+
+        for (Map.Entry<Integer, byte[]> block : transaction.entrySet()) {
+            ioSystem.writeBlock(block.getKey(), block.getValue());
+        }
+        transaction.clear();
+        commits++;
+    }
+
+    /**
+     * @return number of blocks with the header and indexes of count target blocks
+     */
+    private int getTagBlocks(int count) {
+        return (HEADER_SIZE + 4 * count + superblock.blockLength - 1) / superblock.blockLength;
+    }
+
+    private static int checksum(byte[] journal) {
+        CRC32 crc = new CRC32();
+        crc.update(journal, 4, journal.length - 4);
+        return (int) crc.getValue();
+    }
+}
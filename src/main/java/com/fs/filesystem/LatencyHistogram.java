@@ -0,0 +1,74 @@
+package com.fs.filesystem;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of operation latencies with power of two buckets: bucket i counts latencies
+ * from 2^(i-1) to 2^i - 1 nanoseconds, bucket 0 counts zero latencies. Buckets are
+ * LongAdders, so threads recording latencies at the same time don't contend.
+ */
+public class LatencyHistogram {
+    public static final int NUMBER_OF_BUCKETS = 64;
+
+    private final LongAdder[] buckets;
+    private final LongAdder totalNanos;
+
+    public LatencyHistogram() {
+        buckets = new LongAdder[NUMBER_OF_BUCKETS];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+        totalNanos = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+        totalNanos.add(nanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * @return number of latencies in every bucket
+     */
+    public long[] getBuckets() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return upper bound of the bucket with the given percentile in nanoseconds, 0 if
+     * nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBuckets();
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : (i == 63 ? Long.MAX_VALUE : (1L << i) - 1);
+            }
+        }
+        return 0;
+    }
+}
@@ -2,35 +2,134 @@ package com.fs.filesystem;
 
 import com.fs.utils.FileSystemConfig;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author Medynskyi Mykola and Nikita Pupov
+ *
+ * Entry 0 is the directory, files get entries from 1. Table grows twice when there is no
+ * free entry, freed entries are kept in a stack, so opening and closing take O(1). One file
+ * can be opened by several entries, they are found by the index of the file descriptor.
+ * Methods are synchronized, so the table can be used from several threads.
  */
 
 public class OpenFileTable {
-    final public static int OFT_NUMBER_OF_ENTRIES = 4;
+    final public static int INITIAL_NUMBER_OF_ENTRIES = 4;
 
-    public OpenFileTableEntry[] entries;
+    private OpenFileTableEntry[] entries;
+    private int[] freeEntries;
+    private int numberOfFreeEntries;
+    private final Map<Integer, List<Integer>> entriesByDescriptor;
+    private int maximumNumberOfEntries;
 
     public OpenFileTable() {
-        entries = new OpenFileTableEntry[OFT_NUMBER_OF_ENTRIES];
+        entries = new OpenFileTableEntry[INITIAL_NUMBER_OF_ENTRIES];
+        freeEntries = new int[INITIAL_NUMBER_OF_ENTRIES];
+        entriesByDescriptor = new HashMap<>();
+        maximumNumberOfEntries = FileSystemConfig.MAXIMUM_NUMBER_OF_OPEN_FILES;
+        pushFreeEntries(1, entries.length);
+    }
+
+    /**
+     * @param maximumNumberOfEntries limit of entries including directory entry, table doesn't grow over it
+     */
+    public synchronized void setMaximumNumberOfEntries(int maximumNumberOfEntries) {
+        this.maximumNumberOfEntries = maximumNumberOfEntries;
+    }
+
+    /**
+     * Places the entry of the directory at index 0
+     */
+    public synchronized void setDirectoryEntry(OpenFileTableEntry entry) {
+        entries[0] = entry;
+    }
+
+    /**
+     * @return entry with the given index or null if there is no such entry
+     */
+    public synchronized OpenFileTableEntry getEntry(int index) {
+        return index >= 0 && index < entries.length ? entries[index] : null;
+    }
+
+    /**
+     * Places entry into a free slot, the table grows if all slots are taken
+     *
+     * @return index of the entry or -1 if the table has reached its maximum size
+     */
+    public synchronized int addEntry(OpenFileTableEntry entry) {
+        if (numberOfFreeEntries == 0 && !grow()) {
+            return -1;
+        }
+        int index = freeEntries[--numberOfFreeEntries];
+        entries[index] = entry;
+        entriesByDescriptor.computeIfAbsent(entry.fileDescriptorIndex, descriptor -> new ArrayList<>(1)).add(index);
+        return index;
     }
 
-    public int getOFTEntryIndexByFDIndex(int fileDescriptorIndex) {
-        for (int i = 1; i < entries.length; i++) {
-            if (entries[i] != null && entries[i].fileDescriptorIndex == fileDescriptorIndex) {
-                return i;
-            }
+    public synchronized void removeEntry(int index) {
+        OpenFileTableEntry entry = entries[index];
+        entries[index] = null;
+        List<Integer> indexes = entriesByDescriptor.get(entry.fileDescriptorIndex);
+        indexes.remove((Integer) index);
+        if (indexes.isEmpty()) {
+            entriesByDescriptor.remove(entry.fileDescriptorIndex);
         }
+        freeEntries[numberOfFreeEntries++] = index;
+    }
+
+    /**
+     * @return indexes of all entries which have the file opened
+     */
+    public synchronized List<Integer> getOFTEntryIndexesByFDIndex(int fileDescriptorIndex) {
+        List<Integer> indexes = entriesByDescriptor.get(fileDescriptorIndex);
+        return indexes == null ? Collections.emptyList() : new ArrayList<>(indexes);
+    }
+
+    /**
+     * @return index of some entry which has the file opened or -1
+     */
+    public synchronized int getOFTEntryIndexByFDIndex(int fileDescriptorIndex) {
+        List<Integer> indexes = entriesByDescriptor.get(fileDescriptorIndex);
+        return indexes == null ? -1 : indexes.get(0);
+    }
 
-        return -1;
+    /**
+     * @return number of entries in the table including free ones and the directory entry
+     */
+    public synchronized int getNumberOfEntries() {
+        return entries.length;
+    }
+
+    /**
+     * @return number of entries with opened files, the directory entry is not counted
+     */
+    public synchronized int getNumberOfOpenEntries() {
+        return entries.length - 1 - numberOfFreeEntries;
+    }
+
+    private boolean grow() {
+        int newLength = (int) Math.min((long) entries.length * 2, maximumNumberOfEntries);
+        if (newLength <= entries.length) {
+            return false;
+        }
+        int oldLength = entries.length;
+        entries = Arrays.copyOf(entries, newLength);
+        freeEntries = Arrays.copyOf(freeEntries, newLength);
+        pushFreeEntries(oldLength, newLength);
+        return true;
     }
 
-    public int getOFTFreeEntryIndex() {
-        for (int i = 1; i < entries.length; i++) {
-            if(entries[i] == null) {
-                return i;
-            }
+    /**
+     * Pushes entries from first to end - 1, so the lowest one is taken first
+     */
+    private void pushFreeEntries(int first, int end) {
+        for (int i = end - 1; i >= first; i--) {
+            freeEntries[numberOfFreeEntries++] = i;
         }
-        return -1;
     }
 }
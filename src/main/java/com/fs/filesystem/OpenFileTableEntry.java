@@ -27,26 +27,57 @@ public class OpenFileTableEntry {
      * File block which is stored in buffer
      */
     int fileBlockInBuffer;
+    /**
+     * Length of disk block, the buffer holds exactly one block
+     */
+    final int blockLength;
+    /**
+     * File block which was read last, reading is sequential while the next one follows it
+     */
+    int lastReadBlock;
+    /**
+     * Number of blocks read ahead, 0 - access is not sequential
+     */
+    int readaheadWindow;
+    /**
+     * First file block after the blocks which were read ahead
+     */
+    int readaheadEnd;
 
     public OpenFileTableEntry() {
-        readWriteBuffer = new byte[FileSystemConfig.BLOCK_LENGTH];
+        this(FileSystemConfig.BLOCK_LENGTH);
+    }
+
+    public OpenFileTableEntry(int blockLength) {
+        this.blockLength = blockLength;
+        readWriteBuffer = new byte[blockLength];
         currentPositionInFile = 0;
         fileDescriptorIndex = -1;
         bufferModified = false;
         fileBlockInBuffer = -1;
+        resetReadahead();
+    }
+
+    /**
+     * Stops reading ahead until the file is read sequentially again
+     */
+    void resetReadahead() {
+        lastReadBlock = -1;
+        readaheadWindow = 0;
+        readaheadEnd = 0;
     }
 
     /**
      * @return Number of file data block that our entry is currently buffering
      */
     public int getCurrentDataBlockPosition() {
-        return currentPositionInFile / FileSystemConfig.BLOCK_LENGTH;
+        return currentPositionInFile / blockLength;
     }
 
     /**
      * @return Current position in readWriteBuffer
      */
     public int getCurrentBufferPosition() {
-        return currentPositionInFile % FileSystemConfig.BLOCK_LENGTH;
+        return currentPositionInFile % blockLength;
     }
 }
@@ -0,0 +1,257 @@
+package com.fs.filesystem;
+
+import com.fs.ldisk.MappedLDisk;
+import com.fs.utils.FileSystemConfig;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Superblock describes the layout of the disk. It is written by the format step at the
+ * beginning of block 0 and read back when the file system is mounted.
+ *
+ * Layout of the disk:
+ * - superblock (SIZE bytes) followed by the bitmap (1 bit per block), both starting in block 0
+ * - reference counts (1 byte per block) right after the bitmap, only with {@link #FEATURE_DEDUP}
+ *   or {@link #FEATURE_CLONE}
+ * - descriptor blocks, starting with the first block after the bitmap
+ * - journal blocks, only with {@link #FEATURE_JOURNAL}
+ * - data blocks, the first of them is the first block of the directory
+ */
+public class Superblock {
+    public static final int MAGIC = MappedLDisk.IMAGE_MAGIC;
+    /**
+     * magic + 10 integer fields
+     */
+    public static final int SIZE = 11 * 4;
+    /**
+     * Directory entries are placed by the hash of file name instead of one after another
+     */
+    public static final int FEATURE_HASHED_DIRECTORY = 1;
+    /**
+     * Metadata updates are written to the journal before they are written to their blocks
+     */
+    public static final int FEATURE_JOURNAL = 2;
+    /**
+     * Data blocks with equal contents are shared by files, every block has a count of
+     * references besides the first one
+     */
+    public static final int FEATURE_DEDUP = 4;
+    /**
+     * Files can be cloned, clone shares data blocks of the source until one of them writes,
+     * every block has a count of references besides the first one
+     */
+    public static final int FEATURE_CLONE = 8;
+
+    public int blockLength;
+    public int blocksAmount;
+    public int numberOfDescriptors;
+    /**
+     * Offset of the bitmap in bytes from the beginning of the disk
+     */
+    public int bitmapOffset;
+    public int descriptorBlocksStart;
+    public int numberOfDescriptorBlocks;
+    public int dataBlocksStart;
+    /**
+     * Bit set of FEATURE_ flags the disk was formatted with
+     */
+    public int features;
+    /**
+     * First block of the journal and number of its blocks, 0 if disk has no journal
+     */
+    public int journalStart;
+    public int journalBlocks;
+
+    /**
+     * Computes layout for the disk with given geometry
+     *
+     * @param blocksAmount number of blocks on disk
+     * @param blockLength length of block in bytes
+     * @param numberOfDescriptors number of file descriptors, including directory descriptor
+     */
+    public static Superblock forGeometry(int blocksAmount, int blockLength, int numberOfDescriptors) {
+        return forGeometry(blocksAmount, blockLength, numberOfDescriptors, 0);
+    }
+
+    /**
+     * Computes layout for the disk with given geometry and features. With
+     * {@link #FEATURE_JOURNAL} blocks after the descriptor blocks are reserved for the journal,
+     * see {@link #getJournalBlocks(int)}.
+     *
+     * @param features FEATURE_ flags
+     */
+    public static Superblock forGeometry(int blocksAmount, int blockLength, int numberOfDescriptors, int features) {
+        return forGeometry(blocksAmount, blockLength, numberOfDescriptors, SIZE, features);
+    }
+
+    /**
+     * @param metadataBlocks number of blocks before the journal
+     * @return size of the journal, it grows with the metadata, but not less than
+     * {@link FileSystemConfig#JOURNAL_BLOCKS}
+     */
+    public static int getJournalBlocks(int metadataBlocks) {
+        return Math.max(FileSystemConfig.JOURNAL_BLOCKS, ceilDiv(metadataBlocks, FileSystemConfig.METADATA_BLOCKS_PER_JOURNAL_BLOCK));
+    }
+
+    /**
+     * Layout of disks which were formatted before superblock was introduced: bitmap is
+     * at the very beginning of block 0 and geometry is the default one.
+     */
+    public static Superblock legacy() {
+        return forGeometry(FileSystemConfig.BLOCKS_AMOUNT, FileSystemConfig.BLOCK_LENGTH,
+                FileSystemConfig.NUMBER_OF_DESCRIPTORS, 0, 0);
+    }
+
+    private static Superblock forGeometry(int blocksAmount, int blockLength, int numberOfDescriptors, int bitmapOffset, int features) {
+        if (blockLength < SIZE || blockLength % FileSystemConfig.DESCRIPTOR_SIZE != 0) {
+            throw new IllegalArgumentException("Block length must be a multiple of descriptor size, not less than " + SIZE);
+        }
+        if (numberOfDescriptors < 2) {
+            throw new IllegalArgumentException("File system needs at least 2 descriptors");
+        }
+        Superblock superblock = new Superblock();
+        superblock.blockLength = blockLength;
+        superblock.blocksAmount = blocksAmount;
+        superblock.numberOfDescriptors = numberOfDescriptors;
+        superblock.bitmapOffset = bitmapOffset;
+        superblock.features = features;
+        superblock.descriptorBlocksStart = ceilDiv(superblock.getReferenceCountsOffset() + superblock.getReferenceCountsLength(), blockLength);
+        superblock.numberOfDescriptorBlocks = ceilDiv(numberOfDescriptors, superblock.getDescriptorsPerBlock());
+        int metadataBlocks = superblock.descriptorBlocksStart + superblock.numberOfDescriptorBlocks;
+        int journalBlocks = (features & FEATURE_JOURNAL) != 0 ? getJournalBlocks(metadataBlocks) : 0;
+        superblock.journalStart = journalBlocks > 0 ? metadataBlocks : 0;
+        superblock.journalBlocks = journalBlocks;
+        superblock.dataBlocksStart = superblock.descriptorBlocksStart + superblock.numberOfDescriptorBlocks + journalBlocks;
+        if (superblock.dataBlocksStart + 1 >= blocksAmount) {
+            throw new IllegalArgumentException("Disk is too small for " + numberOfDescriptors + " descriptors");
+        }
+        return superblock;
+    }
+
+    /**
+     * Reads superblock from the beginning of block 0
+     *
+     * @return superblock or null if block doesn't start with superblock
+     */
+    public static Superblock read(ByteBuffer block) {
+        if (block.getInt(0) != MAGIC) {
+            return null;
+        }
+        Superblock superblock = new Superblock();
+        superblock.blockLength = block.getInt(4);
+        superblock.blocksAmount = block.getInt(8);
+        superblock.numberOfDescriptors = block.getInt(12);
+        superblock.bitmapOffset = block.getInt(16);
+        superblock.descriptorBlocksStart = block.getInt(20);
+        superblock.numberOfDescriptorBlocks = block.getInt(24);
+        superblock.dataBlocksStart = block.getInt(28);
+        superblock.features = readField(block, superblock, 32);
+        superblock.journalStart = readField(block, superblock, 36);
+        superblock.journalBlocks = readField(block, superblock, 40);
+        return superblock;
+    }
+
+    /**
+     * Fields added after the first version of superblock are read only if they are stored
+     * before the bitmap, older superblocks have zero there
+     */
+    private static int readField(ByteBuffer block, Superblock superblock, int offset) {
+        return superblock.bitmapOffset >= offset + 4 ? block.getInt(offset) : 0;
+    }
+
+    /**
+     * Writes superblock at the beginning of block 0, other bytes of the block are not changed
+     */
+    public void write(ByteBuffer block) {
+        block.putInt(0, MAGIC);
+        block.putInt(4, blockLength);
+        block.putInt(8, blocksAmount);
+        block.putInt(12, numberOfDescriptors);
+        block.putInt(16, bitmapOffset);
+        block.putInt(20, descriptorBlocksStart);
+        block.putInt(24, numberOfDescriptorBlocks);
+        block.putInt(28, dataBlocksStart);
+        block.putInt(32, features);
+        block.putInt(36, journalStart);
+        block.putInt(40, journalBlocks);
+    }
+
+    public boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
+
+    public boolean isLegacy() {
+        return bitmapOffset == 0;
+    }
+
+    /**
+     * @return length of bitmap on disk in bytes
+     */
+    public int getBitmapLength() {
+        return ceilDiv(blocksAmount, 8);
+    }
+
+    /**
+     * @return offset of reference counts in bytes from the beginning of the disk, they follow the bitmap
+     */
+    public int getReferenceCountsOffset() {
+        return bitmapOffset + getBitmapLength();
+    }
+
+    /**
+     * @return length of reference counts on disk in bytes, 0 if disk was formatted without them
+     */
+    public int getReferenceCountsLength() {
+        return hasReferenceCounts() ? blocksAmount : 0;
+    }
+
+    /**
+     * @return whether data blocks can be shared by files, see {@link #FEATURE_DEDUP} and {@link #FEATURE_CLONE}
+     */
+    public boolean hasReferenceCounts() {
+        return hasFeature(FEATURE_DEDUP) || hasFeature(FEATURE_CLONE);
+    }
+
+    public int getDescriptorsPerBlock() {
+        return blockLength / FileSystemConfig.DESCRIPTOR_SIZE;
+    }
+
+    public int getDirectoryEntriesPerBlock() {
+        return blockLength / FileSystemConfig.DIRECTORY_ENTRY_SIZE;
+    }
+
+    /**
+     * @return number of extents in one extent block, first 8 bytes of the block are its header
+     */
+    public int getExtentsPerBlock() {
+        return (blockLength - 8) / Extent.SIZE;
+    }
+
+    /**
+     * @return number of extents which fit into descriptor, single indirect block and extent
+     * blocks referenced by the double indirect block
+     */
+    public int getMaximumExtentsPerFile() {
+        return 1 + getExtentsPerBlock() + (blockLength / 4 - 1) * getExtentsPerBlock();
+    }
+
+    private static int ceilDiv(int dividend, int divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    @Override
+    public String toString() {
+        return "Superblock{" +
+                "blockLength=" + blockLength +
+                ", blocksAmount=" + blocksAmount +
+                ", numberOfDescriptors=" + numberOfDescriptors +
+                ", bitmapOffset=" + bitmapOffset +
+                ", descriptorBlocksStart=" + descriptorBlocksStart +
+                ", numberOfDescriptorBlocks=" + numberOfDescriptorBlocks +
+                ", dataBlocksStart=" + dataBlocksStart +
+                ", features=" + features +
+                ", journalStart=" + journalStart +
+                ", journalBlocks=" + journalBlocks +
+                '}';
+    }
+}
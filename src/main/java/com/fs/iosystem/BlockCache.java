@@ -0,0 +1,445 @@
+package com.fs.iosystem;
+
+import com.fs.ldisk.LDisk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded write-back cache of disk blocks shared by everything which goes through
+ * {@link IOSystem}. Frames are replaced with the CLOCK algorithm: the hand goes around the
+ * frames, referenced frames get a second chance, pinned frames are skipped. Modified frames
+ * are written to the disk when they are evicted or when the cache is flushed.
+ */
+public class BlockCache {
+    private final LDisk lDisk;
+    private final byte[][] frames;
+    private final int[] blockInFrame;
+    private final boolean[] referenced;
+    private final boolean[] dirty;
+    private final int[] pinCount;
+    private final Map<Integer, Integer> frameByBlock;
+    private int hand;
+
+    /**
+     * Number of finished writes to the disk and number of multi-block writes in progress,
+     * prefetched blocks are dropped if the disk could change while they were read
+     */
+    private long diskWrites;
+    private int writesInProgress;
+    /**
+     * Ranges {first block, count} of multi-block writes in progress, misses on their blocks
+     * wait until they finish, so the old contents are not cached
+     */
+    private final List<int[]> rangesInProgress = new ArrayList<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long prefetchedBlocks;
+
+    /**
+     * @param lDisk disk with the blocks
+     * @param numberOfFrames how many blocks the cache holds
+     */
+    public BlockCache(LDisk lDisk, int numberOfFrames) {
+        if (numberOfFrames <= 0) {
+            throw new IllegalArgumentException("Cache must have at least one frame");
+        }
+        this.lDisk = lDisk;
+        frames = new byte[numberOfFrames][lDisk.blockLength];
+        blockInFrame = new int[numberOfFrames];
+        referenced = new boolean[numberOfFrames];
+        dirty = new boolean[numberOfFrames];
+        pinCount = new int[numberOfFrames];
+        frameByBlock = new HashMap<>();
+        for (int i = 0; i < numberOfFrames; i++) {
+            blockInFrame[i] = -1;
+        }
+    }
+
+    public synchronized void readBlock(int blockIndex, byte[] buffer) {
+        int frame = getFrame(blockIndex, true);
+        System.arraycopy(frames[frame], 0, buffer, 0, lDisk.blockLength);
+    }
+
+    /**
+     * Copies block into buffer at its position, position is not moved
+     */
+    public synchronized void readBlock(int blockIndex, ByteBuffer buffer) {
+        int frame = getFrame(blockIndex, true);
+        buffer.duplicate().put(frames[frame], 0, lDisk.blockLength);
+    }
+
+    public synchronized void writeBlock(int blockIndex, byte[] buffer) {
+        // whole block is overwritten, so it is not read on miss
+        int frame = getFrame(blockIndex, false);
+        System.arraycopy(buffer, 0, frames[frame], 0, lDisk.blockLength);
+        dirty[frame] = true;
+    }
+
+    /**
+     * Reads consecutive blocks, cached ones (e.g. read ahead) are copied from their frames and
+     * the others are read straight from the disk in runs. Cached modified blocks of the range
+     * are written back. Blocks are not put into the cache, so big transfers don't evict it.
+     */
+    public void readBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        readBlocks(firstBlock, count, ByteBuffer.wrap(buffer, offset, count * lDisk.blockLength));
+    }
+
+    /**
+     * Same as {@link #readBlocks(int, int, byte[], int)} for a buffer which can be direct, blocks
+     * are copied at its position and the position is not moved
+     */
+    public void readBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        List<int[]> uncachedRuns = new ArrayList<>();
+        synchronized (this) {
+            int runStart = -1;
+            for (int block = firstBlock; block < firstBlock + count; block++) {
+                Integer frame = frameByBlock.get(block);
+                if (frame == null && waitForWrites(block)) {
+                    frame = frameByBlock.get(block);
+                }
+                if (frame == null) {
+                    runStart = runStart == -1 ? block : runStart;
+                    continue;
+                }
+                if (runStart != -1) {
+                    uncachedRuns.add(new int[]{runStart, block - runStart});
+                    runStart = -1;
+                }
+                hits++;
+                referenced[frame] = true;
+                if (dirty[frame]) {
+                    writeBack(frame);
+                }
+                ByteBuffer target = buffer.duplicate();
+                target.position(buffer.position() + (block - firstBlock) * lDisk.blockLength);
+                target.put(frames[frame], 0, lDisk.blockLength);
+            }
+            if (runStart != -1) {
+                uncachedRuns.add(new int[]{runStart, firstBlock + count - runStart});
+            }
+        }
+        for (int[] run : uncachedRuns) {
+            ByteBuffer target = buffer.duplicate();
+            target.position(buffer.position() + (run[0] - firstBlock) * lDisk.blockLength);
+            lDisk.readBlocks(run[0], run[1], target);
+        }
+    }
+
+    /**
+     * Moves bytes of a channel straight into the disk blocks, see {@link LDisk#transferFrom}.
+     * Cached copies of the blocks are dropped, pinned ones are read again.
+     */
+    public long transferFrom(ReadableByteChannel source, int firstBlock, int count) throws IOException {
+        int[] range = {firstBlock, count};
+        synchronized (this) {
+            writesInProgress++;
+            rangesInProgress.add(range);
+            for (int block = firstBlock; block < firstBlock + count; block++) {
+                Integer frame = frameByBlock.get(block);
+                if (frame != null && pinCount[frame] == 0) {
+                    frameByBlock.remove(block);
+                    blockInFrame[frame] = -1;
+                    dirty[frame] = false;
+                }
+            }
+        }
+        try {
+            return lDisk.transferFrom(source, firstBlock, count);
+        } finally {
+            synchronized (this) {
+                for (int block = firstBlock; block < firstBlock + count; block++) {
+                    Integer frame = frameByBlock.get(block);
+                    if (frame != null) {
+                        lDisk.readBlock(block, frames[frame]);
+                        dirty[frame] = false;
+                    }
+                }
+                writesInProgress--;
+                rangesInProgress.remove(range);
+                diskWrites++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Moves length bytes of blocks starting with firstBlock straight to a channel, see
+     * {@link LDisk#transferTo}. Cached modified blocks of the range are written back first.
+     */
+    public void transferTo(int firstBlock, long length, WritableByteChannel target) throws IOException {
+        writeBack(firstBlock, (int) ((length + lDisk.blockLength - 1) / lDisk.blockLength));
+        lDisk.transferTo(firstBlock, length, target);
+    }
+
+    /**
+     * Writes consecutive blocks straight to the disk, cached copies of them are updated
+     */
+    public void writeBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        writeBlocks(firstBlock, count, ByteBuffer.wrap(buffer, offset, count * lDisk.blockLength));
+    }
+
+    /**
+     * Same as {@link #writeBlocks(int, int, byte[], int)} for a buffer which can be direct or
+     * read-only, blocks are taken from its position and the position is not moved
+     */
+    public void writeBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        int[] range = {firstBlock, count};
+        synchronized (this) {
+            writesInProgress++;
+            rangesInProgress.add(range);
+            for (int block = firstBlock; block < firstBlock + count; block++) {
+                Integer frame = frameByBlock.get(block);
+                if (frame != null) {
+                    ByteBuffer source = buffer.duplicate();
+                    source.position(source.position() + (block - firstBlock) * lDisk.blockLength);
+                    source.get(frames[frame], 0, lDisk.blockLength);
+                    dirty[frame] = false;
+                }
+            }
+        }
+        try {
+            lDisk.writeBlocks(firstBlock, count, buffer);
+        } finally {
+            synchronized (this) {
+                writesInProgress--;
+                rangesInProgress.remove(range);
+                diskWrites++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads consecutive blocks from the disk into the cache ahead of their use. Blocks which
+     * are cached already are kept, pinned frames are never replaced. Can be called from
+     * another thread than the one which uses the blocks.
+     */
+    public void prefetch(int firstBlock, int count) {
+        count = Math.min(count, frames.length / 2);
+        long writesBefore;
+        synchronized (this) {
+            if (writesInProgress > 0) {
+                return;
+            }
+            writesBefore = diskWrites;
+        }
+        byte[] data = new byte[count * lDisk.blockLength];
+        lDisk.readBlocks(firstBlock, count, data, 0);
+        synchronized (this) {
+            if (writesInProgress > 0 || diskWrites != writesBefore) {
+                return;
+            }
+            for (int block = firstBlock; block < firstBlock + count; block++) {
+                if (frameByBlock.containsKey(block)) {
+                    continue;
+                }
+                int frame = findVictim();
+                if (frame == -1) {
+                    return;
+                }
+                replace(frame, block);
+                System.arraycopy(data, (block - firstBlock) * lDisk.blockLength, frames[frame], 0, lDisk.blockLength);
+                prefetchedBlocks++;
+            }
+        }
+    }
+
+    /**
+     * Keeps block in the cache until it is unpinned and returns its frame. Frame can be
+     * read and modified in place, changes must be reported to {@link #unpin}.
+     */
+    public synchronized byte[] pin(int blockIndex) {
+        int frame = getFrame(blockIndex, true);
+        pinCount[frame]++;
+        return frames[frame];
+    }
+
+    /**
+     * @param modified whether the frame was changed while it was pinned
+     */
+    public synchronized void unpin(int blockIndex, boolean modified) {
+        Integer frame = frameByBlock.get(blockIndex);
+        if (frame == null || pinCount[frame] == 0) {
+            throw new IllegalStateException("Block " + blockIndex + " is not pinned");
+        }
+        pinCount[frame]--;
+        dirty[frame] |= modified;
+    }
+
+    /**
+     * Drops cached copies of blocks which are not used anymore, modified ones are not written
+     * back. Pinned frames are kept.
+     */
+    public synchronized void discard(int firstBlock, int count) {
+        for (int block = firstBlock; block < firstBlock + count; block++) {
+            Integer frame = frameByBlock.get(block);
+            if (frame != null && pinCount[frame] == 0) {
+                frameByBlock.remove(block);
+                blockInFrame[frame] = -1;
+                dirty[frame] = false;
+                referenced[frame] = false;
+            }
+        }
+    }
+
+    /**
+     * Writes all modified blocks to the disk, blocks stay in the cache
+     */
+    public synchronized void flush() {
+        for (int frame = 0; frame < frames.length; frame++) {
+            if (dirty[frame]) {
+                writeBack(frame);
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getPrefetchedBlocks() {
+        return prefetchedBlocks;
+    }
+
+    /**
+     * @return number of modified blocks which are not written to the disk yet
+     */
+    public synchronized int getNumberOfDirtyBlocks() {
+        int count = 0;
+        for (boolean frameDirty : dirty) {
+            count += frameDirty ? 1 : 0;
+        }
+        return count;
+    }
+
+    public int getNumberOfFrames() {
+        return frames.length;
+    }
+
+    /**
+     * @param load whether block has to be read from disk on miss
+     * @return frame which holds the block
+     */
+    private int getFrame(int blockIndex, boolean load) {
+        Integer cached = frameByBlock.get(blockIndex);
+        if (cached == null && waitForWrites(blockIndex)) {
+            // the block could be cached while the monitor was released
+            cached = frameByBlock.get(blockIndex);
+        }
+        if (cached != null) {
+            hits++;
+            referenced[cached] = true;
+            return cached;
+        }
+        misses++;
+        int frame = findVictim();
+        if (frame == -1) {
+            throw new IllegalStateException("All cache frames are pinned");
+        }
+        replace(frame, blockIndex);
+        if (load) {
+            lDisk.readBlock(blockIndex, frames[frame]);
+        }
+        return frame;
+    }
+
+    /**
+     * Evicts block of the frame, writing it back if it was modified, and assigns the frame
+     * to the new block
+     */
+    private void replace(int frame, int blockIndex) {
+        if (blockInFrame[frame] != -1) {
+            if (dirty[frame]) {
+                writeBack(frame);
+            }
+            frameByBlock.remove(blockInFrame[frame]);
+            evictions++;
+        }
+        blockInFrame[frame] = blockIndex;
+        referenced[frame] = true;
+        frameByBlock.put(blockIndex, frame);
+    }
+
+    /**
+     * Waits until no multi-block write in progress covers the block. Cached frames are updated
+     * before the write goes to the disk, only blocks which are not cached have to wait.
+     *
+     * @return whether it waited
+     */
+    private boolean waitForWrites(int blockIndex) {
+        boolean waited = false;
+        while (isBeingWritten(blockIndex)) {
+            waited = true;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while block " + blockIndex + " is written", e);
+            }
+        }
+        return waited;
+    }
+
+    private boolean isBeingWritten(int blockIndex) {
+        for (int[] range : rangesInProgress) {
+            if (blockIndex >= range[0] && blockIndex < range[0] + range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return frame to replace or -1 if all frames are pinned
+     */
+    private int findVictim() {
+        // two rounds clear all reference bits, so a frame is found unless all are pinned
+        for (int i = 0; i < 2 * frames.length + 1; i++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            if (pinCount[frame] > 0) {
+                continue;
+            }
+            if (blockInFrame[frame] == -1 || !referenced[frame]) {
+                return frame;
+            }
+            referenced[frame] = false;
+        }
+        return -1;
+    }
+
+    /**
+     * Writes cached modified blocks of the range to the disk
+     */
+    private synchronized void writeBack(int firstBlock, int count) {
+        for (int block = firstBlock; block < firstBlock + count; block++) {
+            Integer frame = frameByBlock.get(block);
+            if (frame != null && dirty[frame]) {
+                writeBack(frame);
+            }
+        }
+    }
+
+    private void writeBack(int frame) {
+        lDisk.writeBlock(blockInFrame[frame], frames[frame]);
+        dirty[frame] = false;
+        diskWrites++;
+    }
+}
@@ -0,0 +1,287 @@
+package com.fs.iosystem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Queue of block transfers in front of {@link IOSystem}. Workers take queued requests and
+ * merge reads (or writes) of adjacent blocks into one transfer. A request is not dispatched
+ * while an earlier request or a running transfer which overlaps it writes the same blocks,
+ * so requests to the same blocks keep their order.
+ *
+ * The queue is bounded, submitting waits while it is full.
+ */
+public class IOScheduler {
+    private final IOSystem ioSystem;
+    private final int numberOfWorkers;
+    private final int capacity;
+    /**
+     * Queued requests in the order of submission
+     */
+    private final List<Request> pending;
+    private final List<Request> inFlight;
+    private final List<Thread> workers;
+    private boolean shutdown;
+
+    private long submittedRequests;
+    private long transfers;
+
+    /**
+     * @param numberOfWorkers number of threads which transfer blocks
+     * @param capacity maximum number of queued requests
+     */
+    public IOScheduler(IOSystem ioSystem, int numberOfWorkers, int capacity) {
+        if (numberOfWorkers <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Scheduler needs at least one worker and one queued request");
+        }
+        this.ioSystem = ioSystem;
+        this.numberOfWorkers = numberOfWorkers;
+        this.capacity = capacity;
+        this.pending = new ArrayList<>();
+        this.inFlight = new ArrayList<>();
+        this.workers = new ArrayList<>();
+    }
+
+    /**
+     * Starts workers, requests submitted before are queued until then
+     */
+    public synchronized void start() {
+        if (!workers.isEmpty() || shutdown) {
+            return;
+        }
+        for (int i = 0; i < numberOfWorkers; i++) {
+            Thread worker = new Thread(this::work, "io-scheduler-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops workers after the queued requests are done
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Queues reading of count blocks starting with firstBlock into buffer at offset
+     *
+     * @return future which completes when blocks are in the buffer
+     */
+    public CompletableFuture<Void> readBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        return readBlocks(firstBlock, count, ByteBuffer.wrap(buffer, offset, count * ioSystem.getBlockLength()));
+    }
+
+    /**
+     * Queues reading of count blocks starting with firstBlock into buffer at its position, the
+     * position is not moved. Buffer can be direct.
+     *
+     * @return future which completes when blocks are in the buffer
+     */
+    public CompletableFuture<Void> readBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        return submit(new Request(false, firstBlock, count, buffer));
+    }
+
+    /**
+     * Queues writing of count blocks from buffer at offset starting with firstBlock
+     *
+     * @return future which completes when blocks are written to IOSystem
+     */
+    public CompletableFuture<Void> writeBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        return writeBlocks(firstBlock, count, ByteBuffer.wrap(buffer, offset, count * ioSystem.getBlockLength()));
+    }
+
+    /**
+     * Queues writing of count blocks from buffer at its position starting with firstBlock, the
+     * position is not moved. Buffer can be direct or read-only.
+     *
+     * @return future which completes when blocks are written to IOSystem
+     */
+    public CompletableFuture<Void> writeBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        return submit(new Request(true, firstBlock, count, buffer));
+    }
+
+    public synchronized long getSubmittedRequests() {
+        return submittedRequests;
+    }
+
+    /**
+     * @return number of transfers done by IOSystem, less than submitted requests when they were merged
+     */
+    public synchronized long getTransfers() {
+        return transfers;
+    }
+
+    private synchronized CompletableFuture<Void> submit(Request request) {
+        if (shutdown) {
+            throw new IllegalStateException("Scheduler is shut down");
+        }
+        while (pending.size() >= capacity) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                request.future.completeExceptionally(e);
+                return request.future;
+            }
+        }
+        pending.add(request);
+        submittedRequests++;
+        notifyAll();
+        return request.future;
+    }
+
+    private void work() {
+        while (true) {
+            List<Request> batch;
+            synchronized (this) {
+                batch = takeBatch();
+                while (batch == null) {
+                    if (shutdown && pending.isEmpty()) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    batch = takeBatch();
+                }
+                inFlight.addAll(batch);
+                transfers++;
+                notifyAll();
+            }
+            try {
+                transfer(batch);
+                for (Request request : batch) {
+                    request.future.complete(null);
+                }
+            } catch (RuntimeException e) {
+                for (Request request : batch) {
+                    request.future.completeExceptionally(e);
+                }
+            } finally {
+                synchronized (this) {
+                    inFlight.removeAll(batch);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the first request which can be dispatched together with queued requests of the same
+     * kind which continue it on either side
+     *
+     * @return requests sorted by their first block or null if nothing can be dispatched
+     */
+    private List<Request> takeBatch() {
+        for (int i = 0; i < pending.size(); i++) {
+            Request first = pending.get(i);
+            if (!canDispatch(i, first)) {
+                continue;
+            }
+            List<Request> batch = new ArrayList<>();
+            batch.add(first);
+            int start = first.firstBlock;
+            int end = first.firstBlock + first.count;
+            boolean extended = true;
+            while (extended) {
+                extended = false;
+                for (int j = i + 1; j < pending.size(); j++) {
+                    Request request = pending.get(j);
+                    if (request.write != first.write || batch.contains(request)
+                            || (request.firstBlock + request.count != start && request.firstBlock != end)) {
+                        continue;
+                    }
+                    if (canDispatch(j, request)) {
+                        batch.add(request);
+                        start = Math.min(start, request.firstBlock);
+                        end = Math.max(end, request.firstBlock + request.count);
+                        extended = true;
+                    }
+                }
+            }
+            pending.removeAll(batch);
+            batch.sort(Comparator.comparingInt(request -> request.firstBlock));
+            return batch;
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the request at index of the queue doesn't conflict with running transfers
+     * and with requests queued before it
+     */
+    private boolean canDispatch(int index, Request request) {
+        for (Request running : inFlight) {
+            if (request.conflicts(running)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < index; i++) {
+            if (request.conflicts(pending.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void transfer(List<Request> batch) {
+        Request first = batch.get(0);
+        if (batch.size() == 1) {
+            if (first.write) {
+                ioSystem.writeBlocks(first.firstBlock, first.count, first.buffer);
+            } else {
+                ioSystem.readBlocks(first.firstBlock, first.count, first.buffer);
+            }
+            return;
+        }
+        int blockLength = ioSystem.getBlockLength();
+        int count = 0;
+        for (Request request : batch) {
+            count += request.count;
+        }
+        byte[] merged = new byte[count * blockLength];
+        if (first.write) {
+            for (Request request : batch) {
+                request.buffer.duplicate().get(merged, (request.firstBlock - first.firstBlock) * blockLength, request.count * blockLength);
+            }
+            ioSystem.writeBlocks(first.firstBlock, count, merged, 0);
+        } else {
+            ioSystem.readBlocks(first.firstBlock, count, merged, 0);
+            for (Request request : batch) {
+                request.buffer.duplicate().put(merged, (request.firstBlock - first.firstBlock) * blockLength, request.count * blockLength);
+            }
+        }
+    }
+
+    private static class Request {
+        final boolean write;
+        final int firstBlock;
+        final int count;
+        final ByteBuffer buffer;
+        final CompletableFuture<Void> future;
+
+        Request(boolean write, int firstBlock, int count, ByteBuffer buffer) {
+            this.write = write;
+            this.firstBlock = firstBlock;
+            this.count = count;
+            this.buffer = buffer;
+            this.future = new CompletableFuture<>();
+        }
+
+        /**
+         * Requests conflict if they have common blocks and one of them writes them
+         */
+        boolean conflicts(Request other) {
+            return (write || other.write) && firstBlock < other.firstBlock + other.count
+                    && other.firstBlock < firstBlock + count;
+        }
+    }
+}
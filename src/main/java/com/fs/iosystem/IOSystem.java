@@ -1,13 +1,26 @@
 package com.fs.iosystem;
 
 import com.fs.ldisk.LDisk;
+import com.fs.ldisk.MappedLDisk;
 import com.fs.utils.FileSystemConfig;
 
+import java.io.DataInputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author Nikita Pupov
@@ -16,9 +29,58 @@ public class IOSystem {
     // some description to add
     // TODO: ADD DESCRIPTION
     private LDisk lDisk;
+    /**
+     * Cache of disk blocks or null if blocks go straight to the disk
+     */
+    private final BlockCache blockCache;
+    /**
+     * Background thread which reads blocks ahead, created with the first prefetch
+     */
+    private ExecutorService prefetcher;
+    /**
+     * Number of readBlock and writeBlock calls, LongAdders don't make callers contend
+     */
+    private final LongAdder readBlockCalls = new LongAdder();
+    private final LongAdder writeBlockCalls = new LongAdder();
+    /**
+     * Image file written by the last save, next saves to it are incremental
+     */
+    private Path savedImagePath;
+    private int lastSavedBlocks;
 
     public IOSystem(LDisk lDisk) {
+        this(lDisk, FileSystemConfig.BLOCK_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize number of blocks in the block cache, 0 - no cache
+     */
+    public IOSystem(LDisk lDisk, int cacheSize) {
         this.lDisk = lDisk;
+        this.blockCache = cacheSize > 0 ? new BlockCache(lDisk, cacheSize) : null;
+    }
+
+    /**
+     * @return block cache or null if blocks are not cached
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public int getBlockLength() {
+        return lDisk.blockLength;
+    }
+
+    public int getBlocksAmount() {
+        return lDisk.blocksAmount;
+    }
+
+    public long getReadBlockCalls() {
+        return readBlockCalls.sum();
+    }
+
+    public long getWriteBlockCalls() {
+        return writeBlockCalls.sum();
     }
 
     /**
@@ -26,19 +88,25 @@ public class IOSystem {
      * specified by the pointer p. The number of characters copied corresponds to the
      * block length, B.
      *
+     * Block is copied at the position of the buffer, the position is not moved. Buffer can be
+     * direct or a slice of a bigger one.
+     *
      * @param blockIndex index of the block to read
      * @param buffer main memory, we'll store red block there
      */
     public void readBlock(int blockIndex, ByteBuffer buffer) {
-        if (0 > blockIndex || blockIndex >= FileSystemConfig.BLOCKS_AMOUNT) {
+        if (0 > blockIndex || blockIndex >= lDisk.blocksAmount) {
             throw new IllegalArgumentException("Wrong block index for reading");
         }
-        if (buffer.array().length != FileSystemConfig.BLOCK_LENGTH) {
-            throw new IllegalArgumentException("Buffer length must be equal to block length");
+        if (buffer.remaining() < lDisk.blockLength) {
+            throw new IllegalArgumentException("Buffer is shorter than block length");
         }
+        readBlockCalls.increment();
 
-        for (int k = 0; k < FileSystemConfig.BLOCK_LENGTH; k++) {
-            buffer.put(k, lDisk.bytes[blockIndex][k]);
+        if (blockCache != null) {
+            blockCache.readBlock(blockIndex, buffer);
+        } else {
+            lDisk.readBlocks(blockIndex, 1, buffer);
         }
     }
 
@@ -51,43 +119,259 @@ public class IOSystem {
      * @param buffer array of bytes to write into disk
      */
     public void writeBlock(int blockIndex, byte[] buffer) {
-        if (0 > blockIndex || blockIndex >= FileSystemConfig.BLOCKS_AMOUNT) {
+        if (0 > blockIndex || blockIndex >= lDisk.blocksAmount) {
             throw new IllegalArgumentException("Wrong block index for reading");
         }
-        if (buffer.length != FileSystemConfig.BLOCK_LENGTH) {
+        if (buffer.length != lDisk.blockLength) {
             throw new IllegalArgumentException("Buffer length must be equal to block length");
         }
+        writeBlockCalls.increment();
+
+        if (blockCache != null) {
+            blockCache.writeBlock(blockIndex, buffer);
+        } else {
+            lDisk.writeBlock(blockIndex, buffer);
+        }
+    }
+
+    /**
+     * Copies count consecutive blocks starting with firstBlock into buffer at offset
+     *
+     * @param firstBlock index of the first block to read
+     * @param count number of blocks
+     * @param buffer main memory, count * B bytes starting at offset are overwritten
+     * @param offset position in buffer
+     */
+    public void readBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        checkBlocksRange(firstBlock, count, buffer.length - offset);
+        if (blockCache != null) {
+            blockCache.readBlocks(firstBlock, count, buffer, offset);
+        } else {
+            lDisk.readBlocks(firstBlock, count, buffer, offset);
+        }
+    }
+
+    /**
+     * Copies count consecutive blocks starting with firstBlock into buffer at its position, the
+     * position is not moved. Buffer can be direct, so blocks of a mapped disk are copied
+     * without passing through the heap.
+     *
+     * @param firstBlock index of the first block to read
+     * @param count number of blocks
+     * @param buffer buffer with at least count * B bytes remaining
+     */
+    public void readBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        checkBlocksRange(firstBlock, count, buffer.remaining());
+        if (blockCache != null) {
+            blockCache.readBlocks(firstBlock, count, buffer);
+        } else {
+            lDisk.readBlocks(firstBlock, count, buffer);
+        }
+    }
+
+    /**
+     * Copies count * B bytes of buffer starting at offset into consecutive blocks starting with firstBlock
+     *
+     * @param firstBlock index of the first block to write into
+     * @param count number of blocks
+     * @param buffer array of bytes to write into disk
+     * @param offset position in buffer
+     */
+    public void writeBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        checkBlocksRange(firstBlock, count, buffer.length - offset);
+        if (blockCache != null) {
+            blockCache.writeBlocks(firstBlock, count, buffer, offset);
+        } else {
+            lDisk.writeBlocks(firstBlock, count, buffer, offset);
+        }
+    }
+
+    /**
+     * Copies count * B bytes of buffer starting at its position into consecutive blocks starting
+     * with firstBlock, the position is not moved. Buffer can be direct or read-only.
+     *
+     * @param firstBlock index of the first block to write into
+     * @param count number of blocks
+     * @param buffer buffer with at least count * B bytes remaining
+     */
+    public void writeBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        checkBlocksRange(firstBlock, count, buffer.remaining());
+        if (blockCache != null) {
+            blockCache.writeBlocks(firstBlock, count, buffer);
+        } else {
+            lDisk.writeBlocks(firstBlock, count, buffer);
+        }
+    }
+
+    /**
+     * Fills consecutive blocks with bytes read from source, without copying them through a
+     * buffer of the caller. Stops when the source ends, the rest of the last block is zeroed.
+     *
+     * @param firstBlock index of the first block to write into
+     * @param count maximum number of blocks
+     * @return number of bytes read from source
+     */
+    public long transferFrom(ReadableByteChannel source, int firstBlock, int count) throws IOException {
+        checkBlocksRange(firstBlock, count, count * lDisk.blockLength);
+        if (blockCache != null) {
+            return blockCache.transferFrom(source, firstBlock, count);
+        }
+        return lDisk.transferFrom(source, firstBlock, count);
+    }
 
-        for (int k = 0; k < FileSystemConfig.BLOCK_LENGTH; k++) {
-            lDisk.bytes[blockIndex][k] = buffer[k];
+    /**
+     * Writes length bytes of consecutive blocks starting with firstBlock to target, without
+     * copying them through a buffer of the caller
+     */
+    public void transferTo(int firstBlock, long length, WritableByteChannel target) throws IOException {
+        int count = (int) ((length + lDisk.blockLength - 1) / lDisk.blockLength);
+        checkBlocksRange(firstBlock, count, count * lDisk.blockLength);
+        if (blockCache != null) {
+            blockCache.transferTo(firstBlock, length, target);
+        } else {
+            lDisk.transferTo(firstBlock, length, target);
         }
     }
 
+    /**
+     * Reads consecutive blocks into the block cache ahead of their use. If the disk is backed
+     * by a file, blocks are read in background and the call returns at once.
+     *
+     * @param firstBlock index of the first block to read
+     * @param count number of blocks
+     */
+    public void prefetchBlocks(int firstBlock, int count) {
+        if (blockCache == null || count <= 0) {
+            return;
+        }
+        checkBlocksRange(firstBlock, count, count * lDisk.blockLength);
+        if (lDisk.isFileBacked()) {
+            getPrefetcher().execute(() -> blockCache.prefetch(firstBlock, count));
+        } else {
+            blockCache.prefetch(firstBlock, count);
+        }
+    }
+
+    /**
+     * Tells that blocks are not used anymore, e.g. they were freed. Their contents are
+     * dropped instead of being zeroed: cached copies are not written back and incremental
+     * saves skip them. Blocks keep their old bytes on the disk.
+     *
+     * @param firstBlock index of the first block
+     * @param count number of blocks
+     */
+    public void discardBlocks(int firstBlock, int count) {
+        checkBlocksRange(firstBlock, count, count * lDisk.blockLength);
+        if (blockCache != null) {
+            blockCache.discard(firstBlock, count);
+        }
+        lDisk.discardBlocks(firstBlock, count);
+    }
+
+    private synchronized ExecutorService getPrefetcher() {
+        if (prefetcher == null) {
+            prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "block-prefetcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prefetcher;
+    }
+
+    private void checkBlocksRange(int firstBlock, int count, int bufferLength) {
+        if (0 > firstBlock || count < 0 || firstBlock + count > lDisk.blocksAmount) {
+            throw new IllegalArgumentException("Wrong block range");
+        }
+        if (bufferLength < count * lDisk.blockLength) {
+            throw new IllegalArgumentException("Buffer is shorter than the blocks");
+        }
+    }
+
+    /**
+     * Writes modified cached blocks to the disk
+     */
+    public void flush() {
+        if (blockCache != null) {
+            blockCache.flush();
+        }
+    }
+
+    /**
+     * Makes all written blocks durable, e.g. flushes mapped disk image
+     */
+    public void force() {
+        flush();
+        lDisk.force();
+    }
+
     /**
      * @author Medynskyi Mykola
      * @contributor Taisiia Fenz
      *
-     * saving lDisk to txt file
+     * saving lDisk to txt file. If the disk is mapped from this file, then it is enough
+     * to force the mapping. Otherwise the file gets a raw image of the disk (block i at offset
+     * i * B), which {@link #readDiskFromFile} maps again. The first save to a file writes all
+     * blocks, the next saves to the same file write only blocks modified since the previous
+     * save with positional writes.
      */
     public void saveDiskToFile(String filePath) {
-        try {
-            FileOutputStream fileOut = new FileOutputStream(filePath);
-            ObjectOutputStream objectOut = new ObjectOutputStream(fileOut);
-            objectOut.writeObject(lDisk);
-            objectOut.close();
-        } catch (Exception ex) {
+        flush();
+        if (lDisk instanceof MappedLDisk && ((MappedLDisk) lDisk).isBackedBy(filePath)) {
+            lDisk.force();
+            return;
+        }
+        Path path = Paths.get(filePath).toAbsolutePath().normalize();
+        long imageSize = (long) lDisk.blocksAmount * lDisk.blockLength;
+        BitSet blocks = lDisk.takeModifiedBlocks();
+        try (FileChannel image = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            boolean full = !path.equals(savedImagePath) || image.size() != imageSize;
+            if (full) {
+                blocks.set(0, lDisk.blocksAmount);
+                image.truncate(imageSize);
+            }
+            // one write for every run of modified blocks
+            for (int block = blocks.nextSetBit(0); block >= 0; ) {
+                int end = blocks.nextClearBit(block);
+                lDisk.writeToImage(image, block, end - block);
+                block = blocks.nextSetBit(end);
+            }
+            image.force(full);
+            savedImagePath = path;
+            lastSavedBlocks = blocks.cardinality();
+        } catch (IOException ex) {
+            // blocks which were taken may be lost, so the next save writes everything
+            savedImagePath = null;
             ex.printStackTrace();
         }
     }
 
+    /**
+     * @return number of blocks written to the image by the last save
+     */
+    public int getLastSavedBlocks() {
+        return lastSavedBlocks;
+    }
+
     /**
      * @author Medysnkyi Mykola
      * @contributor Taisiia Fenz
      *
-     * reading disk from txt file
+     * reading disk from txt file. Files which start with java serialization header contain a
+     * serialized disk (older saves), any other file is treated as a raw disk image and is
+     * mapped without reading it.
      *
+     * @return null if there is no such file or it can't be read
      */
     public LDisk readDiskFromFile(String filePath) {
+        if (!Files.exists(Paths.get(filePath))) {
+            // a missing image is not created, it would be an empty disk
+            System.out.println("ERROR! THERE IS NO DISK FILE " + filePath);
+            return null;
+        }
+        if (!isSerializedDisk(filePath)) {
+            return MappedLDisk.open(filePath);
+        }
         try {
             FileInputStream fileIn = new FileInputStream(filePath);
             ObjectInputStream objectIn = new ObjectInputStream(fileIn);
@@ -103,4 +387,15 @@ public class IOSystem {
         }
     }
 
+    /**
+     * Checks whether file starts with java serialization stream header
+     */
+    private boolean isSerializedDisk(String filePath) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filePath))) {
+            return in.readShort() == ObjectStreamConstants.STREAM_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
 }
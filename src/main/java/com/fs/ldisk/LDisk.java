@@ -2,15 +2,250 @@ package com.fs.ldisk;
 
 import com.fs.utils.FileSystemConfig;
 
+import java.io.IOException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * @author Nikita Pupov
  */
 public class LDisk implements Serializable {
+    private static final long serialVersionUID = 0x6349768bf11dd4ddL;
+
     public byte[][] bytes;
+    public final int blocksAmount;
+    public final int blockLength;
+    /**
+     * Blocks written since they were last taken by {@link #takeModifiedBlocks}
+     */
+    private transient BitSet modifiedBlocks;
 
     public LDisk() {
-        bytes = new byte[FileSystemConfig.BLOCKS_AMOUNT][FileSystemConfig.BLOCK_LENGTH];
+        this(FileSystemConfig.BLOCKS_AMOUNT, FileSystemConfig.BLOCK_LENGTH);
+    }
+
+    /**
+     * @param blocksAmount number of blocks on disk
+     * @param blockLength length of one block in bytes
+     */
+    public LDisk(int blocksAmount, int blockLength) {
+        this(blocksAmount, blockLength, true);
+    }
+
+    /**
+     * Constructor for disks which keep their blocks somewhere else than on the heap
+     * (see {@link MappedLDisk}), so the bytes array is not allocated.
+     */
+    protected LDisk(int blocksAmount, int blockLength, boolean allocateBlocks) {
+        if (blocksAmount <= 0 || blockLength <= 0) {
+            throw new IllegalArgumentException("Wrong disk geometry");
+        }
+        this.blocksAmount = blocksAmount;
+        this.blockLength = blockLength;
+        if (allocateBlocks) {
+            bytes = new byte[blocksAmount][blockLength];
+        }
+    }
+
+    /**
+     * Copies block with index blockIndex into buffer
+     *
+     * @param blockIndex index of the block to read
+     * @param buffer array of block length
+     */
+    public void readBlock(int blockIndex, byte[] buffer) {
+        System.arraycopy(bytes[blockIndex], 0, buffer, 0, blockLength);
+    }
+
+    /**
+     * Copies buffer into block with index blockIndex
+     *
+     * @param blockIndex index of the block to write into
+     * @param buffer array of block length
+     */
+    public void writeBlock(int blockIndex, byte[] buffer) {
+        System.arraycopy(buffer, 0, bytes[blockIndex], 0, blockLength);
+        markModified(blockIndex, 1);
+    }
+
+    /**
+     * Copies count consecutive blocks starting with firstBlock into buffer
+     *
+     * @param firstBlock index of the first block to read
+     * @param count number of blocks
+     * @param buffer array with at least count * blockLength bytes after offset
+     * @param offset position in buffer for the first block
+     */
+    public void readBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(bytes[firstBlock + i], 0, buffer, offset + i * blockLength, blockLength);
+        }
+    }
+
+    /**
+     * Copies count * blockLength bytes of buffer into consecutive blocks starting with firstBlock
+     *
+     * @param firstBlock index of the first block to write into
+     * @param count number of blocks
+     * @param buffer array with at least count * blockLength bytes after offset
+     * @param offset position in buffer of the first block
+     */
+    public void writeBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(buffer, offset + i * blockLength, bytes[firstBlock + i], 0, blockLength);
+        }
+        markModified(firstBlock, count);
+    }
+
+    /**
+     * Copies count consecutive blocks starting with firstBlock into buffer at its position.
+     * Buffer can be direct, its position is not moved.
+     *
+     * @param buffer buffer with at least count * blockLength bytes remaining
+     */
+    public void readBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        ByteBuffer target = buffer.duplicate();
+        for (int i = 0; i < count; i++) {
+            target.put(bytes[firstBlock + i], 0, blockLength);
+        }
+    }
+
+    /**
+     * Copies count * blockLength bytes of buffer starting at its position into consecutive
+     * blocks starting with firstBlock. Buffer can be direct or read-only, its position is not moved.
+     *
+     * @param buffer buffer with at least count * blockLength bytes remaining
+     */
+    public void writeBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        for (int i = 0; i < count; i++) {
+            source.get(bytes[firstBlock + i], 0, blockLength);
+        }
+        markModified(firstBlock, count);
+    }
+
+    /**
+     * Reads bytes from source straight into count consecutive blocks starting with firstBlock
+     * until the blocks are full or the source ends. The rest of the last partly filled block
+     * is zeroed.
+     *
+     * @return number of bytes read from source
+     */
+    public long transferFrom(ReadableByteChannel source, int firstBlock, int count) throws IOException {
+        markModified(firstBlock, count);
+        long transferred = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer block = ByteBuffer.wrap(bytes[firstBlock + i]);
+            transferred += readFully(source, block);
+            if (block.hasRemaining()) {
+                Arrays.fill(bytes[firstBlock + i], block.position(), blockLength, (byte) 0);
+                break;
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Writes length bytes of consecutive blocks starting with firstBlock straight to target
+     */
+    public void transferTo(int firstBlock, long length, WritableByteChannel target) throws IOException {
+        for (int block = firstBlock; length > 0; block++) {
+            ByteBuffer view = ByteBuffer.wrap(bytes[block], 0, (int) Math.min(length, blockLength));
+            length -= view.remaining();
+            while (view.hasRemaining()) {
+                target.write(view);
+            }
+        }
+    }
+
+    /**
+     * Writes count blocks starting with firstBlock to a raw image of the disk, block i is
+     * stored at offset i * blockLength of the image. Every block goes with a positional write,
+     * position of the channel is not used.
+     */
+    public void writeToImage(FileChannel image, int firstBlock, int count) throws IOException {
+        long position = (long) firstBlock * blockLength;
+        for (int block = firstBlock; block < firstBlock + count; block++) {
+            ByteBuffer view = ByteBuffer.wrap(bytes[block]);
+            while (view.hasRemaining()) {
+                position += image.write(view, position);
+            }
+        }
+    }
+
+    /**
+     * @return blocks written since the previous call, they are not reported again
+     */
+    public synchronized BitSet takeModifiedBlocks() {
+        BitSet taken = modifiedBlocks == null ? new BitSet() : modifiedBlocks;
+        modifiedBlocks = new BitSet(blocksAmount);
+        return taken;
+    }
+
+    /**
+     * Forgets that blocks which are not used anymore were written, so incremental saves don't
+     * copy them to the image
+     */
+    public synchronized void discardBlocks(int firstBlock, int count) {
+        if (modifiedBlocks != null) {
+            modifiedBlocks.clear(firstBlock, firstBlock + count);
+        }
+    }
+
+    protected synchronized void markModified(int firstBlock, int count) {
+        if (modifiedBlocks == null) {
+            modifiedBlocks = new BitSet(blocksAmount);
+        }
+        modifiedBlocks.set(firstBlock, firstBlock + count);
+    }
+
+    /**
+     * Reads from source until buffer is full or source ends
+     *
+     * @return number of read bytes
+     */
+    protected static int readFully(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            int n = source.read(buffer);
+            if (n == -1) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * Disks serialized before geometry was stored have no blocksAmount and blockLength,
+     * geometry of such disks is taken from the bytes array.
+     */
+    private Object readResolve() throws ObjectStreamException {
+        if (blockLength == 0 && bytes != null) {
+            LDisk disk = new LDisk(bytes.length, bytes[0].length, false);
+            disk.bytes = bytes;
+            return disk;
+        }
+        return this;
+    }
+
+    /**
+     * Makes all written blocks durable. Heap disk has nothing to do here.
+     */
+    public void force() {
+    }
+
+    /**
+     * @return whether blocks are read from a file, so it pays off to read them ahead in
+     * background. Heap disk is just copied from memory.
+     */
+    public boolean isFileBacked() {
+        return false;
     }
 }
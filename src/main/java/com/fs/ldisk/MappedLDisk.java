@@ -0,0 +1,277 @@
+package com.fs.ldisk;
+
+import com.fs.utils.FileSystemConfig;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Disk which keeps its blocks in a host image file instead of the heap. The image is
+ * mapped with {@link FileChannel#map} so reading and writing blocks goes straight to the
+ * mapped region and the operating system takes care of paging. Block i is stored at
+ * offset i * blockLength of the image.
+ *
+ * Image is mapped in regions, because one mapping can not be larger than 2 GiB.
+ */
+public class MappedLDisk extends LDisk {
+    private static final long serialVersionUID = 0x7218593ef8e2e5ebL;
+    private static final long MAXIMUM_REGION_SIZE = 1 << 30;
+    /**
+     * Formatted image starts with this magic followed by the block length and the number of
+     * blocks, it is the beginning of the superblock of the file system
+     */
+    public static final int IMAGE_MAGIC = 0x46534231;
+    private static final int IMAGE_HEADER_SIZE = 12;
+
+    private final String imagePath;
+    private final transient FileChannel channel;
+    private final transient MappedByteBuffer[] regions;
+    private final int blocksPerRegion;
+
+    /**
+     * Maps image file with default geometry, creates it (filled with zeros) if it does not exist
+     *
+     * @param imagePath path to the image file on the host
+     */
+    public MappedLDisk(String imagePath) {
+        this(imagePath, FileSystemConfig.BLOCKS_AMOUNT, FileSystemConfig.BLOCK_LENGTH);
+    }
+
+    /**
+     * Maps image file, creates it (filled with zeros) if it does not exist
+     *
+     * @param imagePath path to the image file on the host
+     * @param blocksAmount number of blocks on disk
+     * @param blockLength length of one block in bytes
+     */
+    public MappedLDisk(String imagePath, int blocksAmount, int blockLength) {
+        super(blocksAmount, blockLength, false);
+        this.imagePath = imagePath;
+        long imageSize = (long) blocksAmount * blockLength;
+        blocksPerRegion = (int) Math.min(blocksAmount, MAXIMUM_REGION_SIZE / blockLength);
+        try {
+            channel = FileChannel.open(Paths.get(imagePath), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            regions = new MappedByteBuffer[(blocksAmount + blocksPerRegion - 1) / blocksPerRegion];
+            for (int i = 0; i < regions.length; i++) {
+                long regionStart = (long) i * blocksPerRegion * blockLength;
+                long regionSize = Math.min((long) blocksPerRegion * blockLength, imageSize - regionStart);
+                regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't map disk image " + imagePath, e);
+        }
+    }
+
+    /**
+     * Maps existing image file with the geometry stored in its header, image without the
+     * header gets default geometry
+     *
+     * @param imagePath path to the image file on the host
+     */
+    public static MappedLDisk open(String imagePath) {
+        try (FileChannel image = FileChannel.open(Paths.get(imagePath), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(IMAGE_HEADER_SIZE);
+            image.read(header, 0);
+            if (header.position() == IMAGE_HEADER_SIZE && header.getInt(0) == IMAGE_MAGIC) {
+                return new MappedLDisk(imagePath, header.getInt(8), header.getInt(4));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read disk image " + imagePath, e);
+        }
+        return new MappedLDisk(imagePath);
+    }
+
+    public String getImagePath() {
+        return imagePath;
+    }
+
+    public boolean isBackedBy(String filePath) {
+        return Paths.get(imagePath).toAbsolutePath().normalize()
+                .equals(Paths.get(filePath).toAbsolutePath().normalize());
+    }
+
+    @Override
+    public void readBlock(int blockIndex, byte[] buffer) {
+        blockView(blockIndex).get(buffer, 0, blockLength);
+    }
+
+    @Override
+    public void writeBlock(int blockIndex, byte[] buffer) {
+        blockView(blockIndex).put(buffer, 0, blockLength);
+        markModified(blockIndex, 1);
+    }
+
+    /**
+     * Blocks of one region are copied with one bulk get
+     */
+    @Override
+    public void readBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        while (count > 0) {
+            int blocksInRegion = Math.min(count, blocksPerRegion - firstBlock % blocksPerRegion);
+            blockView(firstBlock).get(buffer, offset, blocksInRegion * blockLength);
+            firstBlock += blocksInRegion;
+            offset += blocksInRegion * blockLength;
+            count -= blocksInRegion;
+        }
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, int count, byte[] buffer, int offset) {
+        markModified(firstBlock, count);
+        while (count > 0) {
+            int blocksInRegion = Math.min(count, blocksPerRegion - firstBlock % blocksPerRegion);
+            blockView(firstBlock).put(buffer, offset, blocksInRegion * blockLength);
+            firstBlock += blocksInRegion;
+            offset += blocksInRegion * blockLength;
+            count -= blocksInRegion;
+        }
+    }
+
+    /**
+     * Blocks of one region are copied with one bulk put, a direct buffer gets them without
+     * passing through the heap
+     */
+    @Override
+    public void readBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        ByteBuffer target = buffer.duplicate();
+        while (count > 0) {
+            int blocksInRegion = Math.min(count, blocksPerRegion - firstBlock % blocksPerRegion);
+            ByteBuffer view = blockView(firstBlock);
+            view.limit(view.position() + blocksInRegion * blockLength);
+            target.put(view);
+            firstBlock += blocksInRegion;
+            count -= blocksInRegion;
+        }
+    }
+
+    @Override
+    public void writeBlocks(int firstBlock, int count, ByteBuffer buffer) {
+        markModified(firstBlock, count);
+        ByteBuffer source = buffer.duplicate();
+        while (count > 0) {
+            int blocksInRegion = Math.min(count, blocksPerRegion - firstBlock % blocksPerRegion);
+            source.limit(source.position() + blocksInRegion * blockLength);
+            blockView(firstBlock).put(source);
+            firstBlock += blocksInRegion;
+            count -= blocksInRegion;
+        }
+    }
+
+    /**
+     * Bytes are moved between source and the image file with {@link FileChannel#transferFrom},
+     * so they don't pass through the heap. Writes to the image channel and the mapping share
+     * the page cache of the host, the mapping sees them at once.
+     */
+    @Override
+    public long transferFrom(ReadableByteChannel source, int firstBlock, int count) throws IOException {
+        markModified(firstBlock, count);
+        long position = (long) firstBlock * blockLength;
+        long length = (long) count * blockLength;
+        long transferred = 0;
+        while (transferred < length) {
+            long n = channel.transferFrom(source, position + transferred, length - transferred);
+            if (n <= 0) {
+                break;
+            }
+            transferred += n;
+        }
+        int tail = (int) (transferred % blockLength);
+        if (tail != 0) {
+            ByteBuffer view = blockView(firstBlock + (int) (transferred / blockLength));
+            view.position(view.position() + tail);
+            view.put(new byte[blockLength - tail]);
+        }
+        return transferred;
+    }
+
+    /**
+     * Bytes go from the image file to target with {@link FileChannel#transferTo}, which lets
+     * the host copy them without bringing them into the JVM
+     */
+    @Override
+    public void transferTo(int firstBlock, long length, WritableByteChannel target) throws IOException {
+        long position = (long) firstBlock * blockLength;
+        long transferred = 0;
+        while (transferred < length) {
+            long n = channel.transferTo(position + transferred, length - transferred, target);
+            if (n <= 0) {
+                break;
+            }
+            transferred += n;
+        }
+    }
+
+    /**
+     * Blocks of one region go to the image with one positional write
+     */
+    @Override
+    public void writeToImage(FileChannel image, int firstBlock, int count) throws IOException {
+        long position = (long) firstBlock * blockLength;
+        while (count > 0) {
+            int blocksInRegion = Math.min(count, blocksPerRegion - firstBlock % blocksPerRegion);
+            ByteBuffer view = blockView(firstBlock);
+            view.limit(view.position() + blocksInRegion * blockLength);
+            while (view.hasRemaining()) {
+                position += image.write(view, position);
+            }
+            firstBlock += blocksInRegion;
+            count -= blocksInRegion;
+        }
+    }
+
+    /**
+     * Flushes modified pages of the mapping to the image file
+     */
+    @Override
+    public void force() {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+    }
+
+    @Override
+    public boolean isFileBacked() {
+        return true;
+    }
+
+    /**
+     * Forces the mapping and closes the image file. Mapping stays valid until it is
+     * garbage collected, but disk must not be used after closing.
+     */
+    public void close() {
+        force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Serializing mapped disk makes a heap copy of it, so saving the disk with
+     * {@link java.io.ObjectOutputStream} keeps working.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        LDisk copy = new LDisk(blocksAmount, blockLength);
+        for (int i = 0; i < blocksAmount; i++) {
+            readBlock(i, copy.bytes[i]);
+        }
+        return copy;
+    }
+
+    private ByteBuffer blockView(int blockIndex) {
+        // duplicate, so concurrent users don't share position of the region
+        ByteBuffer view = regions[blockIndex / blocksPerRegion].duplicate();
+        view.position((blockIndex % blocksPerRegion) * blockLength);
+        return view;
+    }
+}
@@ -1,7 +1,10 @@
 package com.fs.shell;
 
 import com.fs.filesystem.FileSystem;
+import com.fs.filesystem.Superblock;
 import com.fs.iosystem.IOSystem;
+import com.fs.ldisk.MappedLDisk;
+import com.fs.utils.FileSystemConfig;
 
 import java.io.File;
 import java.io.IOException;
@@ -39,10 +42,13 @@ public class Shell {
 
             switch (commandName) {
                 case "cr": {
-                    if (input.length != 2) {
+                    // "cr <name> c" creates a compressed file
+                    if (input.length == 3 && input[2].equals("c")) {
+                        create(input[1], true);
+                    } else if (input.length != 2) {
                         System.out.println("Error");
                     } else {
-                        create(input[1]);
+                        create(input[1], false);
                     }
                     break;
                 }
@@ -119,10 +125,40 @@ public class Shell {
                     break;
                 }
                 case "in": {
-                    if (input.length != 2) {
+                    if (input.length == 2) {
+                        init(input[1]);
+                    } else if (input.length == 5) {
+                        try {
+                            init(input[1], Integer.parseInt(input[2]), Integer.parseInt(input[3]), Integer.parseInt(input[4]));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Error");
+                        }
+                    } else {
+                        System.out.println("Error");
+                    }
+                    break;
+                }
+                case "im": {
+                    if (input.length != 3) {
                         System.out.println("Error");
                     } else {
-                        init(input[1]);
+                        importFile(input[1], input[2]);
+                    }
+                    break;
+                }
+                case "ex": {
+                    if (input.length != 3) {
+                        System.out.println("Error");
+                    } else {
+                        exportFile(input[1], input[2]);
+                    }
+                    break;
+                }
+                case "cp": {
+                    if (input.length != 3) {
+                        System.out.println("Error");
+                    } else {
+                        cloneFile(input[1], input[2]);
                     }
                     break;
                 }
@@ -141,8 +177,8 @@ public class Shell {
         }
     }
 
-    private void create(String fileName) {
-        if (fileSystem.create(fileName) == -1) {
+    private void create(String fileName, boolean compressed) {
+        if (fileSystem.create(fileName, compressed) == -1) {
             System.out.println("Error");
             return;
         }
@@ -218,18 +254,62 @@ public class Shell {
         System.out.println("current position is " + pos);
     }
 
+    private void importFile(String hostPath, String fileName) {
+        int numOfImportedBytes = fileSystem.importFile(hostPath, fileName);
+        if (numOfImportedBytes == -1) {
+            System.out.println("Error");
+            return;
+        }
+        System.out.println(numOfImportedBytes + " bytes imported into " + fileName);
+    }
+
+    private void cloneFile(String sourceName, String fileName) {
+        if (fileSystem.cloneFile(sourceName, fileName) == -1) {
+            System.out.println("Error");
+            return;
+        }
+        System.out.println("file " + sourceName + " cloned into " + fileName);
+    }
+
+    private void exportFile(String fileName, String hostPath) {
+        int numOfExportedBytes = fileSystem.exportFile(fileName, hostPath);
+        if (numOfExportedBytes == -1) {
+            System.out.println("Error");
+            return;
+        }
+        System.out.println(numOfExportedBytes + " bytes exported to " + hostPath);
+    }
+
     private void directory() {
         System.out.println("list of all files:");
         fileSystem.listDirectory();
     }
 
     private void init(String diskCont) {
+        init(diskCont, FileSystemConfig.BLOCKS_AMOUNT, FileSystemConfig.BLOCK_LENGTH, FileSystemConfig.NUMBER_OF_DESCRIPTORS);
+    }
+
+    /**
+     * Restores disk from the file or, if there is no such file, formats a new disk image
+     * with the given geometry
+     */
+    private void init(String diskCont, int blocksAmount, int blockLength, int numberOfDescriptors) {
         File f = new File(diskCont);
         if (f.exists()) {
             fileSystem = new FileSystem(ioSystem.readDiskFromFile(diskCont));
+            ioSystem = fileSystem.ioSystem;
             System.out.println("disk restored");
         } else {
-            fileSystem = new FileSystem(ioSystem);
+            try {
+                // check geometry before the image file is created
+                Superblock.forGeometry(blocksAmount, blockLength, numberOfDescriptors);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Error");
+                return;
+            }
+            // new disk is backed by the image file, so it is saved without serialization
+            ioSystem = new IOSystem(new MappedLDisk(diskCont, blocksAmount, blockLength));
+            fileSystem = new FileSystem(ioSystem, numberOfDescriptors);
             System.out.println("disk initialized");
         }
     }
@@ -245,8 +325,9 @@ public class Shell {
             }
         }
 
-        fileSystem.closeAllFiles();
+        // open files stay open, only what was modified since the last save is written
+        fileSystem.sync();
         fileSystem.ioSystem.saveDiskToFile(diskCont);
-        System.out.println("disk saved");
+        System.out.println("disk saved, " + fileSystem.ioSystem.getLastSavedBlocks() + " blocks written");
     }
 }
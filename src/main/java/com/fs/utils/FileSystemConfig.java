@@ -11,9 +11,64 @@ public class FileSystemConfig {
     final public static int MAXIMUM_FILE_NAME_LENGTH = 4;
     final public static int ERROR = -1;
     final public static int SUCCESS = 1;
-    final public static int MAXIMUM_NUMBER_OF_BLOCKS_PER_FILE = 3;
+    /**
+     * Number of file block indexes in descriptors of disks formatted without superblock
+     */
+    final public static int LEGACY_BLOCKS_PER_FILE = 3;
     final public static int BITMAP_LENGTH_ON_DISK = 8;
     final public static int MAXIMUM_DIRECTORY_ENTRIES_PER_BLOCK = 8;
     public static final int BLOCK_LENGTH = 64;
     public static final int BLOCKS_AMOUNT = 64;
+    /**
+     * Size of descriptor on disk: 4 bytes for file length, 8 bytes for the first extent and
+     * 4 bytes for the index of the single indirect extent block. Legacy descriptors with
+     * 3 block indexes have the same size.
+     */
+    public static final int DESCRIPTOR_SIZE = 16;
+    /**
+     * Size of directory entry on disk: file name and 4 bytes for descriptor index
+     */
+    public static final int DIRECTORY_ENTRY_SIZE = MAXIMUM_FILE_NAME_LENGTH + 4;
+    /**
+     * Open file table grows up to this number of entries, including the directory entry
+     */
+    public static final int MAXIMUM_NUMBER_OF_OPEN_FILES = 1 << 16;
+    /**
+     * How often modified metadata blocks are flushed, in milliseconds. 0 - at the end of every
+     * operation, negative - only on close, closeAllFiles and sync. Every flush forces the disk,
+     * twice with the journal, so by default changes of many operations are flushed together.
+     */
+    public static final long METADATA_FLUSH_INTERVAL = 1000;
+    /**
+     * Number of blocks kept in the block cache of IOSystem
+     */
+    public static final int BLOCK_CACHE_SIZE = 256;
+    /**
+     * Readahead window of a sequentially read file starts with this number of blocks and
+     * doubles up to the maximum
+     */
+    public static final int INITIAL_READAHEAD_BLOCKS = 4;
+    public static final int MAXIMUM_READAHEAD_BLOCKS = 32;
+    /**
+     * Number of written blocks after the end of a file which wait in memory for disk blocks,
+     * when there are more of them they are allocated and written
+     */
+    public static final int MAXIMUM_DELAYED_BLOCKS = 64;
+    /**
+     * Minimum number of blocks reserved for the journal on disks formatted with journal
+     */
+    public static final int JOURNAL_BLOCKS = 16;
+    /**
+     * Journal takes at least one block per this number of metadata blocks (superblock, bitmap,
+     * reference counts and descriptors), so flushes of large disks fit into it as well
+     */
+    public static final int METADATA_BLOCKS_PER_JOURNAL_BLOCK = 4;
+    /**
+     * Number of threads of the asynchronous file system and of its I/O scheduler
+     */
+    public static final int NUMBER_OF_IO_THREADS = 4;
+    /**
+     * Maximum number of block transfers queued in the I/O scheduler
+     */
+    public static final int IO_QUEUE_CAPACITY = 256;
 }
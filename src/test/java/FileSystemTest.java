@@ -1,15 +1,35 @@
 
+import com.fs.filesystem.AsyncFileSystem;
+import com.fs.filesystem.BlockAllocator;
 import com.fs.filesystem.Directory;
+import com.fs.filesystem.Extent;
+import com.fs.filesystem.FileDescriptor;
 import com.fs.filesystem.FileSystem;
+import com.fs.filesystem.Superblock;
+import com.fs.iosystem.BlockCache;
+import com.fs.iosystem.IOScheduler;
 import com.fs.iosystem.IOSystem;
 import com.fs.ldisk.LDisk;
+import com.fs.ldisk.MappedLDisk;
 import com.fs.utils.FileSystemConfig;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.BitSet;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -19,6 +39,8 @@ public class FileSystemTest {
     @BeforeEach
     void init() {
         fileSystem = new FileSystem(new IOSystem(new LDisk()));
+        // tests check the disk right after the operations
+        fileSystem.setMetadataFlushInterval(0);
     }
 
     @Test
@@ -137,7 +159,7 @@ public class FileSystemTest {
 
         //oftIndex points to first empty OFT entry
         assertEquals(1, oftIndex);
-        assertNotNull(fileSystem.openFileTable.entries[oftIndex]);
+        assertNotNull(fileSystem.openFileTable.getEntry(oftIndex));
     }
 
     @Test
@@ -150,13 +172,23 @@ public class FileSystemTest {
     @Test
     public void open_alreadyOpened() {
         fileSystem.create("FILE");
-        fileSystem.open("FILE");
-        int response = fileSystem.open("FILE");
-        assertEquals(-1, response);
+        int first = fileSystem.open("FILE");
+        int second = fileSystem.open("FILE");
+        assertNotEquals(-1, second);
+        assertNotEquals(first, second);
+
+        // both entries see what the other one has written
+        byte[] data = "abcdef".getBytes();
+        assertEquals(data.length, fileSystem.write(first, data, data.length));
+        ByteBuffer readBuffer = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, fileSystem.read(second, readBuffer, data.length));
+        assertArrayEquals(data, readBuffer.array());
+        assertEquals(FileSystemConfig.ERROR, fileSystem.destroy("FILE"));
     }
 
     @Test
     public void open_noMoreFreeOftEntries() {
+        fileSystem.openFileTable.setMaximumNumberOfEntries(4);
         fileSystem.create("F");
         int response = fileSystem.open("F");
 
@@ -175,6 +207,18 @@ public class FileSystemTest {
         assertEquals(-1, response3);
     }
 
+    @Test
+    public void open_manyFiles() {
+        fileSystem.create("F");
+        for (int i = 1; i <= 1000; i++) {
+            assertEquals(i, fileSystem.open("F"));
+        }
+        assertEquals(1, fileSystem.close(500));
+        assertEquals(500, fileSystem.open("F"));
+        assertEquals(1, fileSystem.closeAllFiles());
+        assertEquals(FileSystemConfig.SUCCESS, fileSystem.destroy("F"));
+    }
+
     @Test
     public void close() {
         fileSystem.create("FILE");
@@ -184,7 +228,7 @@ public class FileSystemTest {
 
         assertEquals(1, response);
         //entry is cleaned
-        assertNull(fileSystem.openFileTable.entries[oftIndex]);
+        assertNull(fileSystem.openFileTable.getEntry(oftIndex));
     }
 
     @Test
@@ -248,13 +292,988 @@ public class FileSystemTest {
 
 
     @Test
-    void saveDiskToFile() {
+    void saveDiskToFile(@TempDir Path tempDir) {
+        String diskPath = tempDir.resolve("disk.txt").toString();
         fileSystem.create("file");
-        fileSystem.ioSystem.saveDiskToFile("disk.txt");
-        LDisk disk = fileSystem.ioSystem.readDiskFromFile("disk.txt");
+        fileSystem.ioSystem.saveDiskToFile(diskPath);
+        LDisk disk = fileSystem.ioSystem.readDiskFromFile(diskPath);
         FileSystem newFileSystem = new FileSystem(disk);
         assertEquals(fileSystem.searchFreeDataBlock(fileSystem.bitmap), newFileSystem.searchFreeDataBlock(newFileSystem.bitmap));
-        assertEquals(fileSystem.directory.listOfEntries.get(0).fileName, newFileSystem.directory.listOfEntries.get(0).fileName);
+        assertEquals(fileSystem.directory.listOfEntries.get(0).fileName, newFileSystem.getDirectory().listOfEntries.get(0).fileName);
+    }
+
+    @Test
+    void mappedDiskImage(@TempDir Path tempDir) {
+        String imagePath = tempDir.resolve("disk.img").toString();
+        FileSystem mappedFileSystem = new FileSystem(new IOSystem(new MappedLDisk(imagePath)));
+        mappedFileSystem.create("file");
+        int oftIndex = mappedFileSystem.open("file");
+        byte[] memArea = new byte[100];
+        Arrays.fill(memArea, (byte) 'x');
+        mappedFileSystem.write(oftIndex, memArea, 100);
+        mappedFileSystem.close(oftIndex);
+        mappedFileSystem.ioSystem.saveDiskToFile(imagePath);
+
+        // raw image is mapped again instead of being deserialized
+        LDisk disk = mappedFileSystem.ioSystem.readDiskFromFile(imagePath);
+        assertTrue(disk instanceof MappedLDisk);
+        FileSystem newFileSystem = new FileSystem(disk);
+        oftIndex = newFileSystem.open("file");
+        ByteBuffer readBuffer = ByteBuffer.allocate(100);
+        assertEquals(100, newFileSystem.read(oftIndex, readBuffer, 100));
+        assertEquals('x', readBuffer.get(99));
+
+        // missing image is not created
+        Path missing = tempDir.resolve("missing.img");
+        assertNull(newFileSystem.ioSystem.readDiskFromFile(missing.toString()));
+        assertFalse(Files.exists(missing));
+    }
+
+    @Test
+    void scatterGather() {
+        FileSystem fs = new FileSystem(new IOSystem(new LDisk(512, 64)), 8);
+        fs.create("A");
+        int oftIndex = fs.open("A");
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(0, 0xCAFE).putInt(4, 150);
+        byte[] payload = new byte[150];
+        Arrays.fill(payload, (byte) 'p');
+        // payload is taken from its position, so the first 10 bytes are not written
+        ByteBuffer payloadBuffer = ByteBuffer.wrap(new byte[160]);
+        payloadBuffer.position(10).put(payload).position(10);
+        assertEquals(158, fs.write(oftIndex, new ByteBuffer[]{header, payloadBuffer}));
+        assertFalse(header.hasRemaining());
+        assertFalse(payloadBuffer.hasRemaining());
+
+        fs.seek(oftIndex, 0);
+        ByteBuffer readHeader = ByteBuffer.allocate(8);
+        ByteBuffer readPayload = ByteBuffer.allocate(150);
+        assertEquals(158, fs.read(oftIndex, new ByteBuffer[]{readHeader, readPayload}));
+        assertEquals(0xCAFE, readHeader.getInt(0));
+        assertEquals(150, readHeader.getInt(4));
+        assertArrayEquals(payload, readPayload.array());
+        assertEquals(150, readPayload.position());
+        assertEquals(-1, fs.read(0, new ByteBuffer[]{readHeader}));
+        fs.close(oftIndex);
+    }
+
+    @Test
+    void directAndSlicedBuffers(@TempDir Path tempDir) {
+        FileSystem heapFileSystem = new FileSystem(new IOSystem(new LDisk(512, 64)), 8);
+        FileSystem mappedFileSystem = new FileSystem(new IOSystem(new MappedLDisk(tempDir.resolve("disk.img").toString(), 512, 64), 0), 8);
+        byte[] data = new byte[64 * 5 + 7];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        for (FileSystem fs : new FileSystem[]{heapFileSystem, mappedFileSystem}) {
+            fs.create("A");
+            int oftIndex = fs.open("A");
+            ByteBuffer source = ByteBuffer.allocateDirect(data.length).put(data).flip().asReadOnlyBuffer();
+            assertEquals(data.length, fs.write(oftIndex, new ByteBuffer[]{source}));
+
+            fs.seek(oftIndex, 0);
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            assertEquals(data.length, fs.read(oftIndex, new ByteBuffer[]{direct}));
+            byte[] readBack = new byte[data.length];
+            direct.flip().get(readBack);
+            assertArrayEquals(data, readBack);
+
+            // single buffer read starts at the position of a slice and stops at its limit
+            fs.seek(oftIndex, 0);
+            ByteBuffer pooled = ByteBuffer.allocate(data.length + 100);
+            pooled.position(50).limit(50 + data.length);
+            ByteBuffer slice = pooled.slice();
+            slice.position(1);
+            assertEquals(data.length - 1, fs.read(oftIndex, slice, data.length));
+            assertEquals(1, slice.position());
+            assertEquals(0, pooled.get(50));
+            assertArrayEquals(Arrays.copyOf(data, data.length - 1), Arrays.copyOfRange(pooled.array(), 51, 50 + data.length));
+
+            ByteBuffer block = ByteBuffer.allocateDirect(64);
+            fs.ioSystem.readBlock(0, block);
+            assertEquals(0, block.position());
+            assertEquals(Superblock.MAGIC, block.getInt(0));
+            fs.close(oftIndex);
+        }
+    }
+
+    @Test
+    void importAndExportHostFiles(@TempDir Path tempDir) throws Exception {
+        byte[] data = new byte[64 * 20 + 10];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        Path hostFile = tempDir.resolve("host.bin");
+        Files.write(hostFile, data);
+
+        FileSystem heapFileSystem = new FileSystem(new IOSystem(new LDisk(512, 64)), 8);
+        FileSystem mappedFileSystem = new FileSystem(new IOSystem(new MappedLDisk(tempDir.resolve("disk.img").toString(), 512, 64)), 8);
+        for (FileSystem fs : new FileSystem[]{heapFileSystem, mappedFileSystem}) {
+            assertEquals(data.length, fs.importFile(hostFile.toString(), "A"));
+            int oftIndex = fs.open("A");
+            ByteBuffer readBuffer = ByteBuffer.allocate(data.length + 64);
+            assertEquals(data.length, fs.read(oftIndex, readBuffer, readBuffer.capacity()));
+            assertArrayEquals(data, Arrays.copyOf(readBuffer.array(), data.length));
+            // appended bytes continue the partly filled last block
+            fs.write(oftIndex, new byte[]{1, 2}, 2);
+            fs.close(oftIndex);
+
+            Path exported = tempDir.resolve("exported.bin");
+            assertEquals(data.length + 2, fs.exportFile("A", exported.toString()));
+            byte[] expected = Arrays.copyOf(data, data.length + 2);
+            expected[data.length] = 1;
+            expected[data.length + 1] = 2;
+            assertArrayEquals(expected, Files.readAllBytes(exported));
+        }
+        assertEquals(-1, heapFileSystem.importFile(tempDir.resolve("missing").toString(), "B"));
+    }
+
+    @Test
+    void compressedFile(@TempDir Path tempDir) throws Exception {
+        LDisk disk = new LDisk(256, 256);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8);
+        // every write stores the last block again, so rewritten records are compacted
+        fs.setConcurrent(true);
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; log.length() < 256 * 40; i++) {
+            log.append("2026-10-18 12:00:").append(i % 60).append(" INFO request ").append(i).append(" served\n");
+        }
+        byte[] data = Arrays.copyOf(log.toString().getBytes(), 256 * 40);
+        assertEquals(FileSystemConfig.SUCCESS, fs.create("LOG", true));
+        int oftIndex = fs.open("LOG");
+        for (int written = 0; written < data.length; written += 100) {
+            int count = Math.min(100, data.length - written);
+            assertEquals(count, fs.write(oftIndex, Arrays.copyOfRange(data, written, written + count), count));
+        }
+        // incompressible block is stored raw
+        byte[] random = new byte[256];
+        new java.util.Random(1).nextBytes(random);
+        fs.seek(oftIndex, 256 * 10);
+        fs.write(oftIndex, random, random.length);
+        System.arraycopy(random, 0, data, 256 * 10, random.length);
+        fs.close(oftIndex);
+
+        int descriptorIndex = fs.getDirectory().findEntry("LOG").fileDescriptorIndex;
+        assertTrue(fs.descriptors[descriptorIndex].compressed);
+        assertTrue(fs.descriptors[descriptorIndex].getNumberOfBlocks() < 40 / 2);
+
+        FileSystem mounted = new FileSystem(disk);
+        oftIndex = mounted.open("LOG");
+        ByteBuffer readBuffer = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, mounted.read(oftIndex, readBuffer, data.length));
+        assertArrayEquals(data, readBuffer.array());
+        mounted.close(oftIndex);
+
+        Path exported = tempDir.resolve("log.txt");
+        assertEquals(data.length, mounted.exportFile("LOG", exported.toString()));
+        assertArrayEquals(data, Files.readAllBytes(exported));
+        assertEquals(FileSystemConfig.SUCCESS, mounted.destroy("LOG"));
+    }
+
+    @Test
+    void compactionKeepsOldLogUntilFlush() {
+        LDisk disk = new LDisk(256, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8);
+        fs.setConcurrent(true);
+        fs.setMetadataFlushInterval(-1);
+        assertEquals(FileSystemConfig.SUCCESS, fs.create("C", true));
+        int oftIndex = fs.open("C");
+        byte[] block = new byte[64];
+        for (int i = 0; i < 30; i++) {
+            Arrays.fill(block, (byte) i);
+            fs.seek(oftIndex, 0);
+            assertEquals(64, fs.write(oftIndex, block, 64));
+        }
+        // compacted log went to new blocks, old ones are freed after the descriptor is flushed
+        int freeBeforeFlush = fs.allocator.getFreeBlocks();
+        fs.flushMetadata();
+        assertTrue(fs.allocator.getFreeBlocks() > freeBeforeFlush);
+        fs.close(oftIndex);
+
+        FileSystem mounted = new FileSystem(disk);
+        assertArrayEquals(block, readAll(mounted, "C", 64));
+        assertEquals(fs.allocator.getFreeBlocks(), mounted.allocator.getFreeBlocks());
+    }
+
+    @Test
+    void deduplicatedBlocks() {
+        LDisk disk = new LDisk(256, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8, Superblock.FEATURE_DEDUP);
+        fs.setMetadataFlushInterval(0);
+        // blocks with the same contents in one file and in two files
+        byte[] data = new byte[64 * 8];
+        Arrays.fill(data, (byte) 'a');
+        int freeBefore = fs.allocator.getFreeBlocks();
+        fs.create("A");
+        fs.create("B");
+        int oftIndexA = fs.open("A");
+        assertEquals(data.length, fs.write(oftIndexA, data, data.length));
+        fs.close(oftIndexA);
+        int oftIndexB = fs.open("B");
+        assertEquals(data.length, fs.write(oftIndexB, data, data.length));
+        // shared block is copied on write, A keeps its contents
+        fs.seek(oftIndexB, 64 * 3);
+        assertEquals(1, fs.write(oftIndexB, new byte[]{'b'}, 1));
+        fs.close(oftIndexB);
+        // without dedup the files take 16 data blocks, extents of single blocks take some
+        assertTrue(freeBefore - fs.allocator.getFreeBlocks() < 2 * 8);
+
+        byte[] changed = data.clone();
+        changed[64 * 3] = 'b';
+        FileSystem mounted = new FileSystem(disk);
+        mounted.setMetadataFlushInterval(0);
+        assertArrayEquals(data, readAll(mounted, "A", data.length));
+        assertArrayEquals(changed, readAll(mounted, "B", data.length));
+
+        // blocks of B are still used by A
+        int sharedBlock = mounted.descriptors[mounted.getDirectory().findEntry("A").fileDescriptorIndex].getDiskBlock(0);
+        assertTrue(mounted.allocator.isShared(sharedBlock));
+        assertEquals(FileSystemConfig.SUCCESS, mounted.destroy("B"));
+        assertFalse(mounted.allocator.isFree(sharedBlock));
+        assertArrayEquals(data, readAll(mounted, "A", data.length));
+        assertEquals(FileSystemConfig.SUCCESS, mounted.destroy("A"));
+        assertEquals(freeBefore, mounted.allocator.getFreeBlocks());
+    }
+
+    @Test
+    void clonedFile() {
+        FileSystem plain = new FileSystem(new IOSystem(new LDisk(64, 64)), 4);
+        plain.create("A");
+        assertEquals(FileSystemConfig.ERROR, plain.cloneFile("A", "B"));
+
+        LDisk disk = new LDisk(256, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8, Superblock.FEATURE_CLONE);
+        fs.setMetadataFlushInterval(0);
+        byte[] data = new byte[64 * 8];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        fs.create("A");
+        int oftIndex = fs.open("A");
+        assertEquals(data.length, fs.write(oftIndex, data, data.length));
+        // modified buffer of the open source is cloned as well
+        int freeBefore = fs.allocator.getFreeBlocks();
+        assertEquals(FileSystemConfig.SUCCESS, fs.cloneFile("A", "B"));
+        assertEquals(freeBefore, fs.allocator.getFreeBlocks());
+        fs.close(oftIndex);
+        assertArrayEquals(data, readAll(fs, "B", data.length));
+
+        // the block B writes to is copied, A keeps its contents
+        oftIndex = fs.open("B");
+        fs.seek(oftIndex, 64 * 2 + 5);
+        assertEquals(1, fs.write(oftIndex, new byte[]{'b'}, 1));
+        fs.close(oftIndex);
+        byte[] changed = data.clone();
+        changed[64 * 2 + 5] = 'b';
+
+        FileSystem mounted = new FileSystem(disk);
+        mounted.setMetadataFlushInterval(0);
+        assertArrayEquals(data, readAll(mounted, "A", data.length));
+        assertArrayEquals(changed, readAll(mounted, "B", data.length));
+        assertEquals(FileSystemConfig.SUCCESS, mounted.destroy("A"));
+        assertArrayEquals(changed, readAll(mounted, "B", data.length));
+        assertEquals(FileSystemConfig.SUCCESS, mounted.destroy("B"));
+        assertEquals(freeBefore + 8, mounted.allocator.getFreeBlocks());
+    }
+
+    @Test
+    void sparseFile(@TempDir Path tempDir) throws Exception {
+        LDisk disk = new LDisk(256, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8);
+        fs.setMetadataFlushInterval(0);
+        int freeBefore = fs.allocator.getFreeBlocks();
+        fs.create("S");
+        int oftIndex = fs.open("S");
+        // write after the end of file leaves a hole of blocks 1-9
+        assertEquals(1, fs.seek(oftIndex, 64 * 10 + 3));
+        assertEquals(5, fs.write(oftIndex, "hello".getBytes(), 5));
+        FileDescriptor fileDescriptor = fs.descriptors[fs.getDirectory().findEntry("S").fileDescriptorIndex];
+        assertEquals(9, fileDescriptor.getHoleBlocks(1));
+        assertEquals(-1, fileDescriptor.getDiskBlock(5));
+        // the first block, the written block and the indirect block with extents
+        assertEquals(3, freeBefore - fs.allocator.getFreeBlocks());
+
+        byte[] expected = new byte[fileDescriptor.fileLength];
+        System.arraycopy("hello".getBytes(), 0, expected, 64 * 10 + 3, 5);
+        fs.seek(oftIndex, 64);
+        long readsBefore = fs.ioSystem.getReadBlockCalls();
+        ByteBuffer hole = ByteBuffer.allocate(64 * 9);
+        assertEquals(64 * 9, fs.read(oftIndex, hole, hole.capacity()));
+        // holes are read without touching the disk
+        assertEquals(readsBefore, fs.ioSystem.getReadBlockCalls());
+        assertArrayEquals(new byte[64 * 9], hole.array());
+
+        // block in the middle of the hole gets a disk block
+        fs.seek(oftIndex, 64 * 4 + 1);
+        assertEquals(2, fs.write(oftIndex, "ab".getBytes(), 2));
+        fs.close(oftIndex);
+        System.arraycopy("ab".getBytes(), 0, expected, 64 * 4 + 1, 2);
+        assertEquals(3, fileDescriptor.getHoleBlocks(1));
+
+        FileSystem mounted = new FileSystem(disk);
+        mounted.setMetadataFlushInterval(0);
+        assertArrayEquals(expected, readAll(mounted, "S", expected.length));
+        Path exported = tempDir.resolve("sparse.bin");
+        assertEquals(expected.length, mounted.exportFile("S", exported.toString()));
+        assertArrayEquals(expected, Files.readAllBytes(exported));
+
+        // freed blocks are discarded, not zeroed
+        int lastBlock = fileDescriptor.getDiskBlock(10);
+        assertEquals(FileSystemConfig.SUCCESS, mounted.destroy("S"));
+        mounted.ioSystem.flush();
+        assertEquals(freeBefore, mounted.allocator.getFreeBlocks());
+        assertEquals("hello", new String(disk.bytes[lastBlock], 3, 5));
+    }
+
+    @Test
+    void delayedAllocation() {
+        LDisk disk = new LDisk(256, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8);
+        byte[] a = new byte[64 * 6];
+        byte[] b = new byte[64 * 6];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = (byte) i;
+            b[i] = (byte) (i * 7);
+        }
+        fs.create("A");
+        fs.create("B");
+        int oftA = fs.open("A");
+        int oftB = fs.open("B");
+        int freeBefore = fs.allocator.getFreeBlocks();
+        // interleaved writers would take every other block
+        for (int offset = 0; offset < a.length; offset += 16) {
+            assertEquals(16, fs.write(oftA, Arrays.copyOfRange(a, offset, offset + 16), 16));
+            assertEquals(16, fs.write(oftB, Arrays.copyOfRange(b, offset, offset + 16), 16));
+        }
+        // blocks after the first ones wait in memory
+        assertEquals(freeBefore, fs.allocator.getFreeBlocks());
+        ByteBuffer readBuffer = ByteBuffer.allocate(a.length);
+        fs.seek(oftA, 0);
+        assertEquals(a.length, fs.read(oftA, readBuffer, a.length));
+        assertArrayEquals(a, readBuffer.array());
+
+        fs.close(oftA);
+        fs.close(oftB);
+        // 10 data blocks and a block with the second extent of every file
+        assertEquals(freeBefore - 12, fs.allocator.getFreeBlocks());
+        FileDescriptor descriptorA = fs.descriptors[fs.getDirectory().findEntry("A").fileDescriptorIndex];
+        FileDescriptor descriptorB = fs.descriptors[fs.getDirectory().findEntry("B").fileDescriptorIndex];
+        // the first block comes from create, the rest is one run
+        assertEquals(5, descriptorA.getContiguousBlocks(1));
+        assertEquals(5, descriptorB.getContiguousBlocks(1));
+
+        FileSystem mounted = new FileSystem(disk);
+        assertArrayEquals(a, readAll(mounted, "A", a.length));
+        assertArrayEquals(b, readAll(mounted, "B", b.length));
+    }
+
+    @Test
+    void delayedBlocksAreReserved() {
+        LDisk disk = new LDisk(64, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 4);
+        byte[] a = new byte[64 * 40];
+        byte[] b = new byte[64 * 40];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = (byte) i;
+            b[i] = (byte) (i * 7);
+        }
+        fs.create("A");
+        fs.create("B");
+        int oftA = fs.open("A");
+        int oftB = fs.open("B");
+        for (int offset = 0; offset < a.length; offset += 64) {
+            assertEquals(64, fs.write(oftA, Arrays.copyOfRange(a, offset, offset + 64), 64));
+        }
+        // direct writer can't take blocks of the delayed ones
+        int written = fs.write(oftB, b, b.length);
+        assertTrue(written < b.length);
+        fs.close(oftA);
+        fs.close(oftB);
+
+        FileSystem mounted = new FileSystem(disk);
+        assertArrayEquals(a, readAll(mounted, "A", a.length));
+        assertArrayEquals(Arrays.copyOf(b, written), readAll(mounted, "B", written));
+    }
+
+    @Test
+    void destroyedBlocksAreFreedAfterFlush() {
+        LDisk disk = new LDisk(128, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8, Superblock.FEATURE_JOURNAL);
+        fs.setMetadataFlushInterval(-1);
+        int freeBefore = fs.allocator.getFreeBlocks();
+        fs.create("A");
+        int oftIndex = fs.open("A");
+        assertEquals(64 * 4, fs.write(oftIndex, new byte[64 * 4], 64 * 4));
+        fs.close(oftIndex);
+        assertEquals(FileSystemConfig.SUCCESS, fs.destroy("A"));
+        // the disk still references the blocks until the destroy is committed
+        assertEquals(freeBefore - 4, fs.allocator.getFreeBlocks());
+        fs.create("B");
+        assertEquals(freeBefore - 5, fs.allocator.getFreeBlocks());
+        fs.flushMetadata();
+        assertEquals(freeBefore - 1, fs.allocator.getFreeBlocks());
+        assertEquals(freeBefore - 1, new FileSystem(disk).allocator.getFreeBlocks());
+    }
+
+    private static byte[] readAll(FileSystem fs, String fileName, int length) {
+        int oftIndex = fs.open(fileName);
+        ByteBuffer readBuffer = ByteBuffer.allocate(length);
+        assertEquals(length, fs.read(oftIndex, readBuffer, length));
+        fs.close(oftIndex);
+        return readBuffer.array();
+    }
+
+    @Test
+    void incrementalSave(@TempDir Path tempDir) {
+        String imagePath = tempDir.resolve("disk.img").toString();
+        FileSystem fs = new FileSystem(new IOSystem(new LDisk(512, 64)), 8);
+        fs.create("A");
+        int oftIndex = fs.open("A");
+        byte[] data = new byte[64 * 4];
+        Arrays.fill(data, (byte) 'a');
+        fs.write(oftIndex, data, data.length);
+        fs.sync();
+        fs.ioSystem.saveDiskToFile(imagePath);
+        assertEquals(512, fs.ioSystem.getLastSavedBlocks());
+
+        fs.ioSystem.saveDiskToFile(imagePath);
+        assertEquals(0, fs.ioSystem.getLastSavedBlocks());
+
+        // open file stays open, its modified buffer is written by sync
+        fs.seek(oftIndex, 64 + 10);
+        fs.write(oftIndex, new byte[]{'b'}, 1);
+        fs.sync();
+        fs.ioSystem.saveDiskToFile(imagePath);
+        assertTrue(fs.ioSystem.getLastSavedBlocks() > 0);
+        assertTrue(fs.ioSystem.getLastSavedBlocks() < 10);
+
+        FileSystem restored = new FileSystem(fs.ioSystem.readDiskFromFile(imagePath));
+        int restoredIndex = restored.open("A");
+        ByteBuffer readBuffer = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, restored.read(restoredIndex, readBuffer, data.length));
+        data[64 + 10] = 'b';
+        assertArrayEquals(data, readBuffer.array());
+        fs.close(oftIndex);
+    }
+
+    @Test
+    void formatWithCustomGeometry(@TempDir Path tempDir) {
+        FileSystem bigFileSystem = new FileSystem(new IOSystem(new LDisk(4096, 512)), 200);
+        bigFileSystem.setMetadataFlushInterval(0);
+        assertEquals(512, bigFileSystem.superblock.blockLength);
+        assertEquals(4096, bigFileSystem.superblock.blocksAmount);
+        assertEquals(FileSystemConfig.SUCCESS, bigFileSystem.create("FILE"));
+
+        String diskPath = tempDir.resolve("disk.txt").toString();
+        bigFileSystem.ioSystem.saveDiskToFile(diskPath);
+        FileSystem mounted = new FileSystem(bigFileSystem.ioSystem.readDiskFromFile(diskPath));
+        assertEquals(200, mounted.descriptors.length);
+        assertEquals(bigFileSystem.superblock.dataBlocksStart, mounted.superblock.dataBlocksStart);
+        assertEquals("FILE", mounted.getDirectory().listOfEntries.get(0).fileName);
+        assertEquals(bigFileSystem.searchFreeDataBlock(bigFileSystem.bitmap), mounted.searchFreeDataBlock(mounted.bitmap));
+    }
+
+    @Test
+    void writeAndReadWholeBlocks() {
+        fileSystem.create("FILE");
+        int oftIndex = fileSystem.open("FILE");
+        int count = 3 * FileSystemConfig.BLOCK_LENGTH;
+        byte[] memArea = new byte[count];
+        for (int i = 0; i < count; i++) {
+            memArea[i] = (byte) i;
+        }
+        assertEquals(count, fileSystem.write(oftIndex, memArea, count));
+        fileSystem.close(oftIndex);
+
+        oftIndex = fileSystem.open("FILE");
+        ByteBuffer readBuffer = ByteBuffer.allocate(count);
+        assertEquals(count, fileSystem.read(oftIndex, readBuffer, count));
+        assertArrayEquals(memArea, readBuffer.array());
+    }
+
+    @Test
+    void fragmentedFilesSurviveRemount() {
+        LDisk disk = new LDisk();
+        FileSystem fs = new FileSystem(new IOSystem(disk));
+        fs.setMetadataFlushInterval(0);
+        fs.create("A");
+        fs.create("B");
+        int a = fs.open("A");
+        int b = fs.open("B");
+        int blocks = 12;
+        byte[] block = new byte[FileSystemConfig.BLOCK_LENGTH];
+        for (int i = 0; i < blocks; i++) {
+            Arrays.fill(block, (byte) i);
+            assertEquals(block.length, fs.write(a, block, block.length));
+            Arrays.fill(block, (byte) -i);
+            assertEquals(block.length, fs.write(b, block, block.length));
+        }
+        fs.closeAllFiles();
+
+        FileSystem mounted = new FileSystem(disk);
+        mounted.setMetadataFlushInterval(0);
+        int b2 = mounted.open("B");
+        ByteBuffer readBuffer = ByteBuffer.allocate(blocks * FileSystemConfig.BLOCK_LENGTH);
+        assertEquals(blocks * FileSystemConfig.BLOCK_LENGTH, mounted.read(b2, readBuffer, readBuffer.capacity()));
+        for (int i = 0; i < blocks; i++) {
+            assertEquals((byte) -i, readBuffer.get(i * FileSystemConfig.BLOCK_LENGTH));
+        }
+        mounted.close(b2);
+
+        // data blocks and extent blocks of both files are freed
+        assertEquals(FileSystemConfig.SUCCESS, mounted.destroy("A"));
+        assertEquals(FileSystemConfig.SUCCESS, mounted.destroy("B"));
+        assertEquals(-1, mounted.bitmap.nextSetBit(mounted.superblock.dataBlocksStart + 1));
+    }
+
+    @Test
+    void lazyMount() {
+        LDisk disk = new LDisk(256, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 40, Superblock.FEATURE_HASHED_DIRECTORY);
+        fs.setMetadataFlushInterval(0);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(FileSystemConfig.SUCCESS, fs.create("F" + i));
+        }
+        int index = fs.open("F3");
+        fs.write(index, new byte[] {1, 2, 3}, 3);
+        fs.close(index);
+
+        FileSystem mounted = new FileSystem(disk);
+        mounted.setMetadataFlushInterval(0);
+        // superblock and then the bitmap, which is stored in the blocks before the descriptors
+        long mountReads = mounted.ioSystem.getReadBlockCalls();
+        assertTrue(mountReads <= 1 + mounted.superblock.descriptorBlocksStart);
+        index = mounted.open("F3");
+        assertNotEquals(-1, index);
+        // directory descriptor, a few directory blocks, descriptor of the file and its first block
+        assertTrue(mounted.ioSystem.getReadBlockCalls() - mountReads < mounted.superblock.numberOfDescriptorBlocks);
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        assertEquals(3, mounted.read(index, buffer, 3));
+        assertArrayEquals(new byte[] {1, 2, 3}, buffer.array());
+        mounted.close(index);
+
+        assertEquals(FileSystemConfig.SUCCESS, mounted.destroy("F7"));
+        assertEquals(FileSystemConfig.SUCCESS, mounted.create("NEW"));
+        assertEquals(20, mounted.getDirectory().listOfEntries.size());
+        FileSystem remounted = new FileSystem(disk);
+        assertEquals(-1, remounted.open("F7"));
+        assertNotEquals(-1, remounted.open("F19"));
+        assertNotEquals(-1, remounted.open("NEW"));
+        assertEquals(20, remounted.getDirectory().listOfEntries.size());
+    }
+
+    @Test
+    void hashedDirectory() {
+        LDisk disk = new LDisk(256, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 40, Superblock.FEATURE_HASHED_DIRECTORY);
+        fs.setMetadataFlushInterval(0);
+        for (int i = 0; i < 39; i++) {
+            assertEquals(FileSystemConfig.SUCCESS, fs.create("F" + i));
+        }
+        assertEquals(FileSystemConfig.ERROR, fs.create("FULL"));
+        assertEquals(FileSystemConfig.SUCCESS, fs.destroy("F7"));
+        assertEquals(FileSystemConfig.SUCCESS, fs.destroy("F20"));
+        assertEquals(FileSystemConfig.SUCCESS, fs.create("NEW"));
+
+        FileSystem mounted = new FileSystem(disk);
+        assertTrue(mounted.getDirectory().isHashed());
+        assertEquals(38, mounted.getDirectory().listOfEntries.size());
+        assertNull(mounted.getDirectory().findEntry("F7"));
+        assertEquals(fs.directory.findEntry("NEW").slot, mounted.getDirectory().findEntry("NEW").slot);
+        assertNotEquals(-1, mounted.open("F38"));
+        assertEquals(-1, mounted.open("F20"));
+    }
+
+    @Test
+    void blockAllocator() {
+        int blocks = 1 << 20;
+        BitSet bitmap = new BitSet(blocks);
+        bitmap.set(0, blocks);
+        bitmap.clear(100, 104);
+        bitmap.clear(500_000);
+        bitmap.clear(900_000, 900_010);
+        BlockAllocator allocator = new BlockAllocator(bitmap, 8, blocks);
+        assertEquals(15, allocator.getFreeBlocks());
+        assertEquals(3, allocator.getFreeRuns());
+
+        List<Extent> run = allocator.allocate(5, true);
+        assertEquals(1, run.size());
+        assertEquals(900_000, run.get(0).startBlock);
+        // next-fit continues after the last allocation and wraps around
+        assertEquals(900_005, allocator.allocateBlock());
+        assertNull(allocator.allocate(10, false));
+        List<Extent> rest = allocator.allocate(9, false);
+        assertEquals(9, rest.stream().mapToInt(extent -> extent.length).sum());
+        assertEquals(-1, allocator.allocateBlock());
+        assertEquals(0, allocator.getFreeRuns());
+
+        allocator.free(run.get(0));
+        assertEquals(5, allocator.getFreeBlocks());
+        assertEquals(1, allocator.getFreeRuns());
+        // freeing the blocks around a run joins them into one run
+        allocator.free(900_006, 2);
+        assertEquals(2, allocator.getFreeRuns());
+        allocator.free(900_005, 1);
+        assertEquals(1, allocator.getFreeRuns());
+        assertEquals(900_000, allocator.findFreeBlock(8));
+    }
+
+    @Test
+    void blockCache() {
+        LDisk disk = new LDisk(16, 64);
+        IOSystem ioSystem = new IOSystem(disk, 2);
+        BlockCache cache = ioSystem.getBlockCache();
+        byte[] block = new byte[64];
+        byte[] onDisk = new byte[64];
+
+        block[0] = 1;
+        ioSystem.writeBlock(1, block);
+        disk.readBlock(1, onDisk);
+        assertEquals(0, onDisk[0]);
+        ioSystem.readBlock(1, ByteBuffer.wrap(block));
+        assertEquals(1, block[0]);
+        assertEquals(1, cache.getHits());
+
+        // pinned block stays, the modified one is written back when evicted
+        byte[] frame = cache.pin(2);
+        frame[0] = 2;
+        ioSystem.readBlock(3, ByteBuffer.wrap(block));
+        disk.readBlock(1, onDisk);
+        assertEquals(1, onDisk[0]);
+        assertEquals(1, cache.getEvictions());
+        cache.unpin(2, true);
+
+        byte[] blocks = new byte[3 * 64];
+        ioSystem.readBlocks(1, 3, blocks, 0);
+        assertEquals(2, blocks[64]);
+        assertEquals(0, cache.getNumberOfDirtyBlocks());
+
+        blocks[64] = 5;
+        ioSystem.writeBlocks(1, 3, blocks, 0);
+        ioSystem.readBlock(2, ByteBuffer.wrap(block));
+        assertEquals(5, block[0]);
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    void sequentialReadahead() {
+        LDisk disk = new LDisk(512, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8);
+        byte[] data = new byte[64 * 64];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i / 64);
+        }
+        fs.create("SEQ");
+        int index = fs.open("SEQ");
+        assertEquals(data.length, fs.write(index, data, data.length));
+        fs.close(index);
+
+        FileSystem mounted = new FileSystem(disk);
+        BlockCache cache = mounted.ioSystem.getBlockCache();
+        index = mounted.open("SEQ");
+        long missesBefore = cache.getMisses();
+        ByteBuffer readBuffer = ByteBuffer.allocate(16);
+        for (int position = 0; position < data.length; position += 16) {
+            assertEquals(16, mounted.read(index, readBuffer, 16));
+            assertEquals(data[position], readBuffer.get(0));
+        }
+        // blocks are read ahead in growing runs instead of one miss per block
+        assertTrue(cache.getMisses() - missesBefore < 10);
+        assertTrue(cache.getPrefetchedBlocks() >= 60);
+        mounted.close(index);
+
+        // reads of whole blocks copy the blocks which were read ahead from their frames
+        index = mounted.open("SEQ");
+        long hitsBefore = cache.getHits();
+        readBuffer = ByteBuffer.allocate(4 * 64);
+        for (int position = 0; position < data.length; position += readBuffer.capacity()) {
+            assertEquals(readBuffer.capacity(), mounted.read(index, readBuffer, readBuffer.capacity()));
+            assertEquals(data[position], readBuffer.get(0));
+            assertEquals(data[position + 3 * 64], readBuffer.get(3 * 64));
+        }
+        assertTrue(cache.getHits() - hitsBefore >= 60);
+    }
+
+    @Test
+    void journalReplay() {
+        LDisk disk = new LDisk(128, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8, Superblock.FEATURE_JOURNAL);
+        fs.setMetadataFlushInterval(0);
+        Superblock superblock = fs.superblock;
+        assertEquals(superblock.journalStart + FileSystemConfig.JOURNAL_BLOCKS, superblock.dataBlocksStart);
+        // journal of a large disk grows with its bitmap and descriptors
+        Superblock large = Superblock.forGeometry(1 << 16, 64, 8, Superblock.FEATURE_JOURNAL);
+        assertEquals(Superblock.getJournalBlocks(large.journalStart), large.journalBlocks);
+        assertTrue(large.journalBlocks > FileSystemConfig.JOURNAL_BLOCKS);
+        fs.create("J");
+        assertEquals(1, fs.journal.getCommits());
+
+        // metadata blocks are lost, as if the disk crashed before they were written
+        byte[] zeros = new byte[64];
+        disk.writeBlock(superblock.descriptorBlocksStart, zeros);
+        disk.writeBlock(superblock.dataBlocksStart, zeros);
+        FileSystem mounted = new FileSystem(disk);
+        assertNotEquals(-1, mounted.open("J"));
+
+        // transaction which wasn't written completely is not replayed
+        byte[] journalBlock = new byte[64];
+        disk.readBlock(superblock.journalStart + 1, journalBlock);
+        journalBlock[0]++;
+        disk.writeBlock(superblock.journalStart + 1, journalBlock);
+        disk.writeBlock(superblock.dataBlocksStart, zeros);
+        mounted = new FileSystem(disk);
+        assertEquals(-1, mounted.open("J"));
+    }
+
+    @Test
+    void metadataFlushInterval() {
+        LDisk disk = new LDisk(256, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 16, Superblock.FEATURE_JOURNAL);
+        long commits = fs.journal.getCommits();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(FileSystemConfig.SUCCESS, fs.create("F" + i));
+        }
+        // by default operations within the interval are committed together, not one by one
+        assertTrue(fs.journal.getCommits() - commits <= 1);
+        fs.sync();
+        FileSystem mounted = new FileSystem(disk);
+        for (int i = 0; i < 10; i++) {
+            assertNotEquals(-1, mounted.open("F" + i));
+        }
+    }
+
+    @Test
+    void journalCheckpoint() {
+        LDisk disk = new LDisk(512, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 64, Superblock.FEATURE_JOURNAL);
+        fs.create("A");
+        long commits = fs.journal.getCommits();
+        fs.setMetadataFlushInterval(-1);
+        for (int i = 0; i < 40; i++) {
+            fs.create("F" + i);
+        }
+        fs.flushMetadata();
+        // the flush doesn't fit into the journal and is not split into several transactions
+        assertEquals(commits, fs.journal.getCommits());
+        assertEquals(1, fs.journal.getCheckpoints());
+
+        // older transaction is not replayed over the checkpoint
+        FileSystem mounted = new FileSystem(disk);
+        for (int i = 0; i < 40; i++) {
+            assertNotEquals(-1, mounted.open("F" + i));
+        }
+        assertNotEquals(-1, mounted.open("A"));
+    }
+
+    @Test
+    void ioSchedulerMergesAdjacentRequests() {
+        LDisk disk = new LDisk(64, 64);
+        IOSystem ioSystem = new IOSystem(disk);
+        byte[] block = new byte[64];
+        for (int i = 0; i < 8; i++) {
+            block[0] = (byte) i;
+            ioSystem.writeBlock(16 + i, block);
+        }
+
+        IOScheduler scheduler = new IOScheduler(ioSystem, 2, 16);
+        byte[][] buffers = new byte[8][64];
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        // out of order, merged into one transfer of blocks 16-23
+        for (int i : new int[]{3, 1, 0, 2, 7, 5, 6, 4}) {
+            futures.add(scheduler.readBlocks(16 + i, 1, buffers[i], 0));
+        }
+        scheduler.start();
+        futures.forEach(CompletableFuture::join);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, buffers[i][0]);
+        }
+        assertEquals(8, scheduler.getSubmittedRequests());
+        assertEquals(1, scheduler.getTransfers());
+        scheduler.shutdown();
+    }
+
+    @Test
+    void asyncFileSystem() {
+        AsyncFileSystem async = new AsyncFileSystem(new FileSystem(new IOSystem(new LDisk(512, 64)), 8));
+        async.getFileSystem().create("A");
+        async.getFileSystem().create("B");
+        int a = async.openAsync("A").join();
+        int b = async.openAsync("B").join();
+
+        byte[] dataA = new byte[64 * 10];
+        byte[] dataB = new byte[64 * 10];
+        Arrays.fill(dataA, (byte) 'a');
+        Arrays.fill(dataB, (byte) 'b');
+        // operations of one entry run in order, entries run in parallel
+        CompletableFuture<Integer> writeA = async.writeAsync(a, dataA, dataA.length);
+        CompletableFuture<Integer> writeB = async.writeAsync(b, dataB, dataB.length);
+        async.seekAsync(a, 0);
+        async.seekAsync(b, 0);
+        ByteBuffer readA = ByteBuffer.allocate(dataA.length);
+        ByteBuffer readB = ByteBuffer.allocate(dataB.length);
+        CompletableFuture<Integer> readFutureA = async.readAsync(a, readA, dataA.length);
+        CompletableFuture<Integer> readFutureB = async.readAsync(b, readB, dataB.length);
+
+        assertEquals(dataA.length, writeA.join());
+        assertEquals(dataB.length, writeB.join());
+        assertEquals(dataA.length, readFutureA.join());
+        assertEquals(dataB.length, readFutureB.join());
+        assertArrayEquals(dataA, readA.array());
+        assertArrayEquals(dataB, readB.array());
+        assertEquals(1, async.closeAsync(a).join());
+        assertEquals(1, async.closeAsync(b).join());
+        async.shutdown();
+    }
+
+    @Test
+    void jmxMetrics() throws Exception {
+        FileSystem fs = new FileSystem(new IOSystem(new LDisk(512, 64)), 8);
+        ObjectName name = fs.metrics.register("jmxMetrics");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            fs.create("A");
+            int a = fs.open("A");
+            byte[] data = new byte[64 * 3];
+            fs.write(a, data, data.length);
+            fs.seek(a, 0);
+            fs.read(a, ByteBuffer.allocate(data.length), data.length);
+            assertEquals(1, server.getAttribute(name, "OpenFiles"));
+            fs.close(a);
+
+            assertEquals(0, server.getAttribute(name, "OpenFiles"));
+            assertEquals((long) data.length, server.getAttribute(name, "BytesWritten"));
+            assertEquals((long) data.length, server.getAttribute(name, "BytesRead"));
+            assertTrue((long) server.getAttribute(name, "WriteBlockCalls") > 0);
+            assertTrue((long) server.getAttribute(name, "MetadataFlushes") > 0);
+            assertEquals(1, server.getAttribute(name, "FreeRuns"));
+            assertEquals(0.0, server.getAttribute(name, "Fragmentation"));
+            assertEquals(1L, server.invoke(name, "getOperationCount", new Object[]{"write"}, new String[]{String.class.getName()}));
+            assertTrue(fs.metrics.getLatencyPercentileNanos("write", 0.5) > 0);
+        } finally {
+            fs.metrics.unregister();
+        }
+    }
+
+    @Test
+    void concurrentMode() throws Exception {
+        LDisk disk = new LDisk(2048, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 64);
+        fs.setConcurrent(true);
+        int threads = 8;
+        int blocks = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String fileName = "T" + t;
+            byte value = (byte) t;
+            results.add(executor.submit(() -> {
+                fs.create(fileName);
+                int writer = fs.open(fileName);
+                byte[] data = new byte[blocks * 64];
+                Arrays.fill(data, value);
+                fs.write(writer, data, data.length);
+                fs.close(writer);
+                int reader = fs.open(fileName);
+                ByteBuffer readBuffer = ByteBuffer.allocate(data.length);
+                fs.read(reader, readBuffer, data.length);
+                fs.close(reader);
+                return Arrays.equals(data, readBuffer.array());
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+
+        FileSystem mounted = new FileSystem(disk);
+        assertEquals(threads, mounted.getDirectory().listOfEntries.size());
+        int reader = mounted.open("T5");
+        ByteBuffer readBuffer = ByteBuffer.allocate(blocks * 64);
+        assertEquals(blocks * 64, mounted.read(reader, readBuffer, blocks * 64));
+        assertEquals(5, readBuffer.get(blocks * 64 - 1));
+    }
+
+    @Test
+    void readersOfSharedFile() throws Exception {
+        LDisk disk = new LDisk(2048, 64);
+        FileSystem fs = new FileSystem(new IOSystem(disk), 8);
+        fs.setConcurrent(true);
+        int freeBefore = fs.allocator.getFreeBlocks();
+        int length = 16 * 64 + 10;
+        // flushed blocks of a compressed file are appended to its log, so flushes allocate
+        fs.create("S", true);
+        int writer = fs.open("S");
+        assertEquals(length, fs.write(writer, new byte[length], length));
+        int[] readers = {fs.open("S"), fs.open("S")};
+
+        // readers flush the modified buffer of the writer, every read sees one whole write
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<Future<Boolean>> results = new ArrayList<>();
+        results.add(executor.submit(() -> {
+            byte[] data = new byte[length];
+            for (byte version = 1; version <= 100; version++) {
+                Arrays.fill(data, version);
+                fs.seek(writer, 0);
+                if (fs.write(writer, data, length) != length) {
+                    return false;
+                }
+            }
+            return true;
+        }));
+        for (int reader : readers) {
+            results.add(executor.submit(() -> {
+                ByteBuffer readBuffer = ByteBuffer.allocate(length);
+                byte lastVersion = 0;
+                for (int i = 0; i < 300; i++) {
+                    fs.seek(reader, 0);
+                    if (fs.read(reader, readBuffer, length) != length) {
+                        return false;
+                    }
+                    byte version = readBuffer.get(0);
+                    for (int position = 0; position < length; position++) {
+                        if (readBuffer.get(position) != version) {
+                            return false;
+                        }
+                    }
+                    if (version < lastVersion) {
+                        return false;
+                    }
+                    lastVersion = version;
+                }
+                return true;
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+
+        fs.seek(readers[0], 0);
+        ByteBuffer readBuffer = ByteBuffer.allocate(length);
+        assertEquals(length, fs.read(readers[0], readBuffer, length));
+        assertEquals(100, readBuffer.get(length - 1));
+        fs.closeAllFiles();
+        // no block of the log was lost by two flushes at once
+        assertEquals(FileSystemConfig.SUCCESS, fs.destroy("S"));
+        fs.flushMetadata();
+        assertEquals(freeBefore, fs.allocator.getFreeBlocks());
+    }
+
+    @Test
+    void deferredMetadataFlush() {
+        fileSystem.setMetadataFlushInterval(-1);
+        fileSystem.create("F1");
+        // nothing is written until sync
+        assertFalse(fileSystem.readBitMapFromDisk().get(8));
+        fileSystem.sync();
+        assertTrue(fileSystem.readBitMapFromDisk().get(8));
+
+        fileSystem.destroy("F1");
+        assertTrue(fileSystem.readBitMapFromDisk().get(8));
+        fileSystem.closeAllFiles();
+        assertFalse(fileSystem.readBitMapFromDisk().get(8));
+        fileSystem.directory = new Directory();
+        fileSystem.readDirectoryFromDisk();
+        assertEquals(0, fileSystem.directory.listOfEntries.size());
     }
 
     @Test